@@ -1,12 +1,15 @@
 package com.bose.config.restclient;
 
-import com.bose.config.client.ConfigResponse;
-import org.springframework.cloud.config.environment.PropertySource;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Simple configuration client for Spring cloud config.
@@ -17,6 +20,10 @@ import java.util.Map;
  * It will take all property sources returned from spring cloud config, and convert them into a single Map with properties.
  * Taking into account the profile order, it will ensure the correct value for each key is stored in the single map.
  * It uses the reverse order of the profiles as hierarchy (meaning the last profile passed in is the highest in priority)
+ *
+ * The last fetched configuration is remembered per profile list, together with its ETag (the config version).
+ * Subsequent calls send it as If-None-Match, if the config server answers 304 the remembered configuration is returned
+ * without downloading and parsing it again.
  */
 public class ConfigurationClient {
     public static final String SERVICE_URL = "http://localhost:8888/%s/%s";
@@ -25,6 +32,7 @@ public class ConfigurationClient {
     private String label;
     private String[] profiles;
     private String prefix;
+    private final Map<String, CachedConfiguration> cache = new ConcurrentHashMap<>();
 
     public ConfigurationClient(String name, String... profiles) {
         this.restTemplate = new RestTemplate();
@@ -61,23 +69,43 @@ public class ConfigurationClient {
     }
 
     public Map<String, String> getConfiguration(String... profiles) {
-        RestTemplate restTemplate = new RestTemplate();
-        ConfigResponse response = restTemplate.getForObject(
-                String.format(SERVICE_URL, this.name, StringUtils.arrayToCommaDelimitedString(profiles)),
-                ConfigResponse.class);
+        String profileList = StringUtils.arrayToCommaDelimitedString(profiles);
+        CachedConfiguration cached = cache.get(profileList);
+        //the body is streamed straight into the flattened map, no intermediate property source maps
+        return restTemplate.execute(String.format(SERVICE_URL, this.name, profileList), HttpMethod.GET,
+                request -> {
+                    request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                    if (cached != null) {
+                        request.getHeaders().setIfNoneMatch(cached.eTag);
+                    }
+                },
+                response -> {
+                    if (cached != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                        return cached.properties;
+                    }
+                    Map<String, String> properties = new HashMap<>();
+                    String version = EnvironmentReader.read(response.getBody(), properties);
+                    String eTag = response.getHeaders().getETag();
+                    if (eTag == null && version != null) {
+                        eTag = "\"" + version + "\"";
+                    }
+                    properties = Collections.unmodifiableMap(properties);
+                    if (eTag != null) {
+                        cache.put(profileList, new CachedConfiguration(eTag, properties));
+                    } else {
+                        cache.remove(profileList);
+                    }
+                    return properties;
+                });
+    }
 
-        Map<String, String> properties = new HashMap<>();
-        for (PropertySource source : response.getPropertySources()) {
-            @SuppressWarnings("unchecked")
-            Map<String, String> map = (Map<String, String>) source
-                    .getSource();
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                if (!properties.containsKey(entry.getKey())) {
-                    properties.putIfAbsent(entry.getKey(), entry.getValue());
-                }
-            }
+    private static class CachedConfiguration {
+        private final String eTag;
+        private final Map<String, String> properties;
 
+        CachedConfiguration(String eTag, Map<String, String> properties) {
+            this.eTag = eTag;
+            this.properties = properties;
         }
-        return properties;
     }
 }
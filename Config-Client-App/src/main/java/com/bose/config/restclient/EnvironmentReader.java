@@ -0,0 +1,94 @@
+package com.bose.config.restclient;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Streaming reader for the environment returned by spring cloud config.
+ *
+ * Reads the property sources token by token straight into a single flattened map. The property sources are ordered
+ * from most to least specific, so the first value found for a key wins and values for keys we already have are
+ * never read. Scalar values are read as text, null, object and array values are skipped.
+ */
+final class EnvironmentReader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private EnvironmentReader() {
+    }
+
+    /**
+     * @param in         the response body.
+     * @param properties the map to add the flattened properties to.
+     * @return the version of the environment, null if there is none or the body is empty.
+     */
+    static String read(InputStream in, Map<String, String> properties) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return null;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Expected an environment object", parser.getCurrentLocation());
+            }
+            String version = null;
+            while (nextToken(parser) == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                token = nextToken(parser);
+                if ("version".equals(field)) {
+                    version = token == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+                } else if ("propertySources".equals(field) && token == JsonToken.START_ARRAY) {
+                    readPropertySources(parser, properties);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return version;
+        }
+    }
+
+    private static void readPropertySources(JsonParser parser, Map<String, String> properties) throws IOException {
+        JsonToken token;
+        while ((token = nextToken(parser)) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (nextToken(parser) == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (nextToken(parser) == JsonToken.START_OBJECT && "source".equals(field)) {
+                    readSource(parser, properties);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static void readSource(JsonParser parser, Map<String, String> properties) throws IOException {
+        while (nextToken(parser) == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = nextToken(parser);
+            if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                if (!properties.containsKey(key)) {
+                    properties.put(key, parser.getText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static JsonToken nextToken(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            throw new JsonParseException("Unexpected end of environment", parser.getCurrentLocation());
+        }
+        return token;
+    }
+}
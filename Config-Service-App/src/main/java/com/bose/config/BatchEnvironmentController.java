@@ -0,0 +1,57 @@
+package com.bose.config;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.server.environment.EnvironmentController;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Returns the environments for many name/profiles/label combinations in one call.
+ *
+ * The response contains one entry per request entry, in the same order. Entries that could not be resolved are
+ * <code>null</code>. If a request entry carries the version the client already has and that is still the current
+ * version, the environment is returned without property sources.
+ */
+@RestController
+public class BatchEnvironmentController {
+    private static final Log logger = LogFactory.getLog(BatchEnvironmentController.class);
+
+    @Autowired
+    private EnvironmentController environmentController;
+
+    @RequestMapping(value = "/batch", method = RequestMethod.POST)
+    public List<Environment> batch(@RequestBody List<EnvironmentRequest> requests) {
+        List<Environment> result = new ArrayList<>(requests.size());
+        for (EnvironmentRequest request : requests) {
+            result.add(resolve(request));
+        }
+        return result;
+    }
+
+    private Environment resolve(EnvironmentRequest request) {
+        try {
+            Environment environment = StringUtils.hasText(request.getLabel())
+                    ? environmentController.labelled(request.getName(), request.getProfiles(), request.getLabel())
+                    : environmentController.defaultLabel(request.getName(), request.getProfiles());
+            if (environment.getVersion() != null && environment.getVersion().equals(request.getVersion())) {
+                Environment unchanged = new Environment(environment.getName(), environment.getProfiles());
+                unchanged.setLabel(environment.getLabel());
+                unchanged.setVersion(environment.getVersion());
+                return unchanged;
+            }
+            return environment;
+        } catch (RuntimeException e) {
+            logger.warn("Could not resolve environment " + request.getName() + "/" + request.getProfiles(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.bose.config;
+
+/**
+ * One entry of a batch environment request.
+ */
+public class EnvironmentRequest {
+    private String name;
+    private String profiles;
+    private String label;
+    private String version;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the comma separated list of profiles.
+     */
+    public String getProfiles() {
+        return profiles;
+    }
+
+    public void setProfiles(String profiles) {
+        this.profiles = profiles;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return the version the client already has, if any. If it's still the current version, the environment is
+     * returned without property sources.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,66 @@
+package com.bose.config;
+
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Adds a version based ETag to environment responses and answers conditional requests.
+ *
+ * The version of an environment is the commit id of the backing git repository, so as long as the version doesn't change
+ * the environment doesn't change either. Clients can send the ETag back in an If-None-Match header, if it still matches,
+ * a 304 without body is returned instead of the full environment.
+ */
+@ControllerAdvice
+public class EnvironmentVersionETagAdvice implements ResponseBodyAdvice<Object> {
+    private static final String WEAK_PREFIX = "W/";
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return Environment.class.isAssignableFrom(returnType.getParameterType());
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (!(body instanceof Environment) || request.getMethod() != HttpMethod.GET) {
+            return body;
+        }
+        String version = ((Environment) body).getVersion();
+        if (!StringUtils.hasText(version)) {
+            //no version (e.g. native file repository), nothing to base the ETag on
+            return body;
+        }
+        String eTag = "\"" + version + "\"";
+        response.getHeaders().setETag(eTag);
+        if (matches(eTag, request.getHeaders().getIfNoneMatch())) {
+            response.setStatusCode(HttpStatus.NOT_MODIFIED);
+            return null;
+        }
+        return body;
+    }
+
+    private boolean matches(String eTag, Iterable<String> ifNoneMatch) {
+        for (String candidate : ifNoneMatch) {
+            for (String value : StringUtils.commaDelimitedListToStringArray(candidate)) {
+                value = value.trim();
+                if (value.startsWith(WEAK_PREFIX)) {
+                    value = value.substring(WEAK_PREFIX.length());
+                }
+                if ("*".equals(value) || eTag.equals(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package com.bose.services.config.client.aem;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.springframework.util.AntPathMatcher;
+
+import java.util.Map;
+
+/**
+ * JSON form of the Spring Cloud Bus remote application events, as sent on the bus by e.g. the config server.
+ * Only the properties needed to decide what to refresh are read, see {@link BusEventDecoder}.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BusEvent {
+    public static final String TYPE_REFRESH = "RefreshRemoteApplicationEvent";
+    public static final String TYPE_ENVIRONMENT_CHANGE = "EnvironmentChangeRemoteApplicationEvent";
+    /**
+     * Destination of events for all services.
+     */
+    public static final String ALL_SERVICES = "**";
+    private static final String SERVICE_SEPARATOR = ":";
+
+    private String type;
+    private String id;
+    private long timestamp;
+    private String originService;
+    private String destinationService;
+    private Map<String, String> values;
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public String getOriginService() {
+        return originService;
+    }
+
+    public void setOriginService(String originService) {
+        this.originService = originService;
+    }
+
+    public String getDestinationService() {
+        return destinationService;
+    }
+
+    public void setDestinationService(String destinationService) {
+        this.destinationService = destinationService;
+    }
+
+    /**
+     * @return the changed keys and their new values, only for {@link #TYPE_ENVIRONMENT_CHANGE}.
+     */
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public void setValues(Map<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * @return <code>true</code> if the event is for all services.
+     */
+    public boolean isForAll() {
+        return destinationService == null || destinationService.isEmpty() || ALL_SERVICES.equals(destinationService);
+    }
+
+    /**
+     * Matches the destination like Spring Cloud Bus does: an Ant pattern with <code>:</code> as separator, a destination
+     * without separator is for all instances of the service (e.g. <code>customers</code> is <code>customers:**</code>).
+     *
+     * @param serviceId the id of the service, e.g. <code>customers:production</code>.
+     * @return <code>true</code> if the event is for the service.
+     */
+    public boolean isFor(String serviceId) {
+        if (isForAll()) {
+            return true;
+        }
+        String destination = destinationService.contains(SERVICE_SEPARATOR) ? destinationService : destinationService + SERVICE_SEPARATOR + ALL_SERVICES;
+        return new AntPathMatcher(SERVICE_SEPARATOR).match(destination, serviceId);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s %s from '%s' to '%s']", type, id, originService, destinationService);
+    }
+}
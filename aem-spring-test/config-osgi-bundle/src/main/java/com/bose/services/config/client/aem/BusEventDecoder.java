@@ -0,0 +1,79 @@
+package com.bose.services.config.client.aem;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decodes Spring Cloud Bus messages as received from the AMQP exchange.
+ * <p>
+ * Spring Cloud Stream 1.x embeds the message headers in the body when the binder can't carry them natively:
+ * a <code>0xff</code> marker, the number of headers, and per header the length of the name (1 byte), the name, the
+ * length of the value (4 bytes) and the value (as JSON). The JSON event follows the headers. Bodies without the marker
+ * are plain JSON.
+ * <p>
+ * This class is thread-safe.
+ */
+final class BusEventDecoder {
+    private static final int EMBEDDED_HEADERS = 0xff;
+    private static final String CONTENT_TYPE = "contentType";
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private BusEventDecoder() {
+    }
+
+    /**
+     * @param body the message body, not null.
+     * @return the event.
+     * @throws IOException when the body is not a (supported) bus event, e.g. a truncated message or a Java serialized event.
+     */
+    static BusEvent decode(byte[] body) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        Map<String, String> headers = readEmbeddedHeaders(buffer);
+        String contentType = headers.get(CONTENT_TYPE);
+        if (contentType != null && !contentType.contains("json")) {
+            throw new IOException("Unsupported content type " + contentType);
+        }
+        BusEvent event = mapper.readValue(body, buffer.position(), buffer.remaining(), BusEvent.class);
+        if (event == null || event.getType() == null) {
+            throw new IOException("Not a bus event, no type");
+        }
+        return event;
+    }
+
+    //leaves the buffer at the start of the payload, no headers if they're not embedded
+    private static Map<String, String> readEmbeddedHeaders(ByteBuffer buffer) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (!buffer.hasRemaining() || (buffer.get(0) & 0xff) != EMBEDDED_HEADERS) {
+            return headers;
+        }
+        try {
+            buffer.get();
+            int count = buffer.get() & 0xff;
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.get() & 0xff];
+                buffer.get(name);
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("Invalid length " + length + " of embedded header " + new String(name, StandardCharsets.UTF_8));
+                }
+                byte[] value = new byte[length];
+                buffer.get(value);
+                headers.put(new String(name, StandardCharsets.UTF_8), unquote(new String(value, StandardCharsets.UTF_8)));
+            }
+        } catch (RuntimeException e) {
+            //BufferUnderflowException, truncated message
+            throw new IOException("Invalid embedded headers", e);
+        }
+        return headers;
+    }
+
+    //header values are JSON, strings are quoted
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1) : value;
+    }
+}
@@ -1,78 +1,211 @@
 package com.bose.services.config.client.aem;
 
 import com.rabbitmq.client.*;
-import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Simple RabbitMQ consumer for configuration refresh notifications.
+ * <p>
+ * Messages are Spring Cloud Bus events, see {@link BusEventDecoder}. Refresh and environment change events only
+ * refresh the configurations they are meant for, all other events and messages that can't be decoded are ignored.
+ * <p>
+ * Deliveries are handed over to an executor right away, so slow refreshes never block the dispatching of the
+ * connection. Messages must be consumed without auto ack: a message is acknowledged once the refreshes it triggered are
+ * done. When they fail (or the tracker isn't available) it's requeued once, a redelivered message that fails again is
+ * rejected. Messages that are never acknowledged (e.g. on a crash) are delivered again by the broker. The number of
+ * messages handled at the same time is limited by the prefetch count of the channel.
  */
 public class ConfigRefreshConsumer extends DefaultConsumer {
     private static final Logger logger = LoggerFactory.getLogger(ConfigRefreshConsumer.class);
-    private BundleContext bundleContext;
+    private static final String DEFAULT_PROFILE = "default";
+    private static final long SERVICE_TIMEOUT = 10000;
+    private final TrackerLookup trackerLookup;
+    private final Executor executor;
 
-    public ConfigRefreshConsumer(Channel channel, BundleContext componentContext) {
+    /**
+     * @param channel        the channel to acknowledge messages on.
+     * @param trackerService the (open) tracker of the {@link ManagedConfigurationTracker} service.
+     * @param executor       handles the messages, its queue should hold at least the prefetch count of the channel.
+     */
+    public ConfigRefreshConsumer(Channel channel, ServiceTracker trackerService, Executor executor) {
+        this(channel, timeout -> (ManagedConfigurationTracker) trackerService.waitForService(timeout), executor);
+    }
+
+    /**
+     * @param channel       the channel to acknowledge messages on.
+     * @param trackerLookup looks up the {@link ManagedConfigurationTracker}, e.g. outside of OSGi.
+     * @param executor      handles the messages, its queue should hold at least the prefetch count of the channel.
+     */
+    ConfigRefreshConsumer(Channel channel, TrackerLookup trackerLookup, Executor executor) {
         super(channel);
-        this.bundleContext = componentContext;
+        this.trackerLookup = trackerLookup;
+        this.executor = executor;
     }
 
     @Override
     public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
-
+        if (!sig.isInitiatedByApplication()) {
+            //unacknowledged messages are delivered again once recovered
+            logger.warn("Refresh channel consumer shut down: {}", sig.getMessage());
+        }
     }
 
     @Override
     public void handleDelivery(String consumerTag, Envelope envelope,
                                AMQP.BasicProperties properties, byte[] body) throws IOException {
-        /**
-         * Spring Bus sends some serialized form of 'org.springframework.cloud.bus.event.RefreshRemoteApplicationEvent'
-         * and I can't seem to deserialize it with neither Jackson2 or Kryo (which are the both 'default' serializers as far as
-         * I could find out in the code/docs. Could be because it's a pain in the ass to get them working in OSGi
-         * I had to embed a lot of deps to get this running
-         *
-         * For now, I have implemented a bit of a dirty hacks with filters out the readable string parts from the somewhat serialized byte stream.
-         * TODO: FIX THIS DIRTY HACK! with the ability to deserialize the payload decently :)
-         */
-        ServiceReference ref = null;
+        long deliveryTag = envelope.getDeliveryTag();
+        boolean redelivered = envelope.isRedeliver();
         try {
-            logger.info("Received configuration REFRESH notification");
-            String configurationName = null;
-            try {
-                StringBuilder name = new StringBuilder();
-                //this should filter out all the unreadable chars...
-                for (byte b : body) {
-                    if (b > '\u0001') {
-                        name.append((char) b);
-                    }
-                }
-                //TODO: and for now, this gives us the name of the config... very BRITTLE!! needs fixing..
-                configurationName = name.substring(0, name.indexOf(":"));
-            } catch (Throwable e) {
-                //because this is crappy code, make it as fail-safe as possible for now, if anything goes wrong, just refresh everything...
-                logger.error("The very CRAPPY hack is causing errors, you might want to invest some time and fix this in a decent way", e);
-                configurationName = null;
+            executor.execute(() -> process(deliveryTag, redelivered, body));
+        } catch (RejectedExecutionException e) {
+            //shutting down, or more messages than the prefetch count
+            logger.warn("Can not handle refresh notification now, requeueing it.");
+            nack(deliveryTag, true);
+        }
+    }
+
+    private void process(long deliveryTag, boolean redelivered, byte[] body) {
+        BusEvent event;
+        try {
+            event = BusEventDecoder.decode(body);
+        } catch (IOException e) {
+            //never refresh everything because of a message we don't understand, and it won't get any better
+            logger.warn("Ignoring malformed or unsupported message on the refresh channel: {}", e.getMessage());
+            ack(deliveryTag);
+            return;
+        }
+        if (!BusEvent.TYPE_REFRESH.equals(event.getType()) && !BusEvent.TYPE_ENVIRONMENT_CHANGE.equals(event.getType())) {
+            //acks, sent events, events of other applications
+            logger.debug("Ignoring bus event {}", event);
+            ack(deliveryTag);
+            return;
+        }
+        logger.info("Received configuration REFRESH notification {}", event);
+        try {
+            ManagedConfigurationTracker tracker = trackerLookup.waitForTracker(SERVICE_TIMEOUT);
+            if (tracker == null) {
+                logger.warn("Managed configuration tracker not available, can not handle {}", event);
+                nack(deliveryTag, !redelivered);
+                return;
             }
-            //ensure to default to everything...
-            if(StringUtils.isEmpty(configurationName)){
-                configurationName = ManagedConfigurationTracker.REFRESH_ALL;
+            List<CompletableFuture<RefreshResult>> refreshes = new ArrayList<>();
+            for (String configurationName : getTargets(tracker, event)) {
+                //debounced, a burst of pushes results in a single refresh
+                refreshes.add(tracker.scheduleRefresh(configurationName));
             }
-            ref = bundleContext.getServiceReference(ManagedConfigurationTracker.class.getName());
-            ManagedConfigurationTracker tracker = (ManagedConfigurationTracker) bundleContext.getService(ref);
-            tracker.refresh(configurationName);
+            CompletableFuture.allOf(refreshes.toArray(new CompletableFuture[refreshes.size()])).whenComplete((done, error) -> {
+                if (error == null && !isSkipped(refreshes)) {
+                    ack(deliveryTag);
+                } else {
+                    logger.warn("Refresh for {} failed, {}", event, redelivered ? "rejecting it" : "requeueing it");
+                    nack(deliveryTag, !redelivered);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            nack(deliveryTag, true);
         } catch (Exception e) {
             logger.error("Unexpected error in refresh channel consumer", e);
-        } finally {
-            try {
-                bundleContext.ungetService(ref);
-            } catch (Exception e) {
-                //ignore
+            nack(deliveryTag, !redelivered);
+        }
+    }
+
+    //configurations that could not be fetched, e.g. the config server is down
+    private static boolean isSkipped(List<CompletableFuture<RefreshResult>> refreshes) {
+        for (CompletableFuture<RefreshResult> refresh : refreshes) {
+            if (refresh.join().getCount(RefreshResult.Status.SKIPPED) > 0) {
+                return true;
             }
         }
+        return false;
+    }
 
+    private void ack(long deliveryTag) {
+        try {
+            getChannel().basicAck(deliveryTag, false);
+        } catch (IOException | RuntimeException e) {
+            //channel closed, the message is delivered again
+            logger.warn("Error acknowledging refresh notification", e);
+        }
+    }
+
+    private void nack(long deliveryTag, boolean requeue) {
+        try {
+            getChannel().basicNack(deliveryTag, false, requeue);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Error rejecting refresh notification", e);
+        }
+    }
+
+    /**
+     * Determines the configurations to refresh for the event: the tracked configurations whose service id (see
+     * {@link #getServiceId(ManagedConfiguration)}) matches the destination of the event. For environment changes, only
+     * configurations with nodes referencing one of the changed keys.
+     *
+     * @param tracker the tracker, not null.
+     * @param event   the event, not null.
+     * @return the names of the configurations to refresh, or only {@link ManagedConfigurationTracker#REFRESH_ALL}.
+     */
+    Set<String> getTargets(ManagedConfigurationTracker tracker, BusEvent event) {
+        Set<String> keys = BusEvent.TYPE_ENVIRONMENT_CHANGE.equals(event.getType())
+                ? (event.getValues() != null ? event.getValues().keySet() : Collections.<String>emptySet()) : null;
+        if (keys == null && event.isForAll()) {
+            return Collections.singleton(ManagedConfigurationTracker.REFRESH_ALL);
+        }
+        Set<String> targets = new LinkedHashSet<>();
+        if (keys != null && keys.isEmpty()) {
+            return targets;
+        }
+        Map<String, Boolean> matches = new HashMap<>();
+        for (ManagedConfiguration configuration : tracker.getManagedConfigurations()) {
+            if (targets.contains(configuration.getConfigurationName())) {
+                continue;
+            }
+            //usually many nodes per service id
+            boolean match = matches.computeIfAbsent(getServiceId(configuration), event::isFor);
+            if (match && (keys == null || configuration.references(keys))) {
+                targets.add(configuration.getConfigurationName());
+            }
+        }
+        if (targets.isEmpty()) {
+            logger.info("No tracked configuration is affected by bus event {}", event);
+        }
+        return targets;
+    }
+
+    /**
+     * @param configuration the managed configuration.
+     * @return the id the configuration is known by on the bus, its name and profiles, e.g. <code>customers:default</code>.
+     */
+    static String getServiceId(ManagedConfiguration configuration) {
+        String[] profiles = configuration.getProfiles();
+        return configuration.getConfigurationName() + ":"
+                + (profiles == null || profiles.length == 0 ? DEFAULT_PROFILE : StringUtils.arrayToCommaDelimitedString(profiles));
+    }
+
+    /**
+     * Looks up the {@link ManagedConfigurationTracker} the consumer refreshes with.
+     */
+    interface TrackerLookup {
+        /**
+         * @param timeout the maximum time to wait for the tracker, in milliseconds.
+         * @return the tracker, or <code>null</code> if it's not available in time.
+         */
+        ManagedConfigurationTracker waitForTracker(long timeout) throws InterruptedException;
     }
 }
@@ -0,0 +1,316 @@
+package com.bose.services.config.client.aem;
+
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Size and weight bounded cache for fetched configurations, with a time-to-live per entry.
+ * <p>
+ * Expired entries are not removed, they are still returned (flagged as {@link Entry#isExpired() expired}) so the caller
+ * can serve the stale value while revalidating it. When the cache grows beyond its maximum number of entries or its
+ * maximum total weight, the least recently used entries are evicted.
+ * <p>
+ * Reads are lock-free, writes (and evictions) are serialized. This class is thread-safe.
+ *
+ * @param <V> the type of the cached values.
+ */
+public class ConfigurationCache<V> {
+    private final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttl;
+    private final ToLongFunction<V> weigher;
+    private final Consumer<String> removalListener;
+
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+
+    /**
+     * @param maxEntries the maximum number of entries, 0 or less for no maximum.
+     * @param maxWeight  the maximum total weight of all entries, 0 or less for no maximum.
+     * @param ttl        the time-to-live of an entry in milliseconds, 0 or less if entries never expire.
+     * @param weigher    calculates the weight of a value, not null.
+     */
+    public ConfigurationCache(int maxEntries, long maxWeight, long ttl, ToLongFunction<V> weigher) {
+        this(maxEntries, maxWeight, ttl, weigher, key -> {
+        });
+    }
+
+    /**
+     * @param maxEntries      the maximum number of entries, 0 or less for no maximum.
+     * @param maxWeight       the maximum total weight of all entries, 0 or less for no maximum.
+     * @param ttl             the time-to-live of an entry in milliseconds, 0 or less if entries never expire.
+     * @param weigher         calculates the weight of a value, not null.
+     * @param removalListener called with the key of every evicted entry (holding the write lock), not null.
+     */
+    public ConfigurationCache(int maxEntries, long maxWeight, long ttl, ToLongFunction<V> weigher, Consumer<String> removalListener) {
+        Assert.notNull(weigher);
+        Assert.notNull(removalListener);
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttl = ttl;
+        this.weigher = weigher;
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Returns the cached entry, also when it's expired. Records a hit, stale hit or miss.
+     *
+     * @param key the cache key, not null.
+     * @return the entry, or <code>null</code> if not cached.
+     */
+    public Entry<V> get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        if (entry.isExpired()) {
+            staleHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the cached entry, also when it's expired, without recording any statistics.
+     *
+     * @param key the cache key, not null.
+     * @return the entry, or <code>null</code> if not cached.
+     */
+    public Entry<V> peek(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Caches a freshly loaded value, evicting least recently used entries if the cache grows too big.
+     *
+     * @param key      the cache key, not null.
+     * @param value    the value, not null.
+     * @param eTag     the version (ETag) the value was loaded with, optional.
+     * @param loadedAt the time the value was loaded, in milliseconds since epoch.
+     * @param loadTime the time it took to load the value, in nanoseconds, 0 if it was not loaded from the config server.
+     */
+    public void put(String key, V value, String eTag, long loadedAt, long loadTime) {
+        Assert.notNull(value);
+        Entry<V> entry = new Entry<>(value, eTag, loadedAt, ttl > 0 ? loadedAt + ttl : Long.MAX_VALUE, weigher.applyAsLong(value));
+        if (loadTime > 0) {
+            loads.incrementAndGet();
+            totalLoadTime.addAndGet(loadTime);
+        }
+        synchronized (writeLock) {
+            Entry<V> previous = entries.put(key, entry);
+            weight.addAndGet(entry.weight - (previous != null ? previous.weight : 0));
+            evict(key);
+        }
+    }
+
+    /**
+     * Marks the cached value as fresh again, e.g. after the config server reported it's still up to date.
+     *
+     * @param key the cache key, not null.
+     */
+    public void renew(String key) {
+        synchronized (writeLock) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                long now = System.currentTimeMillis();
+                Entry<V> renewed = new Entry<>(entry.value, entry.eTag, now, ttl > 0 ? now + ttl : Long.MAX_VALUE, entry.weight);
+                renewed.lastAccess = entry.lastAccess;
+                entries.put(key, renewed);
+            }
+        }
+    }
+
+    /**
+     * Marks the cached value as expired, so it's revalidated on the next access. The value is still served until then.
+     *
+     * @param key the cache key, not null.
+     */
+    public void expire(String key) {
+        synchronized (writeLock) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && !entry.isExpired()) {
+                Entry<V> expired = new Entry<>(entry.value, entry.eTag, entry.loadedAt, System.currentTimeMillis(), entry.weight);
+                expired.lastAccess = entry.lastAccess;
+                entries.put(key, expired);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            entries.clear();
+            weight.set(0);
+        }
+    }
+
+    //MUST be called holding the write lock
+    private void evict(String keep) {
+        while ((maxEntries > 0 && entries.size() > maxEntries) || (maxWeight > 0 && weight.get() > maxWeight)) {
+            String eldest = null;
+            long eldestAccess = Long.MAX_VALUE;
+            for (Map.Entry<String, Entry<V>> candidate : entries.entrySet()) {
+                if (!candidate.getKey().equals(keep) && candidate.getValue().lastAccess < eldestAccess) {
+                    eldest = candidate.getKey();
+                    eldestAccess = candidate.getValue().lastAccess;
+                }
+            }
+            if (eldest == null) {
+                //only the entry we must keep is left
+                return;
+            }
+            Entry<V> removed = entries.remove(eldest);
+            weight.addAndGet(-removed.weight);
+            evictions.incrementAndGet();
+            removalListener.accept(eldest);
+        }
+    }
+
+    /**
+     * @return the current statistics of this cache.
+     */
+    public Stats getStats() {
+        return new Stats(entries.size(), weight.get(), hits.get(), staleHits.get(), misses.get(), evictions.get(),
+                loads.get(), totalLoadTime.get());
+    }
+
+    /**
+     * A cached value.
+     *
+     * @param <V> the type of the cached value.
+     */
+    public static final class Entry<V> {
+        private final V value;
+        private final String eTag;
+        private final long loadedAt;
+        private final long expiresAt;
+        private final long weight;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Entry(V value, String eTag, long loadedAt, long expiresAt, long weight) {
+            this.value = value;
+            this.eTag = eTag;
+            this.loadedAt = loadedAt;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @return the version (ETag) the value was loaded with, may be null.
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the time the value was loaded, in milliseconds since epoch.
+         */
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+
+        /**
+         * @return <code>true</code> if the time-to-live of this entry has passed and it should be revalidated.
+         */
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    /**
+     * Point in time statistics of a {@link ConfigurationCache}.
+     */
+    public static final class Stats {
+        private final int size;
+        private final long weight;
+        private final long hitCount;
+        private final long staleHitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long loadCount;
+        private final long totalLoadTime;
+
+        Stats(int size, long weight, long hitCount, long staleHitCount, long missCount, long evictionCount,
+              long loadCount, long totalLoadTime) {
+            this.size = size;
+            this.weight = weight;
+            this.hitCount = hitCount;
+            this.staleHitCount = staleHitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.loadCount = loadCount;
+            this.totalLoadTime = totalLoadTime;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getStaleHitCount() {
+            return staleHitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public long getLoadCount() {
+            return loadCount;
+        }
+
+        /**
+         * @return the ratio of requests served from the cache (fresh or stale), 1.0 if there were no requests.
+         */
+        public double getHitRate() {
+            long requests = hitCount + staleHitCount + missCount;
+            return requests == 0 ? 1.0 : (double) (hitCount + staleHitCount) / requests;
+        }
+
+        /**
+         * @return the average time it took to load a value from the config server, in milliseconds.
+         */
+        public double getAverageLoadTime() {
+            return loadCount == 0 ? 0.0 : totalLoadTime / (loadCount * 1000000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[size=%d, weight=%d, hits=%d, staleHits=%d, misses=%d, hitRate=%.2f, evictions=%d, loads=%d, avgLoadTime=%.1fms]",
+                    size, weight, hitCount, staleHitCount, missCount, getHitRate(), evictionCount, loadCount, getAverageLoadTime());
+        }
+    }
+}
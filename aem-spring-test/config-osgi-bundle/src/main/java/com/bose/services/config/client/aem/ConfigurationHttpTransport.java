@@ -0,0 +1,131 @@
+package com.bose.services.config.client.aem;
+
+import org.apache.felix.scr.annotations.*;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared HTTP transport for talking to the config server.
+ * <p>
+ * Keeps a pool of keep-alive connections that is shared by all callers, so refreshing a lot of managed nodes reuses
+ * warm connections instead of opening a new connection for every request.
+ * All calls have connect and read timeouts, so a hanging config server can not block the calling threads forever.
+ * Idle and expired connections are evicted from the pool in the background.
+ */
+@Component(immediate = true, name = "com.bose.services.config.client.aem.ConfigurationHttpTransport")
+@Service(ConfigurationHttpTransport.class)
+public class ConfigurationHttpTransport {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigurationHttpTransport.class);
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    private static final int DEFAULT_READ_TIMEOUT = 10000;
+    private static final int DEFAULT_IDLE_TIMEOUT = 30000;
+    private static final int DEFAULT_EVICTION_INTERVAL = 10000;
+
+    @Property(label = "Max connections", intValue = DEFAULT_MAX_CONNECTIONS)
+    private static final String PROP_MAX_CONNECTIONS = "http.maxConnections";
+    @Property(label = "Connect timeout (ms)", intValue = DEFAULT_CONNECT_TIMEOUT)
+    private static final String PROP_CONNECT_TIMEOUT = "http.connectTimeout";
+    @Property(label = "Read timeout (ms)", intValue = DEFAULT_READ_TIMEOUT)
+    private static final String PROP_READ_TIMEOUT = "http.readTimeout";
+    @Property(label = "Idle connection timeout (ms)", intValue = DEFAULT_IDLE_TIMEOUT)
+    private static final String PROP_IDLE_TIMEOUT = "http.idleTimeout";
+    @Property(label = "Idle connection eviction interval (ms)", intValue = DEFAULT_EVICTION_INTERVAL)
+    private static final String PROP_EVICTION_INTERVAL = "http.evictionInterval";
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private RestTemplate restTemplate;
+    private ScheduledExecutorService evictor;
+
+    @Activate
+    public void activate(ComponentContext componentContext) {
+        int maxConnections = PropertyUtils.getPropertyAsInt(PROP_MAX_CONNECTIONS, componentContext, DEFAULT_MAX_CONNECTIONS);
+        int connectTimeout = PropertyUtils.getPropertyAsInt(PROP_CONNECT_TIMEOUT, componentContext, DEFAULT_CONNECT_TIMEOUT);
+        int readTimeout = PropertyUtils.getPropertyAsInt(PROP_READ_TIMEOUT, componentContext, DEFAULT_READ_TIMEOUT);
+        int idleTimeout = PropertyUtils.getPropertyAsInt(PROP_IDLE_TIMEOUT, componentContext, DEFAULT_IDLE_TIMEOUT);
+        int evictionInterval = PropertyUtils.getPropertyAsInt(PROP_EVICTION_INTERVAL, componentContext, DEFAULT_EVICTION_INTERVAL);
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        //we only talk to the config server, so a single route can use the whole pool
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+        this.connectionManager.setValidateAfterInactivity(idleTimeout / 2);
+        //timeouts MUST be set on the client, the Spring 3.2 request factory setters don't work with HttpClient 4.3+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        this.restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "config-http-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        PoolingHttpClientConnectionManager manager = this.connectionManager;
+        this.evictor.scheduleWithFixedDelay(() -> {
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        logger.info("HTTP transport started (max connections: {}, connect timeout: {}ms, read timeout: {}ms)",
+                new Object[]{maxConnections, connectTimeout, readTimeout});
+    }
+
+    @Deactivate
+    public void deactivate(ComponentContext componentContext) {
+        try {
+            if (evictor != null) {
+                evictor.shutdownNow();
+            }
+            if (httpClient != null) {
+                httpClient.close();
+            }
+        } catch (Exception e) {
+            //ignore, nothing we can do anymore...
+        } finally {
+            evictor = null;
+            httpClient = null;
+            restTemplate = null;
+            connectionManager = null;
+        }
+    }
+
+    /**
+     * @return the shared {@link RestTemplate} backed by the connection pool.
+     */
+    public RestTemplate getRestTemplate() {
+        if (restTemplate == null) {
+            throw new IllegalStateException("HTTP transport is not active");
+        }
+        return restTemplate;
+    }
+
+    /**
+     * Returns the current connection pool statistics (leased, available, pending and max connections).
+     *
+     * @return the pool statistics, or <code>null</code> if the transport is not active.
+     */
+    public PoolStats getPoolStats() {
+        PoolingHttpClientConnectionManager manager = this.connectionManager;
+        return manager != null ? manager.getTotalStats() : null;
+    }
+}
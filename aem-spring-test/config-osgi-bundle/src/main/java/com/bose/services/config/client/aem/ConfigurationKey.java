@@ -0,0 +1,55 @@
+package com.bose.services.config.client.aem;
+
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.util.Arrays;
+
+/**
+ * Identifies a configuration: the configuration name and the additional profiles it is requested with.
+ * Immutable, can be used as a map key.
+ */
+public final class ConfigurationKey {
+    private static final String[] NO_PROFILES = new String[0];
+
+    private final String name;
+    private final String[] profiles;
+    private final String key;
+
+    /**
+     * @param name     the configuration name, not null.
+     * @param profiles the additional profiles, optional.
+     */
+    public ConfigurationKey(String name, String... profiles) {
+        Assert.notNull(name);
+        this.name = name;
+        this.profiles = profiles != null ? profiles.clone() : NO_PROFILES;
+        this.key = name + "#" + StringUtils.arrayToCommaDelimitedString(this.profiles);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getProfiles() {
+        return profiles.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ConfigurationKey && key.equals(((ConfigurationKey) o).key));
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    /**
+     * @return the cache key, <code>name#profile1,profile2</code>.
+     */
+    @Override
+    public String toString() {
+        return key;
+    }
+}
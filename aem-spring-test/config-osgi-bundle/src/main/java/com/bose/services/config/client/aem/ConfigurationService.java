@@ -1,12 +1,95 @@
 package com.bose.services.config.client.aem;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Configuration Service interface for querying configuration on demand.
  *
  */
 public interface ConfigurationService {
-    Properties getProperties(String name, String... additionalProfiles);
+    /**
+     * Returns the (cached) configuration.
+     *
+     * @param name               the configuration name, not null.
+     * @param additionalProfiles the additional profiles, optional.
+     * @return the immutable configuration, shared with other callers.
+     * @throws ConfigurationException when querying the config server fails.
+     */
+    ConfigurationSnapshot getSnapshot(String name, String... additionalProfiles);
+
     boolean refresh(String name, String... additionalProfiles);
+
+    /**
+     * Returns the (cached) configurations for all keys, fetching everything that isn't cached yet in a single call.
+     *
+     * @param keys the configurations to get, not null.
+     * @return the configurations by key. Configurations that could not be resolved by the config server are missing.
+     * @throws ConfigurationException when querying the config server fails.
+     */
+    Map<ConfigurationKey, ConfigurationSnapshot> getSnapshots(Collection<ConfigurationKey> keys);
+
+    /**
+     * Refreshes all given configurations in a single call to the config server.
+     *
+     * @param keys the configurations to refresh, not null.
+     * @return the configurations that changed.
+     * @throws ConfigurationException when querying the config server fails.
+     */
+    Set<ConfigurationKey> refresh(Collection<ConfigurationKey> keys);
+
+    /**
+     * Asynchronous variant of {@link #getSnapshot(String, String...)}, the config server is called on a dedicated
+     * executor instead of the calling thread. Cached configuration is returned as an already completed future.
+     *
+     * @return the future configuration, completed exceptionally with a {@link ConfigurationException} on failure.
+     */
+    CompletableFuture<ConfigurationSnapshot> getSnapshotAsync(String name, String... additionalProfiles);
+
+    /**
+     * Asynchronous variant of {@link #refresh(String, String...)}.
+     *
+     * @return the future result, completed exceptionally with a {@link ConfigurationException} on failure.
+     */
+    CompletableFuture<Boolean> refreshAsync(String name, String... additionalProfiles);
+
+    /**
+     * Asynchronous variant of {@link #getSnapshots(Collection)}.
+     *
+     * @return the future configurations, completed exceptionally with a {@link ConfigurationException} on failure.
+     */
+    CompletableFuture<Map<ConfigurationKey, ConfigurationSnapshot>> getSnapshotsAsync(Collection<ConfigurationKey> keys);
+
+    /**
+     * Asynchronous variant of {@link #refresh(Collection)}.
+     *
+     * @return the future changed configurations, completed exceptionally with a {@link ConfigurationException} on failure.
+     */
+    CompletableFuture<Set<ConfigurationKey>> refreshAsync(Collection<ConfigurationKey> keys);
+
+    /**
+     * @return a mutable copy of the configuration.
+     * @deprecated use {@link #getSnapshot(String, String...)}, it doesn't copy and can't be modified by accident.
+     */
+    @Deprecated
+    default Properties getProperties(String name, String... additionalProfiles) {
+        return getSnapshot(name, additionalProfiles).toProperties();
+    }
+
+    /**
+     * @return mutable copies of the configurations.
+     * @deprecated use {@link #getSnapshots(Collection)}, it doesn't copy and can't be modified by accident.
+     */
+    @Deprecated
+    default Map<ConfigurationKey, Properties> getProperties(Collection<ConfigurationKey> keys) {
+        Map<ConfigurationKey, Properties> result = new LinkedHashMap<>();
+        for (Map.Entry<ConfigurationKey, ConfigurationSnapshot> entry : getSnapshots(keys).entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toProperties());
+        }
+        return result;
+    }
 }
@@ -1,30 +1,75 @@
 package com.bose.services.config.client.aem;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 @Component(name = "com.bose.services.config.client.aem.ConfigurationService")
 @Service(ConfigurationService.class)
 public class ConfigurationServiceImpl implements ConfigurationService {
     private static final Logger logger = LoggerFactory.getLogger(ConfigurationServiceImpl.class);
     private static final String CONFIG_SERVER_URL = "http://localhost:8888/%s/%s";
+    private static final String CONFIG_SERVER_BATCH_URL = "http://localhost:8888/batch";
     private static final String DEFAULT_PROFILE = "default"; //only used if no runmodes are active
+    private static final String DEFAULT_SNAPSHOT_DIRECTORY = "snapshots"; //relative to the bundle's data area
+    private static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+    private static final long DEFAULT_CACHE_MAX_WEIGHT = 20000000L;
+    private static final int DEFAULT_CACHE_TTL = 300;
+    private static final int DEFAULT_ASYNC_THREADS = 4;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 500;
+
+    @Property(label = "Snapshot directory", description = "Directory for the last known good configuration snapshots, defaults to the bundle data area.")
+    private static final String PROP_SNAPSHOT_DIRECTORY = "snapshot.directory";
+    @Property(label = "Cache max entries", description = "Maximum number of cached configurations, 0 for no maximum.", intValue = DEFAULT_CACHE_MAX_ENTRIES)
+    private static final String PROP_CACHE_MAX_ENTRIES = "cache.maxEntries";
+    @Property(label = "Cache max weight", description = "Maximum total size (in characters) of all cached configurations, 0 for no maximum.", longValue = DEFAULT_CACHE_MAX_WEIGHT)
+    private static final String PROP_CACHE_MAX_WEIGHT = "cache.maxWeight";
+    @Property(label = "Cache time-to-live (s)", description = "Time after which a cached configuration is revalidated in the background, 0 to never expire.", intValue = DEFAULT_CACHE_TTL)
+    private static final String PROP_CACHE_TTL = "cache.ttl";
+    @Property(label = "Async threads", description = "Maximum number of threads for asynchronous calls and background revalidation.", intValue = DEFAULT_ASYNC_THREADS)
+    private static final String PROP_ASYNC_THREADS = "async.threads";
+    @Property(label = "Async queue size", description = "Maximum number of queued asynchronous calls, calls beyond that are rejected.", intValue = DEFAULT_ASYNC_QUEUE_SIZE)
+    private static final String PROP_ASYNC_QUEUE_SIZE = "async.queueSize";
 
     @Reference
     private SlingSettingsService slingSettings;
+    @Reference
+    private ConfigurationHttpTransport transport;
     private Set<String> profiles;
-    private Map<String, Properties> configurationCache;
+    private ConfigurationCache<ConfigurationSnapshot> configurationCache;
+    //runs the async API and the background revalidation of expired cache entries, which are served stale meanwhile
+    private InstrumentedExecutor executor;
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+    //concurrent cache misses for the same cache key share a single call to the config server, single or batch
+    private final SingleFlight<ConfigurationSnapshot> fetches = new SingleFlight<>();
+    private ConfigurationSnapshotStore snapshotStore;
+    //every property source is kept once and shared by all cached configurations (views) that include it
+    private final PropertySourceLayerCache layerCache = new PropertySourceLayerCache();
 
     public ConfigurationServiceImpl() {
     }
@@ -37,14 +82,56 @@ public class ConfigurationServiceImpl implements ConfigurationService {
         this.slingSettings = null;
     }
 
+    public void bindTransport(ConfigurationHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    public void unbindTransport(ConfigurationHttpTransport transport) {
+        this.transport = null;
+    }
+
     @Activate
-    public void activate() {
-        this.configurationCache = new ConcurrentHashMap<>();
+    public void activate(ComponentContext componentContext) {
+        this.configurationCache = new ConfigurationCache<>(
+                PropertyUtils.getPropertyAsInt(PROP_CACHE_MAX_ENTRIES, componentContext, DEFAULT_CACHE_MAX_ENTRIES),
+                PropertyUtils.getPropertyAsLong(PROP_CACHE_MAX_WEIGHT, componentContext, DEFAULT_CACHE_MAX_WEIGHT),
+                PropertyUtils.getPropertyAsInt(PROP_CACHE_TTL, componentContext, DEFAULT_CACHE_TTL) * 1000L,
+                ConfigurationServiceImpl::weigh,
+                layerCache::remove);
+        this.executor = new InstrumentedExecutor("config-service",
+                PropertyUtils.getPropertyAsInt(PROP_ASYNC_THREADS, componentContext, DEFAULT_ASYNC_THREADS),
+                PropertyUtils.getPropertyAsInt(PROP_ASYNC_QUEUE_SIZE, componentContext, DEFAULT_ASYNC_QUEUE_SIZE));
         this.profiles = new HashSet<>();
         if (this.slingSettings != null) {
             this.profiles = this.slingSettings.getRunModes();
             logger.info("Setting base configuration profiles to runmode list: {}", StringUtils.collectionToCommaDelimitedString(this.profiles));
         }
+        this.snapshotStore = createSnapshotStore(componentContext);
+    }
+
+    @Deactivate
+    public void deactivate(ComponentContext componentContext) {
+        if (executor != null) {
+            executor.shutdownNow();
+            logger.info("Configuration executor statistics: {}", executor.getStats());
+        }
+        logger.info("Configuration cache statistics: {}, {} property source layers shared by {} views",
+                new Object[]{configurationCache.getStats(), layerCache.getLayerCount(), layerCache.getViewCount()});
+    }
+
+    private ConfigurationSnapshotStore createSnapshotStore(ComponentContext componentContext) {
+        try {
+            String directory = PropertyUtils.getProperty(PROP_SNAPSHOT_DIRECTORY, componentContext, null);
+            File file = StringUtils.hasText(directory) ? new File(directory)
+                    : componentContext.getBundleContext().getDataFile(DEFAULT_SNAPSHOT_DIRECTORY);
+            if (file != null) {
+                return new ConfigurationSnapshotStore(file);
+            }
+            logger.warn("No file system support for bundle data, configuration snapshots are disabled");
+        } catch (ConfigurationException e) {
+            logger.error("Error creating configuration snapshot store, configuration snapshots are disabled", e);
+        }
+        return null;
     }
 
     protected List<String> getFinalProfiles(String... additionalProfiles) {
@@ -64,69 +151,543 @@ public class ConfigurationServiceImpl implements ConfigurationService {
         return result;
     }
 
-    @Override
     /**
      * Refreshes the configuration.
+     * <p>
+     * If the configuration is cached, the version it was fetched with is sent along, so the config server
+     * can answer with a 304 (and no payload) when nothing changed.
+     * Refreshes are never coalesced: a refresh already in flight may have been sent before the change the caller was
+     * notified about, so every caller gets a call to the config server of its own.
      */
+    @Override
     public boolean refresh(String name, String... additionalProfiles) {
-        Properties newProperties = getConfiguration(name, additionalProfiles);
         String cacheKey = getCacheKey(name, additionalProfiles);
-        Properties currentProperties = this.configurationCache.get(cacheKey);
-        if (currentProperties == null || !newProperties.equals(currentProperties)) {
-            this.configurationCache.put(cacheKey, newProperties);
-            return true;
-        } else {
+        ConfigurationCache.Entry<ConfigurationSnapshot> current = this.configurationCache.peek(cacheKey);
+        String eTag = current != null ? current.getETag() : null;
+        FetchResult result = getConfiguration(name, eTag, additionalProfiles);
+        if (result.isNotModified()) {
+            logger.info("Configuration '{}' not modified since version {}", cacheKey, eTag);
+            this.configurationCache.renew(cacheKey);
             return false;
         }
+        ConfigurationSnapshot configuration = cache(new ConfigurationKey(name, additionalProfiles), result);
+        return current == null || !configuration.equals(current.getValue());
     }
 
+    /**
+     * Returns the (cached) configuration.
+     * <p>
+     * On a cache miss, concurrent callers for the same cache key share a single call to the config server,
+     * instead of each sending their own identical request.
+     * If the config server fails and there is a last known good snapshot of the configuration on disk, that is used
+     * instead, so e.g. startup doesn't depend on the config server being available. A configuration served from a
+     * snapshot is revalidated on the next access.
+     * <p>
+     * Cached configuration that has expired is still returned, but revalidated in the background.
+     */
     @Override
-    public Properties getProperties(String name, String... additionalProfiles) {
+    public ConfigurationSnapshot getSnapshot(String name, String... additionalProfiles) {
         String cacheKey = getCacheKey(name, additionalProfiles);
-        if (!this.configurationCache.containsKey(cacheKey)) {
-            this.configurationCache.put(cacheKey, getConfiguration(name, additionalProfiles));
+        ConfigurationCache.Entry<ConfigurationSnapshot> entry = this.configurationCache.get(cacheKey);
+        if (entry != null) {
+            if (entry.isExpired()) {
+                revalidate(cacheKey, name, additionalProfiles);
+            }
+            return entry.getValue();
+        }
+        ConfigurationSnapshot configuration = fetches.execute(cacheKey, () -> {
+            //another caller might have filled the cache between our miss and becoming the leader
+            ConfigurationCache.Entry<ConfigurationSnapshot> cached = this.configurationCache.peek(cacheKey);
+            if (cached != null) {
+                return cached.getValue();
+            }
+            ConfigurationKey key = new ConfigurationKey(name, additionalProfiles);
+            try {
+                return cache(key, getConfiguration(name, null, additionalProfiles));
+            } catch (ConfigurationException e) {
+                FetchResult snapshot = readSnapshot(key);
+                if (snapshot == null) {
+                    throw e;
+                }
+                return cacheSnapshot(cacheKey, snapshot, e);
+            }
+        });
+        if (configuration == null) {
+            //we joined a batch call the config server couldn't resolve this configuration in
+            throw new ConfigurationException("Config server could not resolve configuration '%s'", cacheKey);
+        }
+        return configuration;
+    }
+
+    private void revalidate(String cacheKey, String name, String[] additionalProfiles) {
+        if (!revalidating.add(cacheKey)) {
+            return; //already scheduled
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh(name, additionalProfiles);
+                } catch (ConfigurationException e) {
+                    //keep serving what we have, and don't retry on every access
+                    logger.warn("Error revalidating configuration '" + cacheKey + "', keeping the cached version.", e);
+                    configurationCache.renew(cacheKey);
+                } finally {
+                    revalidating.remove(cacheKey);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.remove(cacheKey);
+        }
+    }
+
+    @Override
+    public CompletableFuture<ConfigurationSnapshot> getSnapshotAsync(String name, String... additionalProfiles) {
+        ConfigurationCache.Entry<ConfigurationSnapshot> entry = this.configurationCache.peek(getCacheKey(name, additionalProfiles));
+        if (entry != null && !entry.isExpired()) {
+            //no need to hop threads for a cache hit (the synchronous call still records the statistics)
+            return CompletableFuture.completedFuture(getSnapshot(name, additionalProfiles));
+        }
+        return supplyAsync(() -> getSnapshot(name, additionalProfiles));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> refreshAsync(String name, String... additionalProfiles) {
+        return supplyAsync(() -> refresh(name, additionalProfiles));
+    }
+
+    @Override
+    public CompletableFuture<Map<ConfigurationKey, ConfigurationSnapshot>> getSnapshotsAsync(Collection<ConfigurationKey> keys) {
+        return supplyAsync(() -> getSnapshots(keys));
+    }
+
+    @Override
+    public CompletableFuture<Set<ConfigurationKey>> refreshAsync(Collection<ConfigurationKey> keys) {
+        return supplyAsync(() -> refresh(keys));
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new ConfigurationException("Too many pending configuration calls", e));
+            return future;
+        }
+    }
+
+    /**
+     * @return the current statistics of the executor running the async calls and background revalidation.
+     */
+    public InstrumentedExecutor.Stats getExecutorStats() {
+        return executor.getStats();
+    }
+
+    /**
+     * @return the current statistics of the configuration cache.
+     */
+    public ConfigurationCache.Stats getCacheStats() {
+        return configurationCache.getStats();
+    }
+
+    /**
+     * @return the number of distinct property source layers the cached configurations are composed of.
+     */
+    public int getLayerCount() {
+        return layerCache.getLayerCount();
+    }
+
+    /**
+     * @return the number of cache misses that resulted in a call to the config server.
+     */
+    public long getFetchCount() {
+        return fetches.getExecutedCount();
+    }
+
+    /**
+     * @return the number of cache misses that were coalesced into a call already in flight.
+     */
+    public long getCoalescedCount() {
+        return fetches.getCoalescedCount();
+    }
+
+    /**
+     * Returns the (cached) configurations.
+     * <p>
+     * Cached configurations are handled like {@link #getSnapshot(String, String...)}, everything that isn't cached
+     * is fetched with a single batch call to the config server. If that fails, the last known good snapshots on disk
+     * are used instead, the call only fails if one of the configurations has no snapshot.
+     * <p>
+     * Just like for {@link #getSnapshot(String, String...)}, configurations another caller is already fetching are
+     * waited for instead of being fetched again.
+     */
+    @Override
+    public Map<ConfigurationKey, ConfigurationSnapshot> getSnapshots(Collection<ConfigurationKey> keys) {
+        Map<ConfigurationKey, ConfigurationSnapshot> result = new LinkedHashMap<>();
+        List<ConfigurationKey> misses = new ArrayList<>();
+        for (ConfigurationKey key : keys) {
+            String cacheKey = key.toString();
+            ConfigurationCache.Entry<ConfigurationSnapshot> entry = this.configurationCache.get(cacheKey);
+            if (entry != null) {
+                if (entry.isExpired()) {
+                    revalidate(cacheKey, key.getName(), key.getProfiles());
+                }
+                result.put(key, entry.getValue());
+            } else if (!misses.contains(key)) {
+                misses.add(key);
+            }
+        }
+        if (!misses.isEmpty()) {
+            result.putAll(fetches.executeAll(misses, this::fetchAll));
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the configurations this caller leads the fetch for, see {@link SingleFlight#executeAll}.
+     */
+    private Map<ConfigurationKey, ConfigurationSnapshot> fetchAll(List<ConfigurationKey> keys) {
+        Map<ConfigurationKey, ConfigurationSnapshot> result = new LinkedHashMap<>();
+        List<ConfigurationKey> misses = new ArrayList<>();
+        for (ConfigurationKey key : keys) {
+            //another caller might have filled the cache between our miss and becoming the leader
+            ConfigurationCache.Entry<ConfigurationSnapshot> cached = this.configurationCache.peek(key.toString());
+            if (cached != null) {
+                result.put(key, cached.getValue());
+            } else {
+                misses.add(key);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        Map<ConfigurationKey, FetchResult> fetched;
+        try {
+            fetched = getConfigurations(misses, Collections.<ConfigurationKey, String>emptyMap());
+        } catch (ConfigurationException e) {
+            for (ConfigurationKey key : misses) {
+                FetchResult snapshot = readSnapshot(key);
+                if (snapshot == null) {
+                    throw e;
+                }
+                result.put(key, cacheSnapshot(key.toString(), snapshot, e));
+            }
+            return result;
+        }
+        for (Map.Entry<ConfigurationKey, FetchResult> entry : fetched.entrySet()) {
+            result.put(entry.getKey(), cache(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Refreshes the configurations with a single batch call to the config server.
+     * <p>
+     * The versions of the cached configurations are sent along, configurations that are still at that version are
+     * returned without payload by the config server.
+     */
+    @Override
+    public Set<ConfigurationKey> refresh(Collection<ConfigurationKey> keys) {
+        Map<ConfigurationKey, String> eTags = new HashMap<>();
+        for (ConfigurationKey key : keys) {
+            ConfigurationCache.Entry<ConfigurationSnapshot> current = this.configurationCache.peek(key.toString());
+            if (current != null && current.getETag() != null) {
+                eTags.put(key, current.getETag());
+            }
+        }
+        Map<ConfigurationKey, FetchResult> fetched = getConfigurations(keys, eTags);
+        Set<ConfigurationKey> changed = new LinkedHashSet<>();
+        for (Map.Entry<ConfigurationKey, FetchResult> entry : fetched.entrySet()) {
+            String cacheKey = entry.getKey().toString();
+            FetchResult result = entry.getValue();
+            if (result.isNotModified()) {
+                this.configurationCache.renew(cacheKey);
+                continue;
+            }
+            ConfigurationCache.Entry<ConfigurationSnapshot> current = this.configurationCache.peek(cacheKey);
+            ConfigurationSnapshot configuration = cache(entry.getKey(), result);
+            if (current == null || !configuration.equals(current.getValue())) {
+                changed.add(entry.getKey());
+            }
         }
-        return this.configurationCache.get(cacheKey);
+        logger.info("Refreshed {} configuration(s), {} changed", fetched.size(), changed.size());
+        return changed;
     }
 
     private String getCacheKey(String name, String[] additionalProfiles) {
-        return name + "#" + StringUtils.arrayToCommaDelimitedString(additionalProfiles);
+        return new ConfigurationKey(name, additionalProfiles).toString();
     }
 
-    protected Properties getConfiguration(String name, String... additionalProfiles) throws ConfigurationException {
+    /**
+     * Snapshots outlive the run modes they were fetched with, so they're keyed by the final profiles (run modes
+     * included). Otherwise a restart with other run modes would be served, and revalidate, the snapshot of another.
+     */
+    private String getSnapshotKey(ConfigurationKey key) {
+        return new ConfigurationKey(key.getName(), StringUtils.toStringArray(getFinalProfiles(key.getProfiles()))).toString();
+    }
+
+    private ConfigurationSnapshot cache(ConfigurationKey key, FetchResult result) {
+        ConfigurationSnapshot configuration = cacheInMemory(key.toString(), result);
+        if (snapshotStore != null) {
+            snapshotStore.write(getSnapshotKey(key), result.getETag(), configuration);
+        }
+        return configuration;
+    }
+
+    private ConfigurationSnapshot cacheInMemory(String cacheKey, FetchResult result) {
+        ConfigurationSnapshot configuration = result.getConfiguration();
+        if (result.getEnvironment() != null) {
+            PropertySourceLayerCache.Update update = layerCache.update(cacheKey, result.getEnvironment().getVersion(),
+                    result.getEnvironment().getLayers());
+            configuration = update.getView();
+            for (String invalidated : update.getInvalidated()) {
+                //includes a property source that changed, keep serving it but revalidate it on the next access
+                this.configurationCache.expire(invalidated);
+            }
+            if (!update.getInvalidated().isEmpty()) {
+                logger.info("Property sources of '{}' changed, invalidated {}", cacheKey, update.getInvalidated());
+            }
+        }
+        this.configurationCache.put(cacheKey, configuration, result.getETag(), result.getLoadedAt(), result.getLoadTime());
+        return configuration;
+    }
+
+    /**
+     * Caches a last known good snapshot, used because the config server failed. It's expired right away, so it's
+     * revalidated on the next access.
+     */
+    private ConfigurationSnapshot cacheSnapshot(String cacheKey, FetchResult snapshot, ConfigurationException cause) {
+        logger.warn("Using last known good configuration snapshot for '{}' ({}), the config server failed: {}",
+                new Object[]{cacheKey, snapshot.getETag(), cause.getMessage()});
+        ConfigurationSnapshot configuration = cacheInMemory(cacheKey, snapshot);
+        this.configurationCache.expire(cacheKey);
+        return configuration;
+    }
+
+    private FetchResult readSnapshot(ConfigurationKey key) {
+        ConfigurationSnapshotStore.Snapshot snapshot = snapshotStore != null ? snapshotStore.read(getSnapshotKey(key)) : null;
+        return snapshot != null ? new FetchResult(snapshot.getConfiguration(), snapshot.getVersion(), snapshot.getTimestamp(), 0) : null;
+    }
+
+    /**
+     * Weight of a configuration in the cache, approximated by the number of characters of all its keys and values.
+     */
+    private static long weigh(ConfigurationSnapshot configuration) {
+        long weight = 0;
+        for (Map.Entry<String, String> entry : configuration) {
+            weight += entry.getKey().length() + entry.getValue().length();
+        }
+        return weight;
+    }
+
+    /**
+     * Fetches the configuration from the config server.
+     *
+     * @param name               the configuration name.
+     * @param eTag               the ETag of the version we already have, if any, optional.
+     * @param additionalProfiles the additional profiles.
+     * @return the fetched configuration, or a not modified result if the config server still has the version for the given ETag.
+     * @throws ConfigurationException when querying the config server fails.
+     */
+    protected FetchResult getConfiguration(String name, String eTag, String... additionalProfiles) throws ConfigurationException {
         try {
-            Properties dictionary = new Properties();
-            RestTemplate restTemplate = new RestTemplate();
+            long start = System.nanoTime();
+            RestTemplate restTemplate = transport.getRestTemplate();
             String profileList = StringUtils.collectionToCommaDelimitedString(getFinalProfiles(additionalProfiles));
             logger.info("Querying service for configuration with name '{}' and profiles '{}'", name, profileList);
-            RemoteConfig response = restTemplate.getForObject(
-                    String.format(CONFIG_SERVER_URL, name, profileList),
-                    RemoteConfig.class);
-            if (response != null) {
-                //TODO: handle ecryption/decryption etc. Investigate aem's crypto service to see if we can store encrypted keys instead of plain text passes etc.
-                Map<String, String> properties = new HashMap<>();
-                for (PropertySource source : response.getPropertySources()) {
-                    @SuppressWarnings("unchecked")
-                    Map<String, String> map = (Map<String, String>) source
-                            .getSource();
-                    for (Map.Entry<String, String> entry : map.entrySet()) {
-                        if (!properties.containsKey(entry.getKey())) {
-                            properties.putIfAbsent(entry.getKey(), entry.getValue());
+            //the body is streamed straight into the flattened properties, see EnvironmentReader
+            return restTemplate.execute(String.format(CONFIG_SERVER_URL, name, profileList), HttpMethod.GET,
+                    request -> {
+                        request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                        if (eTag != null) {
+                            request.getHeaders().setIfNoneMatch(eTag);
+                        }
+                    },
+                    response -> {
+                        if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                            return FetchResult.NOT_MODIFIED;
+                        }
+                        EnvironmentReader.Environment environment = EnvironmentReader.read(response.getBody());
+                        log(name, environment);
+                        String responseETag = response.getHeaders().getETag();
+                        if (responseETag == null) {
+                            responseETag = toETag(environment.getVersion());
                         }
-                    }
+                        return new FetchResult(environment, responseETag, System.currentTimeMillis(), System.nanoTime() - start);
+                    });
+        } catch (Throwable e) {
+            throw new ConfigurationException("Error while quering config service for configuration", e);
+        }
+    }
+
+    /**
+     * Fetches many configurations from the config server with a single batch call.
+     *
+     * @param keys  the configurations to fetch.
+     * @param eTags the ETags of the versions we already have, by key. Configurations still at that version are returned
+     *              as not modified.
+     * @return the fetched configurations by key, configurations the config server could not resolve are missing.
+     * @throws ConfigurationException when querying the config server fails.
+     */
+    protected Map<ConfigurationKey, FetchResult> getConfigurations(Collection<ConfigurationKey> keys, Map<ConfigurationKey, String> eTags) throws ConfigurationException {
+        List<ConfigurationKey> requested = new ArrayList<>(new LinkedHashSet<>(keys));
+        if (requested.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        try {
+            long start = System.nanoTime();
+            logger.info("Querying service for {} configuration(s) in batch", requested.size());
+            return transport.getRestTemplate().execute(CONFIG_SERVER_BATCH_URL, HttpMethod.POST,
+                    request -> {
+                        request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+                        request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                        try (JsonGenerator generator = EnvironmentReader.createGenerator(request.getBody())) {
+                            generator.writeStartArray();
+                            for (ConfigurationKey key : requested) {
+                                generator.writeStartObject();
+                                generator.writeStringField("name", key.getName());
+                                generator.writeStringField("profiles", StringUtils.collectionToCommaDelimitedString(getFinalProfiles(key.getProfiles())));
+                                String version = toVersion(eTags.get(key));
+                                if (version != null) {
+                                    generator.writeStringField("version", version);
+                                }
+                                generator.writeEndObject();
+                            }
+                            generator.writeEndArray();
+                        }
+                    },
+                    response -> readBatch(response.getBody(), requested, eTags, start));
+        } catch (Throwable e) {
+            throw new ConfigurationException("Error while quering config service for configurations in batch", e);
+        }
+    }
+
+    private Map<ConfigurationKey, FetchResult> readBatch(InputStream body, List<ConfigurationKey> requested,
+                                                         Map<ConfigurationKey, String> eTags, long start) throws IOException {
+        Map<ConfigurationKey, FetchResult> result = new LinkedHashMap<>();
+        try (JsonParser parser = EnvironmentReader.createParser(body)) {
+            EnvironmentReader.expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+            List<EnvironmentReader.Environment> fetched = new ArrayList<>(requested.size());
+            for (ConfigurationKey key : requested) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.VALUE_NULL) {
+                    logger.warn("Config server could not resolve configuration '{}'", key);
+                    fetched.add(null);
+                    continue;
                 }
-                dictionary.putAll(properties);
-                logger.info("Retrieved {} properties for '{}'", properties.size(), name);
-                if (logger.isDebugEnabled()) {
-                    for (String key : properties.keySet()) {
-                        //TODO: boo boo for passwords etc, not even on debug!
-                        logger.debug("** {} = {}", key, properties.get(key));
-                    }
+                EnvironmentReader.expect(parser, token, JsonToken.START_OBJECT);
+                fetched.add(EnvironmentReader.read(parser));
+            }
+            EnvironmentReader.expect(parser, parser.nextToken(), JsonToken.END_ARRAY);
+            long loadedAt = System.currentTimeMillis();
+            //spread the load time over all configurations, so the cache's average load time stays per configuration
+            long loadTime = (System.nanoTime() - start) / requested.size();
+            for (int i = 0; i < requested.size(); i++) {
+                ConfigurationKey key = requested.get(i);
+                EnvironmentReader.Environment environment = fetched.get(i);
+                if (environment == null) {
+                    continue;
+                }
+                String version = environment.getVersion();
+                if (version != null && version.equals(toVersion(eTags.get(key)))) {
+                    result.put(key, FetchResult.NOT_MODIFIED);
+                } else {
+                    log(key.getName(), environment);
+                    result.put(key, new FetchResult(environment, toETag(version), loadedAt, loadTime));
                 }
             }
-            return dictionary;
-        } catch (Throwable e) {
-            throw new ConfigurationException("Error while quering config service for configuration", e);
+        }
+        return result;
+    }
+
+    private void log(String name, EnvironmentReader.Environment environment) {
+        //TODO: handle ecryption/decryption etc. Investigate aem's crypto service to see if we can store encrypted keys instead of plain text passes etc.
+        logger.info("Retrieved {} property sources for '{}'", environment.getLayers().size(), name);
+        if (logger.isDebugEnabled()) {
+            for (PropertySourceLayer layer : environment.getLayers()) {
+                for (Map.Entry<String, String> entry : layer.getProperties()) {
+                    //TODO: boo boo for passwords etc, not even on debug!
+                    logger.debug("** {} = {} ({})", new Object[]{entry.getKey(), entry.getValue(), layer.getName()});
+                }
+            }
+        }
+    }
+
+    private static String toETag(String version) {
+        return version != null ? "\"" + version + "\"" : null;
+    }
+
+    private static String toVersion(String eTag) {
+        if (eTag == null) {
+            return null;
+        }
+        String version = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+        if (version.length() >= 2 && version.startsWith("\"") && version.endsWith("\"")) {
+            version = version.substring(1, version.length() - 1);
+        }
+        return version;
+    }
+
+    /**
+     * Result of fetching a configuration from the config server.
+     */
+    protected static final class FetchResult {
+        static final FetchResult NOT_MODIFIED = new FetchResult(null, null, null, 0, 0);
+        private final ConfigurationSnapshot configuration;
+        private final EnvironmentReader.Environment environment;
+        private final String eTag;
+        private final long loadedAt;
+        private final long loadTime;
+
+        /**
+         * Result for a configuration restored from a snapshot.
+         */
+        FetchResult(ConfigurationSnapshot configuration, String eTag, long loadedAt, long loadTime) {
+            this(configuration, null, eTag, loadedAt, loadTime);
+        }
+
+        /**
+         * Result for a configuration fetched from the config server, it still needs to be composed from its layers.
+         */
+        FetchResult(EnvironmentReader.Environment environment, String eTag, long loadedAt, long loadTime) {
+            this(null, environment, eTag, loadedAt, loadTime);
+        }
+
+        private FetchResult(ConfigurationSnapshot configuration, EnvironmentReader.Environment environment, String eTag, long loadedAt, long loadTime) {
+            this.configuration = configuration;
+            this.environment = environment;
+            this.eTag = eTag;
+            this.loadedAt = loadedAt;
+            this.loadTime = loadTime;
+        }
+
+        public boolean isNotModified() {
+            return configuration == null && environment == null;
+        }
+
+        /**
+         * @return the configuration restored from a snapshot, null if it was fetched from the config server.
+         */
+        public ConfigurationSnapshot getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * @return the environment fetched from the config server, null if it was restored from a snapshot.
+         */
+        public EnvironmentReader.Environment getEnvironment() {
+            return environment;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+
+        public long getLoadTime() {
+            return loadTime;
         }
     }
 }
@@ -0,0 +1,339 @@
+package com.bose.services.config.client.aem;
+
+import org.springframework.util.Assert;
+import org.springframework.util.PropertyPlaceholderHelper;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable snapshot of a configuration, the flattened properties of a configuration at a certain version.
+ * <p>
+ * Keys and values are kept in a compact open-addressing table (two parallel arrays, linear probing), lookups need no
+ * locking and allocate nothing. Because snapshots are immutable, they can safely be shared by the cache and all its
+ * callers.
+ * <p>
+ * Every snapshot has an order-independent 64 bit hash of its content, computed once when it's built. Snapshots with
+ * different content are told apart in O(1) by comparing sizes and content hashes, only snapshots that (almost
+ * certainly) have the same content are compared entry by entry.
+ */
+public final class ConfigurationSnapshot implements PropertyPlaceholderHelper.PlaceholderResolver, Iterable<Map.Entry<String, String>> {
+    public static final ConfigurationSnapshot EMPTY = new Builder().build(null);
+
+    private final String[] keys;
+    private final String[] values;
+    private final int size;
+    private final String version;
+    private final long contentHash;
+
+    private ConfigurationSnapshot(String[] keys, String[] values, int size, String version) {
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+        this.version = version;
+        long hash = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                hash += mix(((long) keys[i].hashCode() << 32) ^ (values[i].hashCode() & 0xffffffffL));
+            }
+        }
+        this.contentHash = hash;
+    }
+
+    /**
+     * Creates a snapshot with a copy of the given properties. Keys and values are converted to strings, <code>null</code>
+     * values are ignored.
+     *
+     * @param version    the version of the configuration, optional.
+     * @param properties the properties, not null.
+     * @return the snapshot.
+     */
+    public static ConfigurationSnapshot of(String version, Map<?, ?> properties) {
+        Assert.notNull(properties);
+        Builder builder = new Builder(properties.size());
+        for (Map.Entry<?, ?> entry : properties.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                builder.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+        }
+        return builder.build(version);
+    }
+
+    /**
+     * @param key the property key, not null.
+     * @return the value, or <code>null</code> if there is no such property.
+     */
+    public String get(String key) {
+        int mask = keys.length - 1;
+        for (int i = index(key, mask); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String resolvePlaceholder(String placeholderName) {
+        return get(placeholderName);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the version of the configuration as reported by the config server, may be null.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the order-independent hash of all keys and values.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Calls the action for every property, in no particular order.
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return new Iterator<Map.Entry<String, String>>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < keys.length && keys[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < keys.length;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(keys[next], values[next]);
+                next = advance(next + 1);
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Adapter for code that still works with {@link Properties}.
+     *
+     * @return a new, mutable copy of this snapshot as {@link Properties}.
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        forEach(properties::setProperty);
+        return properties;
+    }
+
+    /**
+     * Two snapshots are equal if they have the same properties, the version is not taken into account.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ConfigurationSnapshot)) {
+            return false;
+        }
+        ConfigurationSnapshot other = (ConfigurationSnapshot) o;
+        if (size != other.size || contentHash != other.contentHash) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && !values[i].equals(other.get(keys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares this snapshot with a previous snapshot of the same configuration.
+     *
+     * @param previous the previous snapshot, not null.
+     * @return the keys that were added, removed or have a different value, empty if the snapshots are equal.
+     */
+    public Set<String> changedKeys(ConfigurationSnapshot previous) {
+        Assert.notNull(previous);
+        if (equals(previous)) {
+            return Collections.emptySet();
+        }
+        Set<String> changed = new HashSet<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && !values[i].equals(previous.get(keys[i]))) {
+                changed.add(keys[i]);
+            }
+        }
+        for (int i = 0; i < previous.keys.length; i++) {
+            if (previous.keys[i] != null && !containsKey(previous.keys[i])) {
+                changed.add(previous.keys[i]);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (contentHash ^ (contentHash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[Configuration snapshot: version %s, %d properties]", version, size);
+    }
+
+    private static int index(String key, int mask) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    //murmur3 finalizer, spreads the entry hashes before they are summed
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Builds a {@link ConfigurationSnapshot}, filling the open-addressing table directly so building needs no
+     * intermediate map. Not thread-safe, a builder can be reused after {@link #build(String)}.
+     */
+    public static final class Builder {
+        private static final int MIN_CAPACITY = 16;
+        private String[] keys;
+        private String[] values;
+        private int size;
+
+        public Builder() {
+            this(0);
+        }
+
+        /**
+         * @param expectedSize the expected number of properties.
+         */
+        public Builder(int expectedSize) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            this.keys = new String[capacity];
+            this.values = new String[capacity];
+        }
+
+        public boolean containsKey(String key) {
+            int mask = keys.length - 1;
+            for (int i = index(key, mask); keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds a property, replacing the value if the key is already present.
+         *
+         * @param key   the key, not null.
+         * @param value the value, not null.
+         * @return this builder.
+         */
+        public Builder put(String key, String value) {
+            Assert.notNull(key);
+            Assert.notNull(value);
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            if (insert(keys, values, key, value)) {
+                size++;
+            }
+            return this;
+        }
+
+        /**
+         * @param version the version of the configuration, optional.
+         * @return the snapshot with all properties added so far.
+         */
+        public ConfigurationSnapshot build(String version) {
+            ConfigurationSnapshot snapshot = new ConfigurationSnapshot(keys, values, size, version);
+            //the snapshot owns the arrays now
+            this.keys = new String[MIN_CAPACITY];
+            this.values = new String[MIN_CAPACITY];
+            this.size = 0;
+            return snapshot;
+        }
+
+        private void resize() {
+            String[] newKeys = new String[keys.length * 2];
+            String[] newValues = new String[values.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    insert(newKeys, newValues, keys[i], values[i]);
+                }
+            }
+            this.keys = newKeys;
+            this.values = newValues;
+        }
+
+        //returns true if the key was added, false if the value of an existing key was replaced
+        private static boolean insert(String[] keys, String[] values, String key, String value) {
+            int mask = keys.length - 1;
+            int i = index(key, mask);
+            while (keys[i] != null) {
+                if (keys[i].equals(key)) {
+                    values[i] = value;
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            return true;
+        }
+    }
+}
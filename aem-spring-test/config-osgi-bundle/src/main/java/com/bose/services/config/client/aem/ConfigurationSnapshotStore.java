@@ -0,0 +1,233 @@
+package com.bose.services.config.client.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Local on-disk store with the last known good version of every fetched configuration.
+ * <p>
+ * Every configuration fetched from the config server is written to its own file, keyed by the configuration name and
+ * profiles, together with the version (ETag) it was fetched with. When the config server is slow or down (e.g. during
+ * startup), configuration can be served from this store instead.
+ * <p>
+ * Files are written to a temporary file of their own first and atomically moved in place, so a crash never leaves a
+ * half written snapshot behind, and concurrent writers of the same configuration never write into each other's file.
+ * Every file ends with a CRC32 checksum of its content, corrupt files are ignored and removed.
+ */
+public class ConfigurationSnapshotStore {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigurationSnapshotStore.class);
+    private static final int MAGIC = 0xC0F16501;
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".snapshot";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    private final File directory;
+
+    /**
+     * Creates a new store in the given directory, the directory is created if it doesn't exist yet.
+     *
+     * @param directory the directory to keep the snapshots in, not null.
+     * @throws ConfigurationException when the directory can not be created.
+     */
+    public ConfigurationSnapshotStore(File directory) throws ConfigurationException {
+        Assert.notNull(directory);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new ConfigurationException("Could not create configuration snapshot directory '%s'", directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        deleteTemporaryFiles();
+        logger.info("Using configuration snapshot store at '{}'", directory.getAbsolutePath());
+    }
+
+    /**
+     * Stores a snapshot of the configuration, replacing the stored snapshot if any.
+     * Failures are logged but never propagated, the store is a fallback only.
+     *
+     * @param cacheKey      the key of the configuration (name and profiles), not null.
+     * @param version       the version (ETag) of the configuration, optional.
+     * @param configuration the configuration, not null.
+     */
+    public void write(String cacheKey, String version, ConfigurationSnapshot configuration) {
+        File file = getFile(cacheKey);
+        File tmp = null;
+        try {
+            tmp = Files.createTempFile(directory.toPath(), file.getName(), TMP_EXTENSION).toFile();
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            try {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, cacheKey);
+                writeString(out, version);
+                writeString(out, configuration.getVersion());
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(configuration.size());
+                for (Map.Entry<String, String> entry : configuration) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+                out.flush();
+                out.writeLong(checked.getChecksum().getValue());
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write configuration snapshot for '{}'", cacheKey, e);
+            if (tmp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the stored snapshot of the configuration.
+     *
+     * @param cacheKey the key of the configuration (name and profiles), not null.
+     * @return the snapshot, or <code>null</code> if there is no (valid) snapshot for the key.
+     */
+    public Snapshot read(String cacheKey) {
+        File file = getFile(cacheKey);
+        if (!file.isFile()) {
+            return null;
+        }
+        //no length read from the file can exceed the file itself, so a corrupt length never allocates more than that
+        long limit = file.length();
+        try {
+            InputStream fileIn = new BufferedInputStream(new FileInputStream(file));
+            try {
+                CheckedInputStream checked = new CheckedInputStream(fileIn, new CRC32());
+                DataInputStream in = new DataInputStream(checked);
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Unknown snapshot format");
+                }
+                int format = in.readInt();
+                if (format != FORMAT_VERSION) {
+                    throw new IOException("Unknown snapshot format version " + format);
+                }
+                String key = readString(in, limit);
+                String version = readString(in, limit);
+                String configurationVersion = readString(in, limit);
+                long timestamp = in.readLong();
+                int size = in.readInt();
+                //every entry takes at least the two lengths of its key and value
+                if (size < 0 || size > limit / 8) {
+                    throw new IOException("Invalid number of properties " + size);
+                }
+                ConfigurationSnapshot.Builder properties = new ConfigurationSnapshot.Builder(size);
+                for (int i = 0; i < size; i++) {
+                    properties.put(readString(in, limit), readString(in, limit));
+                }
+                long checksum = checked.getChecksum().getValue();
+                if (new DataInputStream(fileIn).readLong() != checksum || !cacheKey.equals(key)) {
+                    throw new IOException("Checksum or key mismatch");
+                }
+                return new Snapshot(version, timestamp, properties.build(configurationVersion));
+            } finally {
+                fileIn.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring corrupt configuration snapshot '{}'", file.getAbsolutePath(), e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    private File getFile(String cacheKey) {
+        try {
+            return new File(directory, URLEncoder.encode(cacheKey, "UTF-8") + EXTENSION);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Removes the temporary files left behind by writes that never completed, e.g. because of a crash.
+     */
+    private void deleteTemporaryFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(TMP_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > limit) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A configuration snapshot read from the store.
+     */
+    public static final class Snapshot {
+        private final String version;
+        private final long timestamp;
+        private final ConfigurationSnapshot configuration;
+
+        Snapshot(String version, long timestamp, ConfigurationSnapshot configuration) {
+            this.version = version;
+            this.timestamp = timestamp;
+            this.configuration = configuration;
+        }
+
+        /**
+         * @return the version (ETag) the configuration was fetched with, may be null.
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the time the snapshot was written, in milliseconds since epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public ConfigurationSnapshot getConfiguration() {
+            return configuration;
+        }
+    }
+}
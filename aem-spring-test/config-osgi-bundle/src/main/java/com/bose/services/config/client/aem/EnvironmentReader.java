@@ -0,0 +1,170 @@
+package com.bose.services.config.client.aem;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming reader for the environments returned by the config server.
+ * <p>
+ * Reads the <code>propertySources</code> token by token, straight into one {@link ConfigurationSnapshot} per property
+ * source, without building an object tree or intermediate maps. The layers are returned in the order of the config
+ * server, most specific first, see {@link PropertySourceLayerCache} for composing them.
+ * <p>
+ * Scalar values (strings, numbers, booleans) are read as text, <code>null</code>, object and array values are skipped.
+ * This class is thread-safe.
+ */
+public final class EnvironmentReader {
+    private static final String FIELD_VERSION = "version";
+    private static final String FIELD_PROPERTY_SOURCES = "propertySources";
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_SOURCE = "source";
+    //JsonFactory is thread-safe and expensive to create, share it
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private EnvironmentReader() {
+    }
+
+    public static JsonParser createParser(InputStream in) throws IOException {
+        return JSON_FACTORY.createParser(in);
+    }
+
+    /**
+     * @param out the stream to write to, it's not closed when the generator is closed.
+     */
+    public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return JSON_FACTORY.createGenerator(out);
+    }
+
+    /**
+     * Reads a single environment document.
+     *
+     * @param in the response body, not null.
+     * @return the environment, without layers if the body is empty.
+     * @throws IOException when the body can not be read or is not a valid environment.
+     */
+    public static Environment read(InputStream in) throws IOException {
+        try (JsonParser parser = createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return new Environment(null, Collections.<PropertySourceLayer>emptyList());
+            }
+            expect(parser, token, JsonToken.START_OBJECT);
+            return read(parser);
+        }
+    }
+
+    /**
+     * Reads the environment object the parser is positioned at.
+     *
+     * @param parser the parser, positioned on the {@link JsonToken#START_OBJECT} of the environment. When this method
+     *               returns, it's positioned on the matching {@link JsonToken#END_OBJECT}.
+     * @return the environment.
+     * @throws IOException when the environment can not be read.
+     */
+    public static Environment read(JsonParser parser) throws IOException {
+        List<PropertySourceLayer> layers = new ArrayList<>();
+        String version = null;
+        while (nextToken(parser) == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = nextToken(parser);
+            if (FIELD_VERSION.equals(field)) {
+                version = token == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+            } else if (FIELD_PROPERTY_SOURCES.equals(field) && token == JsonToken.START_ARRAY) {
+                readPropertySources(parser, layers);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new Environment(version, layers);
+    }
+
+    private static void readPropertySources(JsonParser parser, List<PropertySourceLayer> layers) throws IOException {
+        JsonToken token;
+        while ((token = nextToken(parser)) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            String name = null;
+            ConfigurationSnapshot properties = ConfigurationSnapshot.EMPTY;
+            while (nextToken(parser) == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                token = nextToken(parser);
+                if (FIELD_SOURCE.equals(field) && token == JsonToken.START_OBJECT) {
+                    properties = readSource(parser);
+                } else if (FIELD_NAME.equals(field) && token == JsonToken.VALUE_STRING) {
+                    name = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            layers.add(new PropertySourceLayer(name, properties));
+        }
+    }
+
+    private static ConfigurationSnapshot readSource(JsonParser parser) throws IOException {
+        ConfigurationSnapshot.Builder properties = new ConfigurationSnapshot.Builder();
+        while (nextToken(parser) == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = nextToken(parser);
+            if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                properties.put(key, parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return properties.build(null);
+    }
+
+    private static JsonToken nextToken(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            throw new JsonParseException("Unexpected end of environment", parser.getCurrentLocation());
+        }
+        return token;
+    }
+
+    static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new JsonParseException("Expected " + expected + " but was " + actual, parser.getCurrentLocation());
+        }
+    }
+
+    /**
+     * An environment as read from the config server.
+     */
+    public static final class Environment {
+        private final String version;
+        private final List<PropertySourceLayer> layers;
+
+        Environment(String version, List<PropertySourceLayer> layers) {
+            this.version = version;
+            this.layers = layers;
+        }
+
+        /**
+         * @return the version of the environment, may be null.
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the property source layers, most specific first.
+         */
+        public List<PropertySourceLayer> getLayers() {
+            return layers;
+        }
+    }
+}
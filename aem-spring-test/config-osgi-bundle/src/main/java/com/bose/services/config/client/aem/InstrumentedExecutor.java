@@ -0,0 +1,186 @@
+package com.bose.services.config.client.aem;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded thread pool that keeps statistics about the tasks it runs.
+ * <p>
+ * Both the number of threads and the queue are bounded, so a slow config server can never pile up an unlimited
+ * amount of work. Tasks submitted while the queue is full are rejected with a {@link RejectedExecutionException}.
+ * Threads are daemon threads and time out when idle.
+ */
+public class InstrumentedExecutor extends ThreadPoolExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final String name;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalQueueTime = new AtomicLong();
+    private final AtomicLong totalRunTime = new AtomicLong();
+
+    /**
+     * @param name      the name of the executor, used as thread name prefix.
+     * @param threads   the maximum number of threads.
+     * @param queueSize the maximum number of tasks waiting for a thread.
+     */
+    public InstrumentedExecutor(String name, int threads, int queueSize) {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                new NamedThreadFactory(name), new CountingAbortPolicy());
+        allowCoreThreadTimeOut(true);
+        this.name = name;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new TimedTask(command));
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * @return the current statistics of this executor.
+     */
+    public Stats getStats() {
+        return new Stats(name, getPoolSize(), getActiveCount(), getQueue().size(), submitted.get(), completed.get(),
+                failed.get(), ((CountingAbortPolicy) getRejectedExecutionHandler()).rejected.get(),
+                totalQueueTime.get(), totalRunTime.get());
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            totalQueueTime.addAndGet(start - queuedAt);
+            try {
+                task.run();
+                completed.incrementAndGet();
+            } catch (RuntimeException | Error e) {
+                failed.incrementAndGet();
+                throw e;
+            } finally {
+                totalRunTime.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static final class CountingAbortPolicy implements RejectedExecutionHandler {
+        private final AtomicLong rejected = new AtomicLong();
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(executor.isShutdown() ? "Executor is shut down" : "Executor queue is full");
+        }
+    }
+
+    /**
+     * Point in time statistics of an {@link InstrumentedExecutor}.
+     */
+    public static final class Stats {
+        private final String name;
+        private final int poolSize;
+        private final int activeCount;
+        private final int queueSize;
+        private final long submittedCount;
+        private final long completedCount;
+        private final long failedCount;
+        private final long rejectedCount;
+        private final long totalQueueTime;
+        private final long totalRunTime;
+
+        Stats(String name, int poolSize, int activeCount, int queueSize, long submittedCount, long completedCount,
+              long failedCount, long rejectedCount, long totalQueueTime, long totalRunTime) {
+            this.name = name;
+            this.poolSize = poolSize;
+            this.activeCount = activeCount;
+            this.queueSize = queueSize;
+            this.submittedCount = submittedCount;
+            this.completedCount = completedCount;
+            this.failedCount = failedCount;
+            this.rejectedCount = rejectedCount;
+            this.totalQueueTime = totalQueueTime;
+            this.totalRunTime = totalRunTime;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public long getSubmittedCount() {
+            return submittedCount;
+        }
+
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * @return the average time tasks waited in the queue, in milliseconds.
+         */
+        public double getAverageQueueTime() {
+            long finished = completedCount + failedCount;
+            return finished == 0 ? 0.0 : totalQueueTime / (finished * 1000000.0);
+        }
+
+        /**
+         * @return the average time it took to run a task, in milliseconds.
+         */
+        public double getAverageRunTime() {
+            long finished = completedCount + failedCount;
+            return finished == 0 ? 0.0 : totalRunTime / (finished * 1000000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s: threads=%d, active=%d, queued=%d, submitted=%d, completed=%d, failed=%d, rejected=%d, avgQueueTime=%.1fms, avgRunTime=%.1fms]",
+                    name, poolSize, activeCount, queueSize, submittedCount, completedCount, failedCount, rejectedCount,
+                    getAverageQueueTime(), getAverageRunTime());
+        }
+    }
+}
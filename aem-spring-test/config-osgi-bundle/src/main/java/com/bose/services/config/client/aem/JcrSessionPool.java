@@ -0,0 +1,340 @@
+package com.bose.services.config.client.aem;
+
+import org.apache.felix.scr.annotations.*;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of administrative JCR sessions, shared by everything in this bundle that needs a session.
+ * <p>
+ * Logging in is expensive, so sessions are reused instead of logging out after every use. A returned session is
+ * refreshed without keeping its changes, so the next user always starts with a clean, up to date session. Sessions that
+ * are no longer live, can't be refreshed or have been idle for too long are logged out and replaced.
+ * <p>
+ * At most {@link #PROP_MAX_SIZE} sessions are borrowed at the same time, callers wait up to {@link #PROP_MAX_WAIT}
+ * milliseconds for a session to be returned. Sessions that are borrowed for longer than {@link #PROP_LEAK_THRESHOLD}
+ * milliseconds are reported as (suspected) leaks. A thread <strong>MUST NOT</strong> borrow a second session while it
+ * holds one: once all sessions are in use, threads waiting for their second session wait for each other. Pass the
+ * session down instead, e.g. {@link ManagedConfigurationTracker#track(java.util.Collection)} uses the session of the nodes.
+ * <p>
+ * Don't use pooled sessions for observation, listeners are removed once the session is logged out. Events caused by
+ * saving a pooled session carry {@link #USER_DATA} as user data.
+ * This class is thread-safe.
+ */
+@Component(immediate = true, name = "com.bose.services.config.client.aem.JcrSessionPool")
+@Service(JcrSessionPool.class)
+public class JcrSessionPool {
+    private static final Logger logger = LoggerFactory.getLogger(JcrSessionPool.class);
+    private static final int DEFAULT_MAX_SIZE = 8;
+    private static final long DEFAULT_MAX_WAIT = 10000;
+    private static final long DEFAULT_MAX_IDLE = 300000;
+    private static final long DEFAULT_LEAK_THRESHOLD = 300000;
+
+    @Property(label = "Maximum sessions", description = "Maximum number of sessions borrowed at the same time.", intValue = DEFAULT_MAX_SIZE)
+    public static final String PROP_MAX_SIZE = "pool.maxSize";
+    @Property(label = "Maximum wait", description = "Maximum time in milliseconds to wait for a session when all sessions are in use.", longValue = DEFAULT_MAX_WAIT)
+    public static final String PROP_MAX_WAIT = "pool.maxWait";
+    @Property(label = "Maximum idle time", description = "Idle sessions are logged out after this time in milliseconds.", longValue = DEFAULT_MAX_IDLE)
+    public static final String PROP_MAX_IDLE = "pool.maxIdle";
+    @Property(label = "Leak threshold", description = "Sessions borrowed for longer than this time in milliseconds are reported as leaked.", longValue = DEFAULT_LEAK_THRESHOLD)
+    public static final String PROP_LEAK_THRESHOLD = "pool.leakThreshold";
+    /**
+     * The observation user data of all pooled sessions, so listeners can recognize the events of their own writes.
+     */
+    public static final String USER_DATA = ManagedConfigurationMixin.PREFIX + "resolver";
+
+    @Reference
+    private SlingRepository repository;
+
+    //most recently returned first, so the pool shrinks back to what's actually used
+    private final BlockingDeque<Idle> idle = new LinkedBlockingDeque<>();
+    private final ConcurrentMap<Session, Borrowed> borrowed = new ConcurrentHashMap<>();
+    private volatile Semaphore permits = new Semaphore(DEFAULT_MAX_SIZE, true);
+    private volatile boolean closed;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long maxWait = DEFAULT_MAX_WAIT;
+    private long maxIdle = DEFAULT_MAX_IDLE;
+    private long leakThreshold = DEFAULT_LEAK_THRESHOLD;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong returns = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * Borrows a session from the pool, it <strong>MUST</strong> be given back with {@link #release(Session)}, in a finally block.
+     *
+     * @return a live session without pending changes.
+     * @throws RepositoryException when no session became available in time, or a new session could not be created.
+     */
+    public Session borrow() throws RepositoryException {
+        if (closed) {
+            throw new RepositoryException("Session pool is closed");
+        }
+        checkLeaks();
+        Semaphore permits = this.permits;
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new RepositoryException(String.format("No session available within %dms, %d sessions in use", maxWait, borrowed.size()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for a session", e);
+        }
+        try {
+            Session session = null;
+            Idle candidate;
+            while (session == null && (candidate = idle.pollFirst()) != null) {
+                if (candidate.session.isLive() && System.currentTimeMillis() - candidate.since < maxIdle) {
+                    session = candidate.session;
+                } else {
+                    destroy(candidate.session);
+                }
+            }
+            if (session == null) {
+                session = repository.loginAdministrative(null);
+                created.incrementAndGet();
+                try {
+                    //applies to every save of the session
+                    session.getWorkspace().getObservationManager().setUserData(USER_DATA);
+                } catch (RepositoryException | UnsupportedOperationException e) {
+                    logger.warn("Error setting observation user data, events of our own writes can't be told apart.", e);
+                }
+            }
+            borrowed.put(session, new Borrowed(permits));
+            borrows.incrementAndGet();
+            return session;
+        } catch (RepositoryException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a borrowed session back to the pool. Any pending changes are discarded.
+     *
+     * @param session the session as returned by {@link #borrow()}, ignored if null.
+     */
+    public void release(Session session) {
+        if (session == null) {
+            return;
+        }
+        Borrowed borrow = borrowed.remove(session);
+        if (borrow == null) {
+            logger.warn("Ignoring release of a session that was not borrowed from the pool (or was released twice).");
+            return;
+        }
+        returns.incrementAndGet();
+        try {
+            boolean healthy = false;
+            if (!closed && session.isLive()) {
+                try {
+                    session.refresh(false);
+                    healthy = true;
+                } catch (RepositoryException e) {
+                    logger.warn("Error refreshing returned session, replacing it.", e);
+                }
+            }
+            if (healthy) {
+                idle.offerFirst(new Idle(session));
+                if (closed && idle.removeIf(candidate -> candidate.session == session)) {
+                    //closed concurrently
+                    destroy(session);
+                }
+            } else {
+                destroy(session);
+            }
+        } finally {
+            borrow.permits.release();
+        }
+    }
+
+    private void destroy(Session session) {
+        destroyed.incrementAndGet();
+        try {
+            session.logout();
+        } catch (Throwable e) {
+            //ignore this, we tried our best to cleanup...
+        }
+    }
+
+    //reports every session borrowed for too long once
+    private void checkLeaks() {
+        long now = System.currentTimeMillis();
+        for (Borrowed borrow : borrowed.values()) {
+            if (!borrow.reported && now - borrow.since > leakThreshold) {
+                borrow.reported = true;
+                leaks.incrementAndGet();
+                logger.warn("Session borrowed by thread '{}' has not been returned for {}ms, possible session leak.", borrow.thread, now - borrow.since);
+            }
+        }
+    }
+
+    /**
+     * @return the current statistics of this pool.
+     */
+    public Stats getStats() {
+        checkLeaks();
+        return new Stats(maxSize, borrowed.size(), idle.size(), created.get(), destroyed.get(), borrows.get(), returns.get(),
+                timeouts.get(), leaks.get());
+    }
+
+    @Activate
+    public void activate(ComponentContext componentContext) {
+        this.maxSize = Math.max(1, PropertyUtils.getPropertyAsInt(PROP_MAX_SIZE, componentContext, DEFAULT_MAX_SIZE));
+        this.maxWait = PropertyUtils.getPropertyAsLong(PROP_MAX_WAIT, componentContext, DEFAULT_MAX_WAIT);
+        this.maxIdle = PropertyUtils.getPropertyAsLong(PROP_MAX_IDLE, componentContext, DEFAULT_MAX_IDLE);
+        this.leakThreshold = PropertyUtils.getPropertyAsLong(PROP_LEAK_THRESHOLD, componentContext, DEFAULT_LEAK_THRESHOLD);
+        this.permits = new Semaphore(maxSize, true);
+        this.closed = false;
+        logger.info("Session pool activated with at most {} sessions", maxSize);
+    }
+
+    @Deactivate
+    public void deactivate(ComponentContext componentContext) {
+        closed = true;
+        Idle candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            destroy(candidate.session);
+        }
+        if (!borrowed.isEmpty()) {
+            //logged out when they are returned
+            logger.warn("Session pool closed with {} sessions still in use.", borrowed.size());
+        }
+        logger.info("Session pool deactivated: {}", getStats());
+    }
+
+    @SuppressWarnings("unused")
+    public void bindSlingRepository(SlingRepository repository) {
+        this.repository = repository;
+    }
+
+    @SuppressWarnings("unused")
+    public void unbindSlingRepository(SlingRepository repository) {
+        this.repository = null;
+    }
+
+    private static final class Idle {
+        private final Session session;
+        private final long since = System.currentTimeMillis();
+
+        private Idle(Session session) {
+            this.session = session;
+        }
+    }
+
+    private static final class Borrowed {
+        //the permits the session was borrowed from, they're replaced when the pool is re-activated
+        private final Semaphore permits;
+        private final long since = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private volatile boolean reported;
+
+        private Borrowed(Semaphore permits) {
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * Point in time statistics of a {@link JcrSessionPool}.
+     */
+    public static final class Stats {
+        private final int maxSize;
+        private final int active;
+        private final int idle;
+        private final long createdCount;
+        private final long destroyedCount;
+        private final long borrowCount;
+        private final long returnCount;
+        private final long timeoutCount;
+        private final long leakCount;
+
+        Stats(int maxSize, int active, int idle, long createdCount, long destroyedCount, long borrowCount, long returnCount,
+              long timeoutCount, long leakCount) {
+            this.maxSize = maxSize;
+            this.active = active;
+            this.idle = idle;
+            this.createdCount = createdCount;
+            this.destroyedCount = destroyedCount;
+            this.borrowCount = borrowCount;
+            this.returnCount = returnCount;
+            this.timeoutCount = timeoutCount;
+            this.leakCount = leakCount;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * @return the number of sessions currently borrowed.
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * @return the number of sessions waiting in the pool to be reused.
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return the number of sessions logged in, over the lifetime of the pool.
+         */
+        public long getCreatedCount() {
+            return createdCount;
+        }
+
+        /**
+         * @return the number of sessions logged out, over the lifetime of the pool.
+         */
+        public long getDestroyedCount() {
+            return destroyedCount;
+        }
+
+        public long getBorrowCount() {
+            return borrowCount;
+        }
+
+        public long getReturnCount() {
+            return returnCount;
+        }
+
+        /**
+         * @return the number of times no session became available in time.
+         */
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        /**
+         * @return the number of sessions that were borrowed for longer than the leak threshold.
+         */
+        public long getLeakCount() {
+            return leakCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[max=%d, active=%d, idle=%d, created=%d, destroyed=%d, borrows=%d, returns=%d, timeouts=%d, leaks=%d]",
+                    maxSize, active, idle, createdCount, destroyedCount, borrowCount, returnCount, timeoutCount, leakCount);
+        }
+    }
+}
@@ -6,14 +6,19 @@ import org.apache.sling.jcr.api.SlingRepository;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Template for working with a JCR session.
  * This template will handle login/logout and saving of the session transparantly.
+ * When created with a {@link JcrSessionPool}, sessions are borrowed from and returned to the pool instead.
  */
 public class JcrSessionTemplate<T> {
     private ResourceResolverFactory resourceResolverFactory;
     private SlingRepository repository;
+    private JcrSessionPool sessionPool;
 
     public JcrSessionTemplate(ResourceResolverFactory resourceResolverFactory) {
         if(resourceResolverFactory == null) {
@@ -29,8 +34,22 @@ public class JcrSessionTemplate<T> {
         this.repository = repository;
     }
 
+    /**
+     * Creates a template that borrows its sessions from the pool, instead of logging in and out for every execution.
+     *
+     * @param sessionPool the pool to borrow sessions from, not null.
+     */
+    public JcrSessionTemplate(JcrSessionPool sessionPool) {
+        if(sessionPool == null) {
+            throw new IllegalArgumentException("JcrSessionPool can not be <null>.");
+        }
+        this.sessionPool = sessionPool;
+    }
+
     private Session createSession() throws RepositoryException, LoginException {
-        if(resourceResolverFactory != null) {
+        if(sessionPool != null) {
+            return sessionPool.borrow();
+        } else if(resourceResolverFactory != null) {
             return resourceResolverFactory.getAdministrativeResourceResolver(null).adaptTo(Session.class);
         } else if(repository != null) {
             return repository.loginAdministrative(null);
@@ -38,6 +57,19 @@ public class JcrSessionTemplate<T> {
         throw new IllegalStateException("Both SlingRepository and ResourceResolverFactory are null, can not create session");
     }
 
+    private void closeSession(Session session) {
+        try {
+            if(sessionPool != null) {
+                //discards any unsaved changes, just like a logout would
+                sessionPool.release(session);
+            } else {
+                session.logout();
+            }
+        } catch (Throwable e) {
+            //ignore this, we tried our best to cleanup...
+        }
+    }
+
     /**
      * Execute the provided callback.
      *
@@ -84,7 +116,7 @@ public class JcrSessionTemplate<T> {
      * Executes the given callback, providing it with a fresh session, and handling
      * closing and optionally saving the session.
      *
-     * This will create a new adminstrative session, and will handle login, logout, and optionally saving
+     * This will create a new adminstrative session (or borrow one from the pool), and will handle login, logout, and optionally saving
      * the session in all scenarios. The callback method can assume the session is valid and will be cleaned up,
      * also when exceptions occur in the callback.
      * This method will return any value returned from the callback, and will let any exception thrown be propagated back to the caller.
@@ -105,14 +137,147 @@ public class JcrSessionTemplate<T> {
             }
             return result;
         } finally {
+            if(session != null) {
+                closeSession(session);
+            }
+        }
+    }
+
+    /**
+     * Applies all items in a single session, saving the session every <code>batchSize</code> items or every
+     * <code>batchTime</code> milliseconds, whatever comes first, instead of logging in and saving once per item.
+     * <p>
+     * The callback applies an item without saving the session. When applying an item or saving a batch fails, the
+     * unsaved changes are discarded, and the items of that batch are retried one by one, each with their own save.
+     * So a single bad item never takes down the other items of its batch. Every item is reported to the callback
+     * exactly once, either through {@link BatchCallback#onSuccess(Object, boolean)} once its changes are saved, or
+     * through {@link BatchCallback#onFailure(Object, Exception)}.
+     * <p>
+     * The items are pulled from the iterator lazily, so multiple threads can share the work by pulling from a shared
+     * (thread-safe) source, each with their own session.
+     *
+     * @param items     the items to apply, not null.
+     * @param batchSize the maximum number of changed items per save, 1 or more.
+     * @param batchTime the maximum time in milliseconds to keep changes unsaved, 0 or less for no maximum.
+     * @param callback  the callback applying the items, not null.
+     * @param <E>       the type of the items.
+     * @return the number of times the session was saved.
+     * @throws RepositoryException when the session could not be created.
+     * @throws LoginException      when the session could not be created.
+     */
+    public <E> int executeInBatches(Iterator<E> items, int batchSize, long batchTime, BatchCallback<E> callback) throws RepositoryException, LoginException {
+        Session session = createSession();
+        try {
+            int saves = 0;
+            List<E> batch = new ArrayList<>(Math.max(1, batchSize));
+            long batchStart = 0;
+            while (items.hasNext()) {
+                E item = items.next();
+                boolean changed;
+                try {
+                    changed = callback.execute(session, item);
+                } catch (Exception e) {
+                    //the item may have left half applied changes behind, throw away the batch and redo it item by item
+                    saves += rollback(session, batch, callback, e);
+                    batch.clear();
+                    callback.onFailure(item, e);
+                    continue;
+                }
+                if (!changed) {
+                    //nothing to save for this item
+                    callback.onSuccess(item, false);
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    batchStart = System.currentTimeMillis();
+                }
+                batch.add(item);
+                if (batch.size() >= batchSize || (batchTime > 0 && System.currentTimeMillis() - batchStart >= batchTime)) {
+                    saves += save(session, batch, callback);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                saves += save(session, batch, callback);
+            }
+            return saves;
+        } finally {
+            closeSession(session);
+        }
+    }
+
+    private <E> int save(Session session, List<E> batch, BatchCallback<E> callback) {
+        try {
+            session.save();
+        } catch (Exception e) {
+            //e.g. a conflicting change by another session, find out which item(s) can't be saved
+            return rollback(session, batch, callback, e);
+        }
+        for (E item : batch) {
+            callback.onSuccess(item, true);
+        }
+        return 1;
+    }
+
+    private <E> int rollback(Session session, List<E> batch, BatchCallback<E> callback, Exception cause) {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            //session is broken, nothing we can retry with
+            for (E item : batch) {
+                callback.onFailure(item, cause);
+            }
+            return 0;
+        }
+        return retry(session, batch, callback);
+    }
+
+    //MUST be called with a session without pending changes
+    private <E> int retry(Session session, List<E> batch, BatchCallback<E> callback) {
+        int saves = 0;
+        for (E item : batch) {
             try {
-                if(session != null) {
-                    session.logout();
+                boolean changed = callback.execute(session, item);
+                if (changed) {
+                    session.save();
+                    saves++;
                 }
-            } catch (Throwable e) {
-                //ignore this, we tried our best to cleanup...
+                callback.onSuccess(item, changed);
+            } catch (Exception e) {
+                try {
+                    session.refresh(false);
+                } catch (RepositoryException ignore) {
+                    //the next item will fail as well, and be reported
+                }
+                callback.onFailure(item, e);
             }
         }
+        return saves;
+    }
+
+    /**
+     * Callback for applying items in batches, see {@link #executeInBatches(Iterator, int, long, BatchCallback)}.
+     *
+     * @param <E> the type of the items.
+     */
+    public interface BatchCallback<E> {
+        /**
+         * Applies the item, without saving the session.
+         * If there is nothing to change, the callback must not leave any unsaved changes behind.
+         *
+         * @return <code>true</code> if the item changed anything in the session that needs saving.
+         */
+        boolean execute(Session session, E item) throws Exception;
+
+        /**
+         * Called when the changes of the item are saved, or when it didn't have any changes.
+         */
+        void onSuccess(E item, boolean changed);
+
+        /**
+         * Called when the item could not be applied or saved, its changes are discarded.
+         */
+        void onFailure(E item, Exception e);
     }
 
     /**
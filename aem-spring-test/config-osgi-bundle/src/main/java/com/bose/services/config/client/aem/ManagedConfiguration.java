@@ -5,13 +5,18 @@ import org.apache.sling.api.resource.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
-import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import java.util.Properties;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Main worker class, this handles configuring managed configuration nodes.
@@ -23,6 +28,12 @@ public class ManagedConfiguration {
     private String nodePath;
     private String configurationName;
     private String[] profiles;
+    //the configuration this node was last configured with, in memory only
+    private volatile ConfigurationSnapshot appliedConfiguration;
+    //placeholder key -> names of the properties referencing it, null until the node has been configured
+    private final AtomicReference<Map<String, Set<String>>> placeholderReferences = new AtomicReference<>();
+    //compiled templates of the node's properties, so they're parsed once instead of on every refresh
+    private final PlaceholderTemplateCache templateCache = new PlaceholderTemplateCache();
 
     /**
      * Creates a new managed configuration.
@@ -73,13 +84,13 @@ public class ManagedConfiguration {
     }
 
     /**
-     * CHeck if this managed config if for the given node.
+     * Check if this managed config is for the given node.
      *
      * @param nodePath the path of the node, not null
      * @return <code>true</code> if this configuration is for the given node.
      */
     public boolean isForNode(String nodePath) {
-        return nodePath != null && nodePath.equalsIgnoreCase(nodePath);
+        return nodePath != null && nodePath.equals(this.nodePath);
     }
 
     /**
@@ -110,6 +121,9 @@ public class ManagedConfiguration {
      * If you apply this on nodes with type <code>sling:OsgiConfig</code>, this ensures the nodes are only touched when there are actual changes, ensuring services
      * using these configurations do not restart for no reason.
      * After updates are done, any changed properties are tracked in the <code>config:managedProps</code> and the <code>config:lastUpdate</code> is updated.
+     * <p>
+     * Nodes that are already configured with the configuration are skipped: without opening a session if this instance
+     * applied it, otherwise by only reading the <code>config:fingerprint</code> (and templates) of the node.
      * This allows both JCR level inspection of what this service is doing and provides persisted meta-data for this service.
      *
      * @param configurationService the {@see ConfigurationService} to use, not null.
@@ -123,34 +137,16 @@ public class ManagedConfiguration {
         Assert.notNull(configurationService);
         Assert.notNull(sessionTemplate);
         try {
-            logger.info("Configuring node {} ", nodePath);
+            ConfigurationSnapshot remoteProperties = getConfigurationToApply(configurationService, refresh);
+            if (remoteProperties == null) {
+                //no need to even open a session
+                return false;
+            }
             //noinspection unchecked
             return (Boolean) sessionTemplate.executeWithResult(new JcrSessionTemplate.Callback() {
                 @Override
                 public Object execute(Session session) throws Exception {
-                    Node node = session.getNode(getNodePath());
-                    if (node != null) {
-                        PlaceHolderAwareNode wrapper = new PlaceHolderAwareNode(node);
-                        if (!refresh || configurationService.refresh(configurationName, profiles)) {
-                            Properties remoteProperties = configurationService.getProperties(configurationName, profiles);
-                            if (!CollectionUtils.isEmpty(remoteProperties)) {
-                                logger.info("Configuration has been changed for '{}', updating node...", ManagedConfiguration.this.toString());
-                                //only do work if we have actual properties...
-                                if (wrapper.resolvePlaceholders(remoteProperties)) {
-                                    //updated some props...
-                                    session.save();
-                                    return Boolean.TRUE;
-                                } //else: nothing changed...
-                            } else {
-                                logger.warn("No properties found at configuration service for '{}'", ManagedConfiguration.this.toString());
-                            }
-                        } else {
-                            logger.info("Configuration not changed for '{}'", ManagedConfiguration.this.toString());
-                        }
-                    } else {
-                        throw new IllegalStateException(String.format("Could not find node at '%s', maybe node was deleted?", getNodePath()));
-                    }
-                    return Boolean.FALSE;
+                    return apply(session, remoteProperties);
                 }
             });
         } catch (Exception e) {
@@ -159,6 +155,250 @@ public class ManagedConfiguration {
 
     }
 
+    /**
+     * Configures the managed node in the given session, instead of in a session of its own, and saves the session.
+     * <p>
+     * This is used by callers that already hold a session, e.g. the session the node was found with, so they don't need
+     * a second one. The session <strong>MUST NOT</strong> have any other pending changes, they would be saved as well.
+     * When configuring fails, the pending changes of the session are discarded.
+     *
+     * @param configurationService the {@see ConfigurationService} to use, not null.
+     * @param session              the session to use, not null.
+     * @return <code>true</code> if any properties were updated on the node.
+     * @throws ConfigurationException when configuring the node failed.
+     * @throws IllegalStateException  when the managed node can not be accessed. This could happen is the node gets deleted by another process.
+     * @see #configure(ConfigurationService, JcrSessionTemplate)
+     */
+    public boolean configure(ConfigurationService configurationService, Session session) throws ConfigurationException, IllegalStateException {
+        Assert.notNull(configurationService);
+        Assert.notNull(session);
+        try {
+            ConfigurationSnapshot remoteProperties = getConfigurationToApply(configurationService, false);
+            return remoteProperties != null && apply(session, remoteProperties);
+        } catch (Exception e) {
+            try {
+                session.refresh(false);
+            } catch (RepositoryException ignore) {
+                //the caller's next save fails as well
+            }
+            throw new ConfigurationException("Error configuring managed node: " + ManagedConfiguration.this.toString(), e);
+        }
+    }
+
+    //null if there's nothing to apply
+    private ConfigurationSnapshot getConfigurationToApply(ConfigurationService configurationService, boolean refresh) {
+        logger.info("Configuring node {} ", nodePath);
+        if (refresh && !configurationService.refresh(configurationName, profiles)) {
+            logger.info("Configuration not changed for '{}'", ManagedConfiguration.this.toString());
+            return null;
+        }
+        ConfigurationSnapshot remoteProperties = configurationService.getSnapshot(configurationName, profiles);
+        if (remoteProperties.isEmpty()) {
+            logger.warn("No properties found at configuration service for '{}'", ManagedConfiguration.this.toString());
+            return null;
+        }
+        if (isConfiguredWith(remoteProperties)) {
+            logger.info("Node '{}' is already configured with the current configuration", nodePath);
+            return null;
+        }
+        return remoteProperties;
+    }
+
+    //applies the configuration and saves the session if anything changed
+    private boolean apply(Session session, ConfigurationSnapshot remoteProperties) throws RepositoryException {
+        Node node = session.getNode(getNodePath());
+        if (node != null) {
+            PlaceHolderAwareNode wrapper = new PlaceHolderAwareNode(node, templateCache);
+            if (wrapper.isResolvedWith(remoteProperties)) {
+                logger.info("Node '{}' is up to date according to its fingerprint", nodePath);
+                placeholderReferences.set(wrapper.getReferences());
+                appliedConfiguration = remoteProperties;
+                return false;
+            }
+            logger.info("Configuration has been changed for '{}', updating node...", ManagedConfiguration.this.toString());
+            boolean changed = wrapper.resolvePlaceholders(remoteProperties);
+            placeholderReferences.set(wrapper.getReferences());
+            if (changed) {
+                //updated some props...
+                session.save();
+            }
+            appliedConfiguration = remoteProperties;
+            return changed;
+        } else {
+            throw new IllegalStateException(String.format("Could not find node at '%s', maybe node was deleted?", getNodePath()));
+        }
+    }
+
+    /**
+     * Configures the managed node with the given configuration, in the given session, WITHOUT saving the session.
+     * <p>
+     * This is used to configure many nodes in the same session, see {@link JcrSessionTemplate#executeInBatches}.
+     * If nothing changes, no unsaved changes are left behind for this node. Once the session is saved, the caller must
+     * call {@link #setAppliedConfiguration(ConfigurationSnapshot)}.
+     *
+     * @param session       the session to use, not null.
+     * @param configuration the configuration to apply, not null.
+     * @return <code>true</code> if any properties were updated on the node and the session needs saving.
+     * @throws ConfigurationException when configuring the node failed.
+     * @throws IllegalStateException  when the managed node can not be accessed. This could happen is the node gets deleted by another process.
+     */
+    public boolean configure(Session session, ConfigurationSnapshot configuration) throws ConfigurationException, IllegalStateException {
+        return configure(session, configuration, null);
+    }
+
+    /**
+     * Same as {@link #configure(Session, ConfigurationSnapshot)}, but only resolves the given properties, e.g. the
+     * properties referencing changed keys (see {@link #getReferencingProperties(Collection)}).
+     *
+     * @param session       the session to use, not null.
+     * @param configuration the configuration to apply, not null.
+     * @param propertyNames the properties to resolve, null to resolve all properties, empty to only update the
+     *                      persisted fingerprint.
+     * @return <code>true</code> if any properties were updated on the node and the session needs saving.
+     * @throws ConfigurationException when configuring the node failed.
+     * @throws IllegalStateException  when the managed node can not be accessed. This could happen is the node gets deleted by another process.
+     */
+    public boolean configure(Session session, ConfigurationSnapshot configuration, Set<String> propertyNames) throws ConfigurationException, IllegalStateException {
+        Assert.notNull(session);
+        Assert.notNull(configuration);
+        if (configuration.isEmpty()) {
+            logger.warn("No properties found at configuration service for '{}'", this.toString());
+            return false;
+        }
+        try {
+            if (!session.nodeExists(nodePath)) {
+                throw new IllegalStateException(String.format("Could not find node at '%s', maybe node was deleted?", nodePath));
+            }
+            Node node = session.getNode(nodePath);
+            //only writes changed properties, leaves nothing behind if nothing changed
+            PlaceHolderAwareNode wrapper = new PlaceHolderAwareNode(node, templateCache);
+            if (propertyNames == null && wrapper.isResolvedWith(configuration)) {
+                logger.debug("Node '{}' is up to date according to its fingerprint", nodePath);
+                placeholderReferences.set(wrapper.getReferences());
+                return false;
+            }
+            boolean changed = wrapper.resolvePlaceholders(configuration, propertyNames);
+            if (propertyNames == null) {
+                //the templates of the other properties did not change, so only known after a full run
+                placeholderReferences.set(wrapper.getReferences());
+            }
+            return changed;
+        } catch (RepositoryException e) {
+            throw new ConfigurationException("Error configuring managed node: " + this.toString(), e);
+        }
+    }
+
+    /**
+     * Resolves the placeholders in properties that were edited on the node (e.g. by an author), in the given session,
+     * WITHOUT saving the session. The configuration the node was last configured with is used, nothing is fetched.
+     * <p>
+     * The current value of an edited property is its new template, unless it still has the value resolved from its
+     * stored template: then it was written by this service (or set to the same value), and the template is kept.
+     *
+     * @param session       the session to use, not null.
+     * @param propertyNames the names of the edited properties, not null.
+     * @return <code>true</code> if any properties were updated on the node and the session needs saving, <code>false</code>
+     * if nothing changed or the node hasn't been configured yet.
+     * @throws ConfigurationException when configuring the node failed.
+     * @throws IllegalStateException  when the managed node can not be accessed. This could happen is the node gets deleted by another process.
+     */
+    public boolean reconfigure(Session session, Set<String> propertyNames) throws ConfigurationException, IllegalStateException {
+        Assert.notNull(session);
+        Assert.notNull(propertyNames);
+        ConfigurationSnapshot configuration = appliedConfiguration;
+        if (configuration == null || propertyNames.isEmpty()) {
+            //configuring the node for the first time takes the current values anyway
+            return false;
+        }
+        try {
+            if (!session.nodeExists(nodePath)) {
+                throw new IllegalStateException(String.format("Could not find node at '%s', maybe node was deleted?", nodePath));
+            }
+            PlaceHolderAwareNode wrapper = new PlaceHolderAwareNode(session.getNode(nodePath), templateCache);
+            boolean changed = wrapper.resolveEditedPlaceholders(configuration, propertyNames);
+            Map<String, Set<String>> edited = wrapper.getReferences();
+            //compare-and-set, a concurrent (re)configure may replace the references while we merge, then we merge again
+            placeholderReferences.updateAndGet(references -> references != null ? merge(references, propertyNames, edited) : null);
+            return changed;
+        } catch (RepositoryException e) {
+            throw new ConfigurationException("Error configuring managed node: " + this.toString(), e);
+        }
+    }
+
+    //the other properties still reference the same keys, the edited properties reference the keys they do now
+    private static Map<String, Set<String>> merge(Map<String, Set<String>> references, Set<String> propertyNames,
+                                                  Map<String, Set<String>> edited) {
+        Map<String, Set<String>> merged = new HashMap<>();
+        for (Map.Entry<String, Set<String>> reference : references.entrySet()) {
+            Set<String> properties = new HashSet<>(reference.getValue());
+            properties.removeAll(propertyNames);
+            if (!properties.isEmpty()) {
+                merged.put(reference.getKey(), properties);
+            }
+        }
+        for (Map.Entry<String, Set<String>> reference : edited.entrySet()) {
+            merged.computeIfAbsent(reference.getKey(), key -> new HashSet<>()).addAll(reference.getValue());
+        }
+        return Collections.unmodifiableMap(merged);
+    }
+
+    /**
+     * @return the placeholder keys referenced by this node, with the names of the properties referencing them.
+     * <code>null</code> if not known yet, because the node hasn't been configured yet.
+     */
+    Map<String, Set<String>> getPlaceholderReferences() {
+        return placeholderReferences.get();
+    }
+
+    /**
+     * @param keys the placeholder keys, e.g. the keys that changed.
+     * @return the names of the properties referencing any of the keys, empty if none, null if not known (or all properties could be affected).
+     */
+    Set<String> getReferencingProperties(Collection<String> keys) {
+        Map<String, Set<String>> references = placeholderReferences.get();
+        if (references == null || references.containsKey(Placeholders.ANY_KEY)) {
+            return null;
+        }
+        Set<String> properties = new HashSet<>();
+        for (String key : keys) {
+            Set<String> referencing = references.get(key);
+            if (referencing != null) {
+                properties.addAll(referencing);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @param keys the placeholder keys, e.g. keys changed on the bus.
+     * @return <code>true</code> if the node references any of the keys, directly or through values of its configuration,
+     * also <code>true</code> if that's not known (yet).
+     */
+    boolean references(Collection<String> keys) {
+        ConfigurationSnapshot configuration = appliedConfiguration;
+        if (configuration == null) {
+            return true;
+        }
+        Set<String> referencing = getReferencingProperties(Placeholders.expandChangedKeys(new HashSet<>(keys), configuration, configuration));
+        return referencing == null || !referencing.isEmpty();
+    }
+
+    /**
+     * @return the configuration this node was last configured with, null if not configured yet.
+     */
+    ConfigurationSnapshot getAppliedConfiguration() {
+        return appliedConfiguration;
+    }
+
+    /**
+     * Records the configuration this node is configured with, see {@link #isConfiguredWith(ConfigurationSnapshot)}.
+     *
+     * @param configuration the configuration, as returned by the {@link ConfigurationService}.
+     */
+    void setAppliedConfiguration(ConfigurationSnapshot configuration) {
+        this.appliedConfiguration = configuration;
+    }
+
     public String getNodePath() {
         return nodePath;
     }
@@ -167,6 +407,27 @@ public class ManagedConfiguration {
         return configurationName;
     }
 
+    public String[] getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * @return the key of the configuration this node is configured with (name and profiles).
+     */
+    public ConfigurationKey getConfigurationKey() {
+        return new ConfigurationKey(configurationName, profiles);
+    }
+
+    /**
+     * Check if this node was last configured with the given configuration.
+     *
+     * @param configuration the configuration, as returned by the {@link ConfigurationService}.
+     * @return <code>true</code> if the node has been configured with a configuration with the same properties.
+     */
+    public boolean isConfiguredWith(ConfigurationSnapshot configuration) {
+        return configuration != null && configuration.equals(appliedConfiguration);
+    }
+
     @Override
     public int hashCode() {
         return nodePath.hashCode();
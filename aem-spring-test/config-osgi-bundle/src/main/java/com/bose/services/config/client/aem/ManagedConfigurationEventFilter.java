@@ -0,0 +1,106 @@
+package com.bose.services.config.client.aem;
+
+import org.apache.jackrabbit.api.observation.JackrabbitEventFilter;
+import org.apache.jackrabbit.api.observation.JackrabbitObservationManager;
+import org.apache.jackrabbit.oak.jcr.observation.filter.FilterFactory;
+import org.apache.jackrabbit.oak.jcr.observation.filter.OakEventFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+/**
+ * Registers observation listeners for added and removed managed configuration nodes (and their changed properties),
+ * with the filtering done by the repository where possible.
+ * <p>
+ * A plain JCR node type filter applies to the <em>parent</em> of an added or removed node, so it can't select
+ * <code>config:managed</code> nodes. On Oak, an {@link OakEventFilter} applies the node type to the node itself, and
+ * also reports the managed nodes in a removed subtree. Then only events for managed nodes reach the listener, instead
+ * of every node added or removed below the search path (e.g. every code deployment below <code>/apps</code>).
+ * <p>
+ * The Jackrabbit and Oak packages are optional imports: without them (or on a repository that isn't Oak), listeners
+ * are registered without node type filter and the listener has to check the events itself.
+ */
+final class ManagedConfigurationEventFilter {
+    private static final Logger logger = LoggerFactory.getLogger(ManagedConfigurationEventFilter.class);
+    private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED;
+
+    private ManagedConfigurationEventFilter() {
+    }
+
+    /**
+     * @param session  the session to register the listener with, it <strong>MUST</strong> stay open as long as the listener is needed.
+     * @param listener the listener.
+     * @param path     the path to observe, including the subtree.
+     * @return <code>true</code> if the repository only delivers events for managed nodes, <code>false</code> if the
+     * listener gets all added and removed nodes.
+     * @throws RepositoryException when registering the listener fails.
+     */
+    static boolean addEventListener(Session session, EventListener listener, String path) throws RepositoryException {
+        ObservationManager observationManager = session.getWorkspace().getObservationManager();
+        try {
+            if (Oak.addEventListener(observationManager, listener, path)) {
+                logger.info("Observing managed configuration nodes below '{}' with a repository side node type filter", path);
+                return true;
+            }
+        } catch (LinkageError e) {
+            //optional imports not wired
+            logger.info("Oak event filters not available ({}), managed configuration events below '{}' are filtered by the listener", e.toString(), path);
+        }
+        observationManager.addEventListener(listener, // listener
+                EVENT_TYPES, // eventTypes
+                path, // absPath
+                true, // isDeep
+                null, // uuid
+                null, //nodeTypeNames, would apply to the parent
+                true // noLocal
+        );
+        return false;
+    }
+
+    /**
+     * Registers a listener for added and changed properties of managed nodes. For property events the node type filter
+     * applies to the node of the property, so a plain JCR filter is enough.
+     *
+     * @param session  the session to register the listener with, it <strong>MUST</strong> stay open as long as the listener is needed.
+     * @param listener the listener, <strong>NOT</strong> the same instance as for {@link #addEventListener}, a listener
+     *                 is only registered once.
+     * @param path     the path to observe, including the subtree.
+     * @throws RepositoryException when registering the listener fails.
+     */
+    static void addPropertyListener(Session session, EventListener listener, String path) throws RepositoryException {
+        session.getWorkspace().getObservationManager().addEventListener(listener, // listener
+                ManagedConfigurationObserver.PROPERTY_EVENTS, // eventTypes
+                path, // absPath
+                true, // isDeep
+                null, // uuid
+                new String[]{ManagedConfigurationMixin.NODE_TYPE}, //nodeTypeNames, the node of the property
+                true // noLocal
+        );
+    }
+
+    //only loaded when used, so missing packages show up as a LinkageError in the caller
+    private static final class Oak {
+        private static boolean addEventListener(ObservationManager observationManager, EventListener listener, String path) throws RepositoryException {
+            if (!(observationManager instanceof JackrabbitObservationManager)) {
+                return false;
+            }
+            JackrabbitEventFilter filter = new JackrabbitEventFilter()
+                    .setEventTypes(EVENT_TYPES)
+                    .setAbsPath(path)
+                    .setIsDeep(true)
+                    .setNodeTypes(new String[]{ManagedConfigurationMixin.NODE_TYPE})
+                    .setNoLocal(true);
+            OakEventFilter oakFilter = FilterFactory.wrap(filter)
+                    .withApplyNodeTypeOnSelf()
+                    //removing a folder removes the managed nodes in it as well
+                    .withIncludeSubtreeOnRemove();
+            ((JackrabbitObservationManager) observationManager).addEventListener(listener, oakFilter);
+            return true;
+        }
+    }
+}
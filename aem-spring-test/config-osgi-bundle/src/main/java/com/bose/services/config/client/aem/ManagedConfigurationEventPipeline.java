@@ -0,0 +1,574 @@
+package com.bose.services.config.client.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, asynchronous pipeline between the JCR observation listeners and the {@link ManagedConfigurationTracker}.
+ * <p>
+ * Observation events are only recorded, so the observation thread is never blocked by fetching configuration or
+ * writing to the repository. Events for the same path are coalesced while they wait: adding and then removing a node
+ * cancels out, removing and then adding it again re-tracks it. Workers take the pending paths in batches, oldest first,
+ * and handle a batch in a single session, nodes added together are tracked together (so their configurations are
+ * fetched in batch). A path is never handled by two workers at the same time.
+ * <p>
+ * Edited properties of tracked nodes are collected per node, and resolved again with the configuration the node is
+ * configured with, see {@link ManagedConfigurationTracker#reconfigure(Session, String, Set)}. A pending addition or
+ * removal of the node covers them. The edits of a batch are saved together, when resolving or saving them fails, the
+ * unsaved changes are discarded and the edits are retried node by node, see
+ * {@link JcrSessionTemplate#executeInBatches(Iterator, int, long, JcrSessionTemplate.BatchCallback)}.
+ * <p>
+ * When {@link #PROP_QUEUE_SIZE} paths are pending, events for new paths are not queued anymore. Instead, the path is
+ * rescanned later: managed nodes at or below it are tracked, tracked nodes that no longer exist are untracked.
+ * Rescans of nested paths are merged, when there are too many, the whole search paths are rescanned.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ManagedConfigurationEventPipeline {
+    public static final String PROP_WORKERS = "observation.workers";
+    public static final String PROP_BATCH_SIZE = "observation.batchSize";
+    public static final String PROP_QUEUE_SIZE = "observation.queueSize";
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final Logger logger = LoggerFactory.getLogger(ManagedConfigurationEventPipeline.class);
+    private static final String QUERY_CONFIG_NODES = "SELECT * FROM [%s] AS s WHERE ISDESCENDANTNODE([%s])";
+    private static final int MAX_RESCANS = 16;
+
+    private enum Action {
+        TRACK, UNTRACK, RETRACK, UPDATE
+    }
+
+    private final ManagedConfigurationTracker tracker;
+    private final JcrSessionTemplate<Void> sessionTemplate;
+    private final String[] searchPaths;
+    private final int batchSize;
+    private final int queueSize;
+    private final InstrumentedExecutor executor;
+
+    //all guarded by this
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private final Set<String> rescans = new LinkedHashSet<>();
+    private boolean stopped;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rescanned = new AtomicLong();
+    private final AtomicLong totalLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    /**
+     * @param tracker     the tracker to (un)track nodes with, not null.
+     * @param sessionPool the pool to borrow sessions from, every worker uses its own session per batch.
+     * @param searchPaths the observed paths, rescanned as a whole when too many rescans pile up.
+     * @param workers     the number of threads handling events.
+     * @param batchSize   the maximum number of paths handled together.
+     * @param queueSize   the maximum number of pending paths.
+     */
+    public ManagedConfigurationEventPipeline(ManagedConfigurationTracker tracker, JcrSessionPool sessionPool, String[] searchPaths,
+                                             int workers, int batchSize, int queueSize) {
+        Assert.notNull(tracker);
+        this.tracker = tracker;
+        this.sessionTemplate = new JcrSessionTemplate<>(sessionPool);
+        this.searchPaths = searchPaths.clone();
+        this.batchSize = Math.max(1, batchSize);
+        this.queueSize = Math.max(1, queueSize);
+        int threads = Math.max(1, workers);
+        this.executor = new InstrumentedExecutor("config-events", threads, threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(this::work);
+        }
+    }
+
+    /**
+     * Records that a managed node was added, never blocks.
+     *
+     * @param path the path of the node.
+     */
+    public void added(String path) {
+        offer(path, Action.TRACK, null);
+    }
+
+    /**
+     * Records that a node was removed, never blocks.
+     *
+     * @param path the path of the node.
+     */
+    public void removed(String path) {
+        offer(path, Action.UNTRACK, null);
+    }
+
+    /**
+     * Records that a property of a managed node was added or changed, never blocks.
+     *
+     * @param path         the path of the node.
+     * @param propertyName the name of the property.
+     */
+    public void propertyChanged(String path, String propertyName) {
+        offer(path, Action.UPDATE, propertyName);
+    }
+
+    private synchronized void offer(String path, Action action, String propertyName) {
+        if (stopped) {
+            return;
+        }
+        received.incrementAndGet();
+        Pending existing = pending.get(path);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            if (action == Action.UPDATE) {
+                if (existing.action == Action.UPDATE) {
+                    existing.propertyNames.add(propertyName);
+                }
+                //else: (re)tracking the node resolves all properties anyway, untracking none
+            } else if (existing.action == Action.UPDATE) {
+                //the node itself was added or removed, that covers its properties
+                existing.action = action == Action.TRACK ? Action.RETRACK : action;
+                existing.propertyNames = null;
+            } else if (action == Action.UNTRACK && existing.action == Action.TRACK) {
+                //added and removed before we got to it, nothing happened
+                pending.remove(path);
+                cancelled.incrementAndGet();
+            } else if (action == Action.TRACK && existing.action != Action.TRACK) {
+                //removed (or replaced) and added again
+                existing.action = Action.RETRACK;
+            } else if (action == Action.UNTRACK) {
+                existing.action = Action.UNTRACK;
+            }
+            return;
+        }
+        if (pending.size() >= queueSize) {
+            if (action == Action.UPDATE) {
+                //a rescan only finds added and removed nodes
+                dropped.incrementAndGet();
+                logger.warn("Too many managed configuration events pending, ignoring change of property '{}' of node '{}'", propertyName, path);
+                return;
+            }
+            overflowed.incrementAndGet();
+            scheduleRescan(path);
+        } else {
+            Pending event = new Pending(path, action);
+            if (action == Action.UPDATE) {
+                event.propertyNames = new HashSet<>();
+                event.propertyNames.add(propertyName);
+            }
+            pending.put(path, event);
+        }
+        notifyAll();
+    }
+
+    //MUST be called holding the lock
+    private void scheduleRescan(String path) {
+        for (String rescan : rescans) {
+            if (isSameOrBelow(path, rescan)) {
+                //already covered
+                return;
+            }
+        }
+        rescans.removeIf(rescan -> isSameOrBelow(rescan, path));
+        rescans.add(path);
+        if (rescans.size() > MAX_RESCANS) {
+            logger.warn("Too many managed configuration rescans pending, rescanning all search paths.");
+            rescans.clear();
+            rescans.addAll(Arrays.asList(searchPaths));
+        }
+    }
+
+    private static boolean isSameOrBelow(String path, String ancestor) {
+        return path.equals(ancestor) || path.startsWith(ancestor.endsWith("/") ? ancestor : ancestor + "/");
+    }
+
+    private void work() {
+        while (true) {
+            String rescan = null;
+            List<Pending> batch = Collections.emptyList();
+            synchronized (this) {
+                while (!stopped && batch.isEmpty()) {
+                    batch = drain();
+                    if (batch.isEmpty()) {
+                        rescan = poll();
+                        if (rescan != null) {
+                            break;
+                        }
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+            }
+            try {
+                if (rescan != null) {
+                    runRescan(rescan);
+                } else {
+                    process(batch);
+                }
+            } finally {
+                synchronized (this) {
+                    for (Pending event : batch) {
+                        inFlight.remove(event.path);
+                    }
+                    if (rescan != null) {
+                        inFlight.remove(rescan);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    //MUST be called holding the lock, takes the oldest pending paths that no other worker is busy with
+    private List<Pending> drain() {
+        List<Pending> batch = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Iterator<Pending> events = pending.values().iterator(); events.hasNext() && batch.size() < batchSize; ) {
+            Pending event = events.next();
+            if (!inFlight.contains(event.path)) {
+                events.remove();
+                inFlight.add(event.path);
+                batch.add(event);
+                long lag = now - event.since;
+                totalLag.addAndGet(lag);
+                maxLag.accumulateAndGet(lag, Math::max);
+            }
+        }
+        return batch;
+    }
+
+    //MUST be called holding the lock, rescans go after the queued events, those are usually what's left to do
+    private String poll() {
+        for (Iterator<String> iterator = rescans.iterator(); iterator.hasNext(); ) {
+            String rescan = iterator.next();
+            if (inFlight.stream().noneMatch(path -> isSameOrBelow(path, rescan) || isSameOrBelow(rescan, path))) {
+                iterator.remove();
+                inFlight.add(rescan);
+                return rescan;
+            }
+        }
+        return null;
+    }
+
+    private void process(List<Pending> batch) {
+        //a batch has a single event per path, so handling the edits apart doesn't change the order of a node's events
+        List<Pending> updates = new ArrayList<>();
+        List<Pending> others = new ArrayList<>();
+        for (Pending event : batch) {
+            (event.action == Action.UPDATE ? updates : others).add(event);
+        }
+        if (!updates.isEmpty()) {
+            reconfigure(updates);
+        }
+        if (!others.isEmpty()) {
+            track(others);
+        }
+    }
+
+    //edits are saved together, a failing node is rolled back without taking down the edits of the other nodes
+    private void reconfigure(List<Pending> updates) {
+        try {
+            sessionTemplate.executeInBatches(updates.iterator(), updates.size(), 0, new JcrSessionTemplate.BatchCallback<Pending>() {
+                @Override
+                public boolean execute(Session session, Pending event) throws Exception {
+                    //from the configuration the node has, no need to fetch anything
+                    return tracker.reconfigure(session, event.path, event.propertyNames);
+                }
+
+                @Override
+                public void onSuccess(Pending event, boolean changed) {
+                    processed.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Pending event, Exception e) {
+                    failed.incrementAndGet();
+                    logger.error("Error handling " + event.action + " of JCR node '" + event.path + "' for tracked managed configuration", e);
+                }
+            });
+        } catch (Exception e) {
+            failed.addAndGet(updates.size());
+            logger.error("Error handling " + updates.size() + " managed configuration events", e);
+        }
+    }
+
+    private void track(List<Pending> batch) {
+        try {
+            sessionTemplate.execute(new JcrSessionTemplate.Callback<Void>() {
+                @Override
+                public Void execute(Session session) throws Exception {
+                    List<Node> added = new ArrayList<>();
+                    for (Pending event : batch) {
+                        try {
+                            if (event.action != Action.TRACK) {
+                                tracker.untrack(event.path);
+                            }
+                            if (event.action != Action.UNTRACK && session.nodeExists(event.path)) {
+                                added.add(session.getNode(event.path));
+                            }
+                            processed.incrementAndGet();
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            logger.error("Error handling " + event.action + " of JCR node '" + event.path + "' for tracked managed configuration", e);
+                        }
+                    }
+                    if (!added.isEmpty()) {
+                        //track together, so their configurations are fetched in batch while the nodes are read
+                        tracker.track(added);
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            logger.error("Error handling " + batch.size() + " managed configuration events", e);
+        }
+    }
+
+    /**
+     * Schedules a rescan of the path, to bring the tracked nodes at or below it in line with the repository:
+     * tracked nodes that no longer exist are untracked, managed nodes that aren't tracked yet are tracked.
+     *
+     * @param path the path to rescan.
+     */
+    public synchronized void rescan(String path) {
+        if (!stopped) {
+            scheduleRescan(path);
+            notifyAll();
+        }
+    }
+
+    private void runRescan(String path) {
+        logger.info("Rescanning managed configuration nodes below '{}'", path);
+        rescanned.incrementAndGet();
+        try {
+            sessionTemplate.execute(new JcrSessionTemplate.Callback<Void>() {
+                @Override
+                public Void execute(Session session) throws Exception {
+                    List<ManagedConfiguration> removed = new ArrayList<>();
+                    for (ManagedConfiguration configuration : tracker.getManagedConfigurations()) {
+                        if (isSameOrBelow(configuration.getNodePath(), path) && !session.nodeExists(configuration.getNodePath())) {
+                            removed.add(configuration);
+                        }
+                    }
+                    for (ManagedConfiguration configuration : removed) {
+                        tracker.untrack(configuration, null);
+                    }
+                    List<Node> found = new ArrayList<>();
+                    if (session.nodeExists(path)) {
+                        Node node = session.getNode(path);
+                        if (node.isNodeType(ManagedConfigurationMixin.NODE_TYPE)) {
+                            found.add(node);
+                        }
+                        Query query = session.getWorkspace().getQueryManager().createQuery(
+                                String.format(QUERY_CONFIG_NODES, ManagedConfigurationMixin.NODE_TYPE, path), Query.JCR_SQL2);
+                        NodeIterator nodes = query.execute().getNodes();
+                        while (nodes.hasNext()) {
+                            found.add(nodes.nextNode());
+                        }
+                    }
+                    //already tracked nodes are ignored
+                    int tracked = tracker.track(found);
+                    logger.info("Rescan of '{}' done, {} nodes untracked, {} of {} managed nodes found newly tracked",
+                            new Object[]{path, removed.size(), tracked, found.size()});
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.error("Error rescanning managed configuration nodes below '" + path + "'", e);
+        }
+    }
+
+    /**
+     * Stops the workers, pending events are dropped.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            pending.clear();
+            rescans.clear();
+            notifyAll();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the current statistics of this pipeline.
+     */
+    public Stats getStats() {
+        int queued;
+        int active;
+        int rescansPending;
+        long oldest = 0;
+        synchronized (this) {
+            queued = pending.size();
+            active = inFlight.size();
+            rescansPending = rescans.size();
+            if (!pending.isEmpty()) {
+                oldest = System.currentTimeMillis() - pending.values().iterator().next().since;
+            }
+        }
+        return new Stats(queued, active, rescansPending, received.get(), coalesced.get(), cancelled.get(), processed.get(),
+                failed.get(), overflowed.get(), dropped.get(), rescanned.get(), totalLag.get(), maxLag.get(), oldest);
+    }
+
+    private static final class Pending {
+        private final String path;
+        private final long since = System.currentTimeMillis();
+        private Action action;
+        //names of the changed properties, only for updates
+        private Set<String> propertyNames;
+
+        private Pending(String path, Action action) {
+            this.path = path;
+            this.action = action;
+        }
+    }
+
+    /**
+     * Point in time statistics of a {@link ManagedConfigurationEventPipeline}.
+     */
+    public static final class Stats {
+        private final int queueDepth;
+        private final int inFlight;
+        private final int pendingRescans;
+        private final long receivedCount;
+        private final long coalescedCount;
+        private final long cancelledCount;
+        private final long processedCount;
+        private final long failedCount;
+        private final long overflowCount;
+        private final long droppedCount;
+        private final long rescanCount;
+        private final long totalLag;
+        private final long maxLag;
+        private final long currentLag;
+
+        Stats(int queueDepth, int inFlight, int pendingRescans, long receivedCount, long coalescedCount, long cancelledCount,
+              long processedCount, long failedCount, long overflowCount, long droppedCount, long rescanCount, long totalLag, long maxLag, long currentLag) {
+            this.queueDepth = queueDepth;
+            this.inFlight = inFlight;
+            this.pendingRescans = pendingRescans;
+            this.receivedCount = receivedCount;
+            this.coalescedCount = coalescedCount;
+            this.cancelledCount = cancelledCount;
+            this.processedCount = processedCount;
+            this.failedCount = failedCount;
+            this.overflowCount = overflowCount;
+            this.droppedCount = droppedCount;
+            this.rescanCount = rescanCount;
+            this.totalLag = totalLag;
+            this.maxLag = maxLag;
+            this.currentLag = currentLag;
+        }
+
+        /**
+         * @return the number of paths with pending events.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return the number of paths being handled right now.
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public int getPendingRescans() {
+            return pendingRescans;
+        }
+
+        public long getReceivedCount() {
+            return receivedCount;
+        }
+
+        /**
+         * @return the number of events merged into a pending event for the same path.
+         */
+        public long getCoalescedCount() {
+            return coalescedCount;
+        }
+
+        /**
+         * @return the number of additions that were cancelled by a removal before they were handled.
+         */
+        public long getCancelledCount() {
+            return cancelledCount;
+        }
+
+        public long getProcessedCount() {
+            return processedCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return the number of events that didn't fit in the queue, and were replaced by a rescan.
+         */
+        public long getOverflowCount() {
+            return overflowCount;
+        }
+
+        /**
+         * @return the number of property changes that didn't fit in the queue, and were ignored.
+         */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        public long getRescanCount() {
+            return rescanCount;
+        }
+
+        /**
+         * @return the average time between the first event for a path and handling it, in milliseconds.
+         */
+        public double getAverageLag() {
+            long handled = processedCount + failedCount;
+            return handled == 0 ? 0.0 : (double) totalLag / handled;
+        }
+
+        /**
+         * @return the longest time between the first event for a path and handling it, in milliseconds.
+         */
+        public long getMaxLag() {
+            return maxLag;
+        }
+
+        /**
+         * @return the age of the oldest pending event, in milliseconds.
+         */
+        public long getCurrentLag() {
+            return currentLag;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[queued=%d, inFlight=%d, rescans=%d, received=%d, coalesced=%d, cancelled=%d, processed=%d, failed=%d, overflow=%d, dropped=%d, rescanned=%d, avgLag=%.1fms, maxLag=%dms, lag=%dms]",
+                    queueDepth, inFlight, pendingRescans, receivedCount, coalescedCount, cancelledCount, processedCount,
+                    failedCount, overflowCount, droppedCount, rescanCount, getAverageLag(), maxLag, currentLag);
+        }
+    }
+}
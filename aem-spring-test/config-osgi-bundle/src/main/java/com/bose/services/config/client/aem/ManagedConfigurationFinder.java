@@ -6,63 +6,321 @@ import org.slf4j.LoggerFactory;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
-import javax.jcr.RepositoryException;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Searches for managed configuration, retrieves remote configuration properties, and resolves placeholders.
  * Each node that is changed is updated with meta-data defined by {@see ManagedConfigurationMixin} and tracked using {@see ManagedConfigurationTracker}.
  * <p>
- * This service runs in it's own thread
+ * Discovery is streamed: the query results are read lazily and handed over in pages of node paths through a bounded
+ * queue to a pool of workers, which track (and so configure) the nodes of a page together. When the workers can't keep
+ * up, the queue fills up and reading the query results waits, so memory use doesn't depend on the number of nodes.
+ * Progress can be followed with {@link #getStats()}, {@link #getCompletion()} completes once all nodes are done
+ * (e.g. to hold back readiness until then).
+ * <p>
+ * This service runs in it's own thread, the thread calling {@link #run()} reads the query results. It reads them with a
+ * session of its own, not one from the {@link JcrSessionPool}: it's needed for the whole discovery run.
  *
  * @author Niki Driessen
  */
 //@Component(immediate = true)
 //@Service(ManagedConfigurationFinder.class)
 public class ManagedConfigurationFinder implements Runnable {
+    public static final int DEFAULT_WORKERS = 3;
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_QUEUE_SIZE = 4;
     private static final Logger logger = LoggerFactory.getLogger(ManagedConfigurationFinder.class);
     private static final String QUERY_CONFIG_NODES = "SELECT * FROM [%s] AS s WHERE ISDESCENDANTNODE([%s])";
+    //tells a worker there are no more pages, compared by identity
+    private static final List<String> END = new ArrayList<>(0);
 
     private ManagedConfigurationTracker managedConfigurationTracker;
     private JcrSessionTemplate<Void> sessionTemplate;
-    private final String searchQuery;
+    private JcrSessionTemplate<Void> searchSessionTemplate;
+    private final String[] searchPaths;
+    private final int workers;
+    private final int pageSize;
+    private final BlockingQueue<List<String>> pages;
+    private final CompletableFuture<Stats> completion = new CompletableFuture<>();
+    private volatile InstrumentedExecutor executor;
+    private volatile boolean cancelled;
+
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong tracked = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong failedSearches = new AtomicLong();
+    private volatile long started;
+    private volatile long finished;
+
+    public ManagedConfigurationFinder(String searchPath, ManagedConfigurationTracker managedConfigurationTracker, SlingRepository repository,
+                                      JcrSessionPool sessionPool) {
+        this(new String[]{searchPath}, managedConfigurationTracker, repository, sessionPool, DEFAULT_WORKERS, DEFAULT_PAGE_SIZE, DEFAULT_QUEUE_SIZE);
+    }
 
-    public ManagedConfigurationFinder(String searchPath, ManagedConfigurationTracker managedConfigurationTracker, SlingRepository repository) {
+    /**
+     * @param searchPaths                 the paths to search managed nodes below.
+     * @param managedConfigurationTracker the tracker to track the nodes with, not null.
+     * @param repository                  the repository to log in to for reading the query results, not null.
+     * @param sessionPool                 the pool to borrow sessions from, every worker uses its own session.
+     * @param workers                     the number of threads tracking nodes.
+     * @param pageSize                    the number of nodes tracked together.
+     * @param queueSize                   the maximum number of pages waiting for a worker.
+     */
+    public ManagedConfigurationFinder(String[] searchPaths, ManagedConfigurationTracker managedConfigurationTracker, SlingRepository repository,
+                                      JcrSessionPool sessionPool, int workers, int pageSize, int queueSize) {
         this.managedConfigurationTracker = managedConfigurationTracker;
-        this.sessionTemplate = new JcrSessionTemplate<Void>(repository);
-        this.searchQuery = String.format(QUERY_CONFIG_NODES, ManagedConfigurationMixin.NODE_TYPE, searchPath);
+        this.sessionTemplate = new JcrSessionTemplate<Void>(sessionPool);
+        this.searchSessionTemplate = new JcrSessionTemplate<Void>(repository);
+        this.searchPaths = searchPaths.clone();
+        this.workers = Math.max(1, workers);
+        this.pageSize = Math.max(1, pageSize);
+        this.pages = new ArrayBlockingQueue<>(Math.max(1, queueSize));
     }
 
     @Override
     public void run() {
+        started = System.currentTimeMillis();
+        InstrumentedExecutor executor = new InstrumentedExecutor("config-discovery", workers, workers);
+        this.executor = executor;
+        List<CompletableFuture<Void>> consumers = new ArrayList<>();
         try {
-            sessionTemplate.execute(new JcrSessionTemplate.Callback<Void>() {
-                @Override
-                public Void execute(Session session) throws Exception {
-                    logger.info("Searching all managed configuration nodes in the JCR");
-                    QueryManager queryManager = session.getWorkspace().getQueryManager();
-                    Query query = queryManager.createQuery(searchQuery, Query.JCR_SQL2);
-                    QueryResult result = query.execute();
-                    NodeIterator nodes = result.getNodes();
-                    while (nodes.hasNext()) {
-                        Node node = nodes.nextNode();
-                        try {
-                            managedConfigurationTracker.track(node);
-                        } catch (RepositoryException e) {
-                            logger.error("Error creating managed configuration, issues with accessing the supplied node, skipping node '{}'", node.getPath());
-                        } catch (ConfigurationException e) {
-                            logger.error("Could not configure the node, skipping node '{}'", node.getPath());
-                        }
-                    }
-                    return null;
+            for (int i = 0; i < workers; i++) {
+                consumers.add(CompletableFuture.runAsync(this::consume, executor));
+            }
+            for (String searchPath : searchPaths) {
+                if (cancelled) {
+                    break;
                 }
-            });
+                try {
+                    produce(searchPath);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                } catch (Exception e) {
+                    //the other search paths are still searched
+                    failedSearches.incrementAndGet();
+                    logger.error("Error while searching managed configuration nodes below '" + searchPath
+                            + "'... Property placeholders might not be replaced!", e);
+                }
+            }
         } catch (Throwable e) {
             logger.error("Error while searching managed configuration nodes... Property placeholders might not be replaced!", e);
+        } finally {
+            try {
+                for (int i = 0; i < consumers.size() && !cancelled; i++) {
+                    pages.put(END);
+                }
+                CompletableFuture.allOf(consumers.toArray(new CompletableFuture[consumers.size()])).join();
+            } catch (Exception e) {
+                logger.warn("Interrupted while waiting for managed configuration nodes to be tracked", e);
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdown();
+                finished = System.currentTimeMillis();
+                Stats stats = getStats();
+                logger.info("Managed configuration discovery done: {}", stats);
+                completion.complete(stats);
+            }
+        }
+    }
+
+    //reads the query results lazily, a page at a time, waits while the queue is full
+    private void produce(String searchPath) throws Exception {
+        searchSessionTemplate.execute(new JcrSessionTemplate.Callback<Void>() {
+            @Override
+            public Void execute(Session session) throws Exception {
+                logger.info("Searching all managed configuration nodes below '{}'", searchPath);
+                QueryManager queryManager = session.getWorkspace().getQueryManager();
+                Query query = queryManager.createQuery(String.format(QUERY_CONFIG_NODES, ManagedConfigurationMixin.NODE_TYPE, searchPath), Query.JCR_SQL2);
+                QueryResult result = query.execute();
+                NodeIterator nodes = result.getNodes();
+                List<String> page = new ArrayList<>(pageSize);
+                while (nodes.hasNext() && !cancelled) {
+                    page.add(nodes.nextNode().getPath());
+                    found.incrementAndGet();
+                    if (page.size() >= pageSize) {
+                        pages.put(page);
+                        page = new ArrayList<>(pageSize);
+                    }
+                }
+                if (!page.isEmpty()) {
+                    pages.put(page);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void consume() {
+        while (!cancelled) {
+            List<String> page;
+            try {
+                page = pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (page == END) {
+                return;
+            }
+            try {
+                sessionTemplate.execute(new JcrSessionTemplate.Callback<Void>() {
+                    @Override
+                    public Void execute(Session session) throws Exception {
+                        List<Node> nodes = new ArrayList<>(page.size());
+                        for (String path : page) {
+                            try {
+                                nodes.add(session.getNode(path));
+                            } catch (PathNotFoundException e) {
+                                //deleted in the mean time
+                                skipped.incrementAndGet();
+                            }
+                        }
+                        //track a page at once, so their configurations are fetched in batch
+                        int count = managedConfigurationTracker.track(nodes);
+                        tracked.addAndGet(count);
+                        skipped.addAndGet(nodes.size() - count);
+                        return null;
+                    }
+                });
+            } catch (Exception e) {
+                failed.addAndGet(page.size());
+                logger.error("Error tracking " + page.size() + " managed configuration nodes, starting with '" + page.get(0) + "'", e);
+            }
+            logger.debug("Managed configuration discovery progress: {}", getStats());
         }
     }
 
+    /**
+     * Stops discovery, nodes that have not been tracked yet are left alone.
+     */
+    public void cancel() {
+        cancelled = true;
+        pages.clear();
+        InstrumentedExecutor executor = this.executor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return completes with the final statistics once all nodes found have been handled (or discovery was cancelled).
+     */
+    public CompletableFuture<Stats> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * @return the current statistics of the discovery.
+     */
+    public Stats getStats() {
+        long end = finished != 0 ? finished : System.currentTimeMillis();
+        return new Stats(found.get(), tracked.get(), skipped.get(), failed.get(), failedSearches.get(), pages.size(),
+                started == 0 ? 0 : end - started, completion.isDone() || finished != 0);
+    }
+
+    /**
+     * Point in time statistics of a {@link ManagedConfigurationFinder}.
+     */
+    public static final class Stats {
+        private final long foundCount;
+        private final long trackedCount;
+        private final long skippedCount;
+        private final long failedCount;
+        private final long failedSearchCount;
+        private final int queueDepth;
+        private final long elapsedTime;
+        private final boolean done;
+
+        Stats(long foundCount, long trackedCount, long skippedCount, long failedCount, long failedSearchCount, int queueDepth,
+              long elapsedTime, boolean done) {
+            this.foundCount = foundCount;
+            this.trackedCount = trackedCount;
+            this.skippedCount = skippedCount;
+            this.failedCount = failedCount;
+            this.failedSearchCount = failedSearchCount;
+            this.queueDepth = queueDepth;
+            this.elapsedTime = elapsedTime;
+            this.done = done;
+        }
+
+        /**
+         * @return the number of managed nodes found so far.
+         */
+        public long getFoundCount() {
+            return foundCount;
+        }
+
+        /**
+         * @return the number of nodes that are now tracked and configured.
+         */
+        public long getTrackedCount() {
+            return trackedCount;
+        }
+
+        /**
+         * @return the number of nodes that were already tracked, deleted in the mean time or could not be configured.
+         */
+        public long getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * @return the number of nodes in pages that could not be tracked at all.
+         */
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return the number of search paths that could not be searched (completely), nodes below them may be missing.
+         */
+        public long getFailedSearchCount() {
+            return failedSearchCount;
+        }
+
+        /**
+         * @return the number of pages waiting for a worker.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return the time since discovery started, or the time it took when done, in milliseconds.
+         */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return the fraction of the nodes found so far that has been handled, between 0 and 1.
+         */
+        public double getProgress() {
+            long handled = trackedCount + skippedCount + failedCount;
+            return foundCount == 0 ? (done ? 1.0 : 0.0) : Math.min(1.0, (double) handled / foundCount);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[found=%d, tracked=%d, skipped=%d, failed=%d, failed searches=%d, queued=%d pages, progress=%.0f%%, elapsed=%dms%s]",
+                    foundCount, trackedCount, skippedCount, failedCount, failedSearchCount, queueDepth, getProgress() * 100, elapsedTime,
+                    done ? ", done" : "");
+        }
+    }
 }
@@ -24,6 +24,10 @@ public final class ManagedConfigurationMixin {
     public static final String NODE_TYPE = PREFIX + "managed";
     public static final String PROPERTY_MANAGED_PROPS = PREFIX + "managedProps";
     public static final String PROPERTY_LAST_UPDATE = PREFIX + "lastUpdate";
+    /**
+     * Fingerprint of the templates and configuration the node was last resolved with, to skip nodes that are up to date.
+     */
+    public static final String PROPERTY_FINGERPRINT = PREFIX + "fingerprint";
     public static final String PROPERTY_ADDITIONAL_PROFILES = PREFIX + "additionalProfiles";
     public static final String PROPERTY_CONFIG_NAME = PREFIX + "configName";
 
@@ -57,6 +61,11 @@ public final class ManagedConfigurationMixin {
             lastUpdateDefinition.setMandatory(false);
             //managedPropsDefinition.setProtected(true);
             lastUpdateDefinition.setRequiredType(PropertyType.DATE);
+            PropertyDefinitionTemplate fingerprintDefinition = manager.createPropertyDefinitionTemplate();
+            fingerprintDefinition.setName(PROPERTY_FINGERPRINT);
+            fingerprintDefinition.setMultiple(false);
+            fingerprintDefinition.setMandatory(false);
+            fingerprintDefinition.setRequiredType(PropertyType.STRING);
             PropertyDefinitionTemplate additionalProfilesDefinition = manager.createPropertyDefinitionTemplate();
             additionalProfilesDefinition.setName(PROPERTY_ADDITIONAL_PROFILES);
             additionalProfilesDefinition.setMultiple(true);
@@ -65,6 +74,7 @@ public final class ManagedConfigurationMixin {
             // Add property to node type
             nodeTypeTemplate.getPropertyDefinitionTemplates().add(managedPropsDefinition);
             nodeTypeTemplate.getPropertyDefinitionTemplates().add(lastUpdateDefinition);
+            nodeTypeTemplate.getPropertyDefinitionTemplates().add(fingerprintDefinition);
             nodeTypeTemplate.getPropertyDefinitionTemplates().add(additionalProfilesDefinition);
             nodeTypeTemplate.getPropertyDefinitionTemplates().add(configNameDefinition);
             /* Register node type */
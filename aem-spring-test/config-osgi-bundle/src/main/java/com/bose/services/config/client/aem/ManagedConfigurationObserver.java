@@ -1,73 +1,81 @@
 package com.bose.services.config.client.aem;
 
-import org.apache.felix.scr.annotations.Reference;
-import org.apache.sling.jcr.api.SlingRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.observation.Event;
 import javax.jcr.observation.EventIterator;
 import javax.jcr.observation.EventListener;
 
 /**
  * JCR Observer that will detect added, removed or changed managed configuration nodes and will inform the
- * {@link ManagedConfigurationTracker} accordingly.
+ * {@link ManagedConfigurationTracker} accordingly, through a {@link ManagedConfigurationEventPipeline}.
+ * <p>
+ * Added and changed properties of managed nodes are passed on as well, unless they were written by this service
+ * (see {@link JcrSessionPool#USER_DATA}), or are never resolved anyway (e.g. <code>jcr:</code> and meta-data properties).
  */
 //@Component
 public class ManagedConfigurationObserver implements EventListener {
     public static final String PROP_SEARCH_PATH = "search.path";
     private static final Logger logger = LoggerFactory.getLogger(ManagedConfigurationObserver.class);
     private static final String JCR_MIXIN_TYPES = "jcr:mixinTypes";
-    private Session session;
+    static final int PROPERTY_EVENTS = Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED;
 
     //@org.apache.felix.scr.annotations.Property(name = PROP_SEARCH_PATH, label = "Search Path")
     private String searchPath;
-    //@Reference
-    private SlingRepository repository;
 
-    private JcrSessionTemplate<Void> sessionTemplate;
-    @Reference
-    private ManagedConfigurationTracker tracker;
+    private ManagedConfigurationEventPipeline pipeline;
+    //true if the repository only delivers events for managed nodes
+    private volatile boolean filtered;
 
-    public ManagedConfigurationObserver(String searchPath, ManagedConfigurationTracker tracker, SlingRepository repository) {
-        this.repository = repository;
-        this.tracker = tracker;
+    public ManagedConfigurationObserver(String searchPath, ManagedConfigurationEventPipeline pipeline) {
         this.searchPath = searchPath;
-        this.sessionTemplate = new JcrSessionTemplate<Void>(repository);
+        this.pipeline = pipeline;
     }
 
+    /**
+     * Only records the events in the {@link ManagedConfigurationEventPipeline}, the observation thread is never kept
+     * busy with tracking nodes.
+     */
     public void onEvent(EventIterator events) {
-        try {
-            if (events != null) {
-                sessionTemplate.execute(new JcrSessionTemplate.Callback<Void>() {
-                    @Override
-                    public Void execute(Session session) throws Exception {
-                        while (events.hasNext()) {
-                            Event event = (Event) events.next();
-                            try {
-                                if (event.getType() == Event.NODE_ADDED && hasMixin(event)) {
-                                    Node node = session.getNode(event.getPath());
-                                    tracker.track(node);
-                                } else if (event.getType() == Event.NODE_REMOVED) {
-                                    tracker.untrack(event.getPath());
-                                }
-                                logger.info("Received JCR event for path: " + event.getPath());
-                            } catch (Exception e) {
-                                logger.error("Error adding/removing JCR node to/from tracked managed configuration", e);
-                            }
-                        }
-                        return null;
+        if (events == null) {
+            return;
+        }
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            try {
+                if (event.getType() == Event.NODE_ADDED && (filtered || hasMixin(event))) {
+                    pipeline.added(event.getPath());
+                } else if (event.getType() == Event.NODE_REMOVED) {
+                    pipeline.removed(event.getPath());
+                } else if ((event.getType() & PROPERTY_EVENTS) != 0 && !isOwnWrite(event)) {
+                    String path = event.getPath();
+                    int separator = path.lastIndexOf('/');
+                    String propertyName = path.substring(separator + 1);
+                    if (PlaceHolderAwareNode.isResolvable(propertyName)) {
+                        pipeline.propertyChanged(separator > 0 ? path.substring(0, separator) : "/", propertyName);
                     }
-                });
+                }
+                logger.debug("Received JCR event for path: " + event.getPath());
+            } catch (Exception e) {
+                logger.error("Error handling JCR event", e);
             }
-        } catch (Exception e) {
-            logger.error("Error handling JCR event", e);
         }
     }
 
+    /**
+     * @param filtered <code>true</code> if the listener was registered with a filter that only passes managed nodes,
+     *                 see {@link ManagedConfigurationEventFilter}.
+     */
+    void setFiltered(boolean filtered) {
+        this.filtered = filtered;
+    }
+
+    private static boolean isOwnWrite(Event event) throws RepositoryException {
+        return JcrSessionPool.USER_DATA.equals(event.getUserData());
+    }
+
     private boolean hasMixin(Event event) throws RepositoryException {
         @SuppressWarnings("unchecked")
         String[] mixins = (String[]) event.getInfo().getOrDefault(JCR_MIXIN_TYPES, new String[0]);
@@ -80,53 +88,4 @@ public class ManagedConfigurationObserver implements EventListener {
         }
         return false;
     }
-
-    /**
-     * @Activate public void activate(ComponentContext componentContext) {
-     * try {
-     * String searchPath = PropertyUtils.getProperty(PROP_SEARCH_PATH, componentContext, ManagedConfigurationServiceFactory.DEFAULT_SEARCH_PATH);
-     * session = repository.loginAdministrative(null);
-     * session.getWorkspace().getObservationManager().addEventListener(this, // listener
-     * Event.NODE_ADDED | Event.NODE_REMOVED, // eventTypes
-     * searchPath, // absPath
-     * true, // isDeep
-     * null, // uuid
-     * new String[]{ManagedConfigurationMixin.NODE_TYPE}, //nodeTypeNames
-     * true // noLocal
-     * );
-     * } catch (RepositoryException e) {
-     * logger.error("FATAL - Error registering JCR Observation listener, will NOT detect new managed config nodes!");
-     * }
-     * <p>
-     * }
-     * @Deactivate public void deactivate(ComponentContext componentContext) {
-     * try {
-     * session.getWorkspace().getObservationManager().removeEventListener(this);
-     * session.logout();
-     * session = null;
-     * } catch (RepositoryException e) {
-     * //nothing we can do about that...
-     * }
-     * }
-     */
-
-    @SuppressWarnings("unused")
-    public void bindSlingRepository(SlingRepository repository) {
-        this.repository = repository;
-    }
-
-    @SuppressWarnings("unused")
-    public void unbindSlingRepository(SlingRepository repository) {
-        this.repository = null;
-    }
-
-    @SuppressWarnings("unused")
-    public void bindManagedConfigurationTracker(ManagedConfigurationTracker managedConfigurationTracker) {
-        this.tracker = managedConfigurationTracker;
-    }
-
-    @SuppressWarnings("unused")
-    public void unbindManagedConfigurationTracker(ManagedConfigurationTracker managedConfigurationTracker) {
-        this.tracker = null;
-    }
 }
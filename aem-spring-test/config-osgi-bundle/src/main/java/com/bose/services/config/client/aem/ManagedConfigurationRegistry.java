@@ -0,0 +1,141 @@
+package com.bose.services.config.client.aem;
+
+import org.springframework.util.Assert;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the tracked managed configurations, indexed by node path and by configuration name.
+ * <p>
+ * Looking up the configurations for a node or for a configuration name only touches the affected entries, instead of
+ * scanning all tracked configurations. Reads are lock-free and never copy, the returned sets are read-only live views
+ * that are weakly consistent (they reflect the registry at some point during iteration, and never throw a
+ * {@link java.util.ConcurrentModificationException}). Writes are serialized, but only do a constant amount of work.
+ * This class is thread-safe.
+ */
+public class ManagedConfigurationRegistry {
+    private final ConcurrentMap<String, ManagedConfiguration> byPath = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<ManagedConfiguration>> byName = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final Set<ManagedConfiguration> all = new AllView();
+
+    /**
+     * Adds the configuration, unless a configuration for the same node is already registered.
+     *
+     * @param configuration the configuration, not null.
+     * @return <code>true</code> if the configuration was added.
+     */
+    public boolean add(ManagedConfiguration configuration) {
+        Assert.notNull(configuration);
+        synchronized (writeLock) {
+            if (byPath.putIfAbsent(configuration.getNodePath(), configuration) != null) {
+                return false;
+            }
+            byName.computeIfAbsent(configuration.getConfigurationName(), name -> ConcurrentHashMap.newKeySet()).add(configuration);
+            return true;
+        }
+    }
+
+    /**
+     * Removes the configuration for the same node as the given configuration.
+     *
+     * @param configuration the configuration, not null.
+     * @return <code>true</code> if a configuration was removed.
+     */
+    public boolean remove(ManagedConfiguration configuration) {
+        Assert.notNull(configuration);
+        return remove(configuration.getNodePath()) != null;
+    }
+
+    /**
+     * Removes the configuration for the given node.
+     *
+     * @param nodePath the path of the managed node, not null.
+     * @return the removed configuration, or <code>null</code> if the node was not registered.
+     */
+    public ManagedConfiguration remove(String nodePath) {
+        Assert.notNull(nodePath);
+        synchronized (writeLock) {
+            ManagedConfiguration removed = byPath.remove(nodePath);
+            if (removed != null) {
+                Set<ManagedConfiguration> group = byName.get(removed.getConfigurationName());
+                if (group != null) {
+                    group.remove(removed);
+                    if (group.isEmpty()) {
+                        byName.remove(removed.getConfigurationName());
+                    }
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Removes all configurations.
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            byPath.clear();
+            byName.clear();
+        }
+    }
+
+    /**
+     * @param nodePath the path of the managed node, not null.
+     * @return the configuration for the node, or <code>null</code> if the node is not registered.
+     */
+    public ManagedConfiguration get(String nodePath) {
+        Assert.notNull(nodePath);
+        return byPath.get(nodePath);
+    }
+
+    /**
+     * @param configurationName the name of the configuration, not null.
+     * @return read-only view of the configurations using the given configuration name, may be empty.
+     */
+    public Set<ManagedConfiguration> getByName(String configurationName) {
+        Assert.notNull(configurationName);
+        Set<ManagedConfiguration> group = byName.get(configurationName);
+        return group != null ? Collections.unmodifiableSet(group) : Collections.emptySet();
+    }
+
+    /**
+     * @return read-only view of all configurations.
+     */
+    public Set<ManagedConfiguration> getAll() {
+        return all;
+    }
+
+    /**
+     * @return the number of registered configurations.
+     */
+    public int size() {
+        return byPath.size();
+    }
+
+    //read-only set view on the path index, managed configurations are identified by their node path
+    private class AllView extends AbstractSet<ManagedConfiguration> {
+        @Override
+        public Iterator<ManagedConfiguration> iterator() {
+            return Collections.unmodifiableCollection(byPath.values()).iterator();
+        }
+
+        @Override
+        public int size() {
+            return byPath.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof ManagedConfiguration) || ((ManagedConfiguration) o).getNodePath() == null) {
+                return false;
+            }
+            return o.equals(byPath.get(((ManagedConfiguration) o).getNodePath()));
+        }
+    }
+}
@@ -8,10 +8,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.observation.Event;
 import javax.jcr.observation.EventListener;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -22,6 +23,18 @@ public class ManagedConfigurationServiceFactory {
 
     public static final String DEFAULT_SEARCH_PATH = "/apps";
     private static final String PROP_SEARCH_PATHS = "searchPaths";
+    @Property(label = "Discovery workers", description = "Number of threads tracking and configuring the managed nodes found at startup.", intValue = ManagedConfigurationFinder.DEFAULT_WORKERS)
+    private static final String PROP_DISCOVERY_WORKERS = "discovery.workers";
+    @Property(label = "Discovery page size", description = "Number of managed nodes found at startup that are tracked together.", intValue = ManagedConfigurationFinder.DEFAULT_PAGE_SIZE)
+    private static final String PROP_DISCOVERY_PAGE_SIZE = "discovery.pageSize";
+    @Property(label = "Discovery queue size", description = "Maximum number of pages of managed nodes found at startup waiting to be tracked.", intValue = ManagedConfigurationFinder.DEFAULT_QUEUE_SIZE)
+    private static final String PROP_DISCOVERY_QUEUE_SIZE = "discovery.queueSize";
+    @Property(label = "Observation workers", description = "Number of threads handling added and removed managed nodes.", intValue = ManagedConfigurationEventPipeline.DEFAULT_WORKERS)
+    private static final String PROP_OBSERVATION_WORKERS = ManagedConfigurationEventPipeline.PROP_WORKERS;
+    @Property(label = "Observation batch size", description = "Maximum number of added or removed managed nodes handled together.", intValue = ManagedConfigurationEventPipeline.DEFAULT_BATCH_SIZE)
+    private static final String PROP_OBSERVATION_BATCH_SIZE = ManagedConfigurationEventPipeline.PROP_BATCH_SIZE;
+    @Property(label = "Observation queue size", description = "Maximum number of paths with pending events, events beyond that trigger a rescan of the path.", intValue = ManagedConfigurationEventPipeline.DEFAULT_QUEUE_SIZE)
+    private static final String PROP_OBSERVATION_QUEUE_SIZE = ManagedConfigurationEventPipeline.PROP_QUEUE_SIZE;
 
     @SuppressWarnings("FieldCanBeLocal")
     @Property(name = PROP_SEARCH_PATHS, label = "Search paths", value = {DEFAULT_SEARCH_PATH})
@@ -30,49 +43,94 @@ public class ManagedConfigurationServiceFactory {
     private ManagedConfigurationTracker tracker;
     @Reference
     private SlingRepository repository;
+    @Reference
+    private JcrSessionPool sessionPool;
 
-    private Map<String, EventListener> listeners = new HashMap<>();
+    private List<EventListener> listeners = new ArrayList<>();
     private ExecutorService searchExecutor;
-    //session MUST stay open! otherwise listeners are removed that have been added by the session!
+    private volatile ManagedConfigurationFinder finder;
+    private volatile ManagedConfigurationEventPipeline pipeline;
+    //session MUST stay open! otherwise listeners are removed that have been added by the session! so not from the pool
     private Session session;
 
     @Activate
     public void activate(ComponentContext componentContext) {
         try {
-            this.searchExecutor = Executors.newFixedThreadPool(2);
+            this.searchExecutor = Executors.newSingleThreadExecutor();
             this.searchPaths = PropertyUtils.getPropertyAsArray(PROP_SEARCH_PATHS, componentContext, new String[]{DEFAULT_SEARCH_PATH});
             this.session = repository.loginAdministrative(null);
+            //fire finder for all paths, just needs to run once, so no need to register as service
+            logger.info("Triggering {} for search paths {} (async)", ManagedConfigurationFinder.class.getName(), Arrays.toString(searchPaths));
+            ManagedConfigurationFinder finder = new ManagedConfigurationFinder(searchPaths, tracker, repository, sessionPool,
+                    PropertyUtils.getPropertyAsInt(PROP_DISCOVERY_WORKERS, componentContext, ManagedConfigurationFinder.DEFAULT_WORKERS),
+                    PropertyUtils.getPropertyAsInt(PROP_DISCOVERY_PAGE_SIZE, componentContext, ManagedConfigurationFinder.DEFAULT_PAGE_SIZE),
+                    PropertyUtils.getPropertyAsInt(PROP_DISCOVERY_QUEUE_SIZE, componentContext, ManagedConfigurationFinder.DEFAULT_QUEUE_SIZE));
+            this.finder = finder;
+            searchExecutor.execute(finder);
+            ManagedConfigurationEventPipeline pipeline = new ManagedConfigurationEventPipeline(tracker, sessionPool, searchPaths,
+                    PropertyUtils.getPropertyAsInt(PROP_OBSERVATION_WORKERS, componentContext, ManagedConfigurationEventPipeline.DEFAULT_WORKERS),
+                    PropertyUtils.getPropertyAsInt(PROP_OBSERVATION_BATCH_SIZE, componentContext, ManagedConfigurationEventPipeline.DEFAULT_BATCH_SIZE),
+                    PropertyUtils.getPropertyAsInt(PROP_OBSERVATION_QUEUE_SIZE, componentContext, ManagedConfigurationEventPipeline.DEFAULT_QUEUE_SIZE));
+            this.pipeline = pipeline;
             for (String path : searchPaths) {
-                //fire finder for path, just needs to run once, so no need to register as service
-                logger.info("Triggering {} for search path '{}' (async)", ManagedConfigurationFinder.class.getName(), path);
-                searchExecutor.execute(new ManagedConfigurationFinder(path, tracker, repository));
                 //add listener
-                java.util.Properties props = new java.util.Properties();
-                props.put(ManagedConfigurationObserver.PROP_SEARCH_PATH, path);
-                ManagedConfigurationObserver listener = new ManagedConfigurationObserver(path, tracker, repository);
-                this.listeners.put(path, listener);
+                ManagedConfigurationObserver listener = new ManagedConfigurationObserver(path, pipeline);
+                this.listeners.add(listener);
                 /**
                  * IMPORTANT - DO NOT CLOSE THIS SESSION!!!! CLOSING THE SESSION REMOVES ALL ASSOCIATED LISTENERS!
                  */
-                session.getWorkspace().getObservationManager().addEventListener(listener, // listener
-                        Event.NODE_ADDED | Event.NODE_REMOVED, // eventTypes | Event.PROPERTY_ADDED
-                        path, // absPath
-                        true, // isDeep
-                        null, // uuid
-                        null, //nodeTypeNames
-                        true // noLocal
-                );
+                //only managed nodes if the repository can filter on them, otherwise the listener checks
+                listener.setFiltered(ManagedConfigurationEventFilter.addEventListener(session, listener, path));
+                //separate listener for the edited properties, a listener can only be registered once
+                ManagedConfigurationObserver propertyListener = new ManagedConfigurationObserver(path, pipeline);
+                this.listeners.add(propertyListener);
+                ManagedConfigurationEventFilter.addPropertyListener(session, propertyListener, path);
                 logger.info("Added {} for search path '{}'", ManagedConfigurationObserver.class.getName(), path);
             }
+            //nodes may have been configured from last known good snapshots, revalidate once discovery is done
+            finder.getCompletion().thenRun(() -> tracker.scheduleRefresh(ManagedConfigurationTracker.REFRESH_ALL));
         } catch (RepositoryException e) {
             cleanup();
             throw new ConfigurationException("FATAL - Error initializing services, the managed configuration system will not work", e);
         }
     }
 
+    /**
+     * @return the progress of discovering the managed nodes at startup, null if not started.
+     */
+    public ManagedConfigurationFinder.Stats getDiscoveryStats() {
+        ManagedConfigurationFinder finder = this.finder;
+        return finder != null ? finder.getStats() : null;
+    }
+
+    /**
+     * Use this to wait with e.g. readiness until all managed nodes found at startup are configured.
+     *
+     * @return completes with the final statistics once discovery is done, null if not started.
+     */
+    public CompletableFuture<ManagedConfigurationFinder.Stats> getDiscoveryCompletion() {
+        ManagedConfigurationFinder finder = this.finder;
+        return finder != null ? finder.getCompletion() : null;
+    }
+
+    /**
+     * @return the current statistics of the observation event pipeline, null if not active.
+     */
+    public ManagedConfigurationEventPipeline.Stats getObservationStats() {
+        ManagedConfigurationEventPipeline pipeline = this.pipeline;
+        return pipeline != null ? pipeline.getStats() : null;
+    }
+
     protected void cleanup() {
         //very safely cleanup everything...
         try {
+            try {
+                if (this.finder != null) {
+                    this.finder.cancel();
+                }
+            } catch (Exception e) {
+                //ignore...
+            }
             try {
                 if (this.searchExecutor != null) {
                     this.searchExecutor.shutdownNow();
@@ -83,13 +141,20 @@ public class ManagedConfigurationServiceFactory {
             //remove listener
             try {
                 if (listeners != null) {
-                    for (EventListener listener : listeners.values()) {
+                    for (EventListener listener : listeners) {
                         session.getWorkspace().getObservationManager().removeEventListener(listener);
                     }
                 }
             } catch (Exception e) {
                 //ignore...
             }
+            try {
+                if (this.pipeline != null) {
+                    this.pipeline.shutdown();
+                }
+            } catch (Exception e) {
+                //ignore...
+            }
         } finally {
             if (session != null && session.isLive()) {
                 try {
@@ -116,6 +181,16 @@ public class ManagedConfigurationServiceFactory {
         this.repository = null;
     }
 
+    @SuppressWarnings("unused")
+    public void bindJcrSessionPool(JcrSessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+    }
+
+    @SuppressWarnings("unused")
+    public void unbindJcrSessionPool(JcrSessionPool sessionPool) {
+        this.sessionPool = null;
+    }
+
     @SuppressWarnings("unused")
     public void bindManagedConfigurationTracker(ManagedConfigurationTracker managedConfigurationTracker) {
         this.tracker = managedConfigurationTracker;
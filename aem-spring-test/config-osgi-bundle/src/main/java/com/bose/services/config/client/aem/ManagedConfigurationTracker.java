@@ -5,7 +5,6 @@ import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
-import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,11 +12,12 @@ import org.springframework.util.Assert;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.function.Consumer;
+import javax.jcr.Session;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Service for tracking managed configurations. Main API for programmatically adding and removing nodes from managed configuration,
@@ -29,20 +29,45 @@ import java.util.function.Consumer;
 @Component(immediate = true, name = "com.bose.services.config.client.aem.ManagedConfigurationTracker")
 @Service(ManagedConfigurationTracker.class)
 public class ManagedConfigurationTracker {
-    public static final String REFRESH_ALL = "*";
     private static final Logger logger = LoggerFactory.getLogger(ManagedConfigurationTracker.class);
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    //NEVER use directly, always go through the getter to ensure proper synchronization in multi-threaded access...
-    private Set<ManagedConfiguration> managedConfigurations = new HashSet<>();
+    private static final int DEFAULT_REFRESH_WORKERS = 4;
+    private static final int DEFAULT_REFRESH_BATCH_SIZE = 100;
+    private static final long DEFAULT_REFRESH_BATCH_TIME = 2000;
+    private static final long DEFAULT_REFRESH_DEBOUNCE = 1000;
+    private static final int DEFAULT_REFRESH_CONCURRENCY = 2;
+
+    @Property(label = "Refresh workers", description = "Number of threads reconfiguring managed nodes in parallel during a refresh.", intValue = DEFAULT_REFRESH_WORKERS)
+    private static final String PROP_REFRESH_WORKERS = "refresh.workers";
+    @Property(label = "Refresh batch size", description = "Maximum number of changed managed nodes saved together during a refresh.", intValue = DEFAULT_REFRESH_BATCH_SIZE)
+    private static final String PROP_REFRESH_BATCH_SIZE = "refresh.batchSize";
+    @Property(label = "Refresh batch time", description = "Maximum time in milliseconds changes to managed nodes are kept unsaved during a refresh.", longValue = DEFAULT_REFRESH_BATCH_TIME)
+    private static final String PROP_REFRESH_BATCH_TIME = "refresh.batchTime";
+    @Property(label = "Refresh debounce", description = "Time in milliseconds to wait for more refresh requests for the same configuration before refreshing.", longValue = DEFAULT_REFRESH_DEBOUNCE)
+    private static final String PROP_REFRESH_DEBOUNCE = "refresh.debounce";
+    @Property(label = "Concurrent refreshes", description = "Maximum number of scheduled refreshes (of different configurations) running at the same time.", intValue = DEFAULT_REFRESH_CONCURRENCY)
+    private static final String PROP_REFRESH_CONCURRENCY = "refresh.concurrency";
+    public static final String REFRESH_ALL = "*";
+    //number of distinct configurations fetched together while discovering nodes
+    private static final int PREFETCH_BATCH_SIZE = 100;
+    //JcrResourceConstants.AUTHENTICATION_INFO_SESSION, not worth a dependency on the jcr resource bundle
+    private static final String AUTHENTICATION_INFO_SESSION = "user.jcr.session";
+
+    private final ManagedConfigurationRegistry registry = new ManagedConfigurationRegistry();
+    private final PlaceholderIndex placeholderIndex = new PlaceholderIndex(registry);
 
     @Reference
     private ConfigurationService configurationService;
     @Reference
-    private SlingRepository repository;
+    private JcrSessionPool sessionPool;
     @Reference
     private ResourceResolverFactory resourceResolverFactory;
 
     private JcrSessionTemplate<Void> sessionTemplate;
+    private InstrumentedExecutor refreshExecutor;
+    private RefreshScheduler refreshScheduler;
+    private int refreshWorkers = DEFAULT_REFRESH_WORKERS;
+    private int refreshBatchSize = DEFAULT_REFRESH_BATCH_SIZE;
+    private long refreshBatchTime = DEFAULT_REFRESH_BATCH_TIME;
 
     /**
      * Starts tracking this node as a managed configuration node.
@@ -51,6 +76,7 @@ public class ManagedConfigurationTracker {
      * The mixin will be used to track and manage meta-data, for more information see {@link ManagedConfiguration}.
      * <p>
      * This method is thread-safe and can be called concurrently, but it <strong>MUST</strong> be called from with an active {@link javax.jcr.Session}.
+     * The node is configured (and saved) with the session of the node, so the session <strong>MUST NOT</strong> have pending changes.
      *
      * @param node the node to be tracked, not null.
      * @return <code>true</code> if the node is now tracked, false if it was already tracked.
@@ -60,19 +86,11 @@ public class ManagedConfigurationTracker {
      */
     public boolean track(Node node) throws ConfigurationException, RepositoryException {
         Assert.notNull(node);
-        String nodePath = node.getPath();
-        //logger.info("Tracking node '{}' for managed configuration changes.", nodePath);
-        Resource resource = null;
-        try {
-            ResourceResolver resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
-            resource = resourceResolver.getResource(node.getPath());
-        } catch (LoginException e) {
-            throw new RepositoryException("Error getting resource resolver", e);
-        }
-        ManagedConfiguration configuration = new ManagedConfiguration(resource);
+        ManagedConfiguration configuration = createManagedConfiguration(node);
         if (threadSafeWrite(configuration)) {
             try {
-                configuration.configure(configurationService, sessionTemplate);
+                configuration.configure(configurationService, node.getSession());
+                placeholderIndex.update(configuration);
                 logger.info("Successfully registered node '{}' for managed configuration tracking.", node.getPath());
                 return true;
             } catch (IllegalStateException e) {
@@ -87,6 +105,97 @@ public class ManagedConfigurationTracker {
         return false;
     }
 
+    /**
+     * Starts tracking all nodes as managed configuration nodes, see {@link #track(Node)}.
+     * <p>
+     * The configurations of all newly tracked nodes are fetched up front with batch calls to the
+     * {@link ConfigurationService}, instead of one call per configuration. The batches are fetched asynchronously,
+     * while the remaining nodes are still being read. Nodes that can not be tracked or configured
+     * are logged and skipped, they don't affect the other nodes.
+     * <p>
+     * This method is thread-safe and can be called concurrently, but it <strong>MUST</strong> be called from with an active {@link javax.jcr.Session}.
+     * The nodes are configured (and saved) with the sessions of the nodes, so those <strong>MUST NOT</strong> have pending changes.
+     *
+     * @param nodes the nodes to be tracked, not null.
+     * @return the number of nodes that are now tracked and configured.
+     */
+    public int track(Collection<Node> nodes) {
+        Assert.notNull(nodes);
+        //no second session while the caller holds one, the nodes are configured with the session they were read with
+        Map<ManagedConfiguration, Session> added = new LinkedHashMap<>();
+        Set<ConfigurationKey> requested = new HashSet<>();
+        List<ConfigurationKey> pending = new ArrayList<>();
+        List<CompletableFuture<?>> prefetches = new ArrayList<>();
+        for (Node node : nodes) {
+            try {
+                ManagedConfiguration configuration = createManagedConfiguration(node);
+                if (threadSafeWrite(configuration)) {
+                    added.put(configuration, node.getSession());
+                    if (requested.add(configuration.getConfigurationKey())) {
+                        pending.add(configuration.getConfigurationKey());
+                    }
+                }
+            } catch (RepositoryException e) {
+                logger.error("Error creating managed configuration, issues with accessing the supplied node, skipping node.", e);
+            }
+            if (pending.size() >= PREFETCH_BATCH_SIZE) {
+                //fetch in the background while we continue reading nodes from the JCR
+                prefetches.add(configurationService.getSnapshotsAsync(pending));
+                pending = new ArrayList<>();
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+        if (!pending.isEmpty()) {
+            prefetches.add(configurationService.getSnapshotsAsync(pending));
+        }
+        for (CompletableFuture<?> prefetch : prefetches) {
+            try {
+                //warms the cache, configuring the nodes below then doesn't need to go to the config server anymore
+                prefetch.join();
+            } catch (CompletionException e) {
+                logger.warn("Error fetching configurations in batch, falling back to fetching per node.", e.getCause());
+            }
+        }
+        int tracked = 0;
+        for (Map.Entry<ManagedConfiguration, Session> entry : added.entrySet()) {
+            ManagedConfiguration configuration = entry.getKey();
+            try {
+                configuration.configure(configurationService, entry.getValue());
+                placeholderIndex.update(configuration);
+                logger.info("Successfully registered node '{}' for managed configuration tracking.", configuration.getNodePath());
+                tracked++;
+            } catch (ConfigurationException e) {
+                logger.error("Could not configure the node, skipping node '" + configuration.getNodePath() + "'", e);
+            } catch (IllegalStateException e) {
+                //node was deleted in the mean time, see track(Node)
+                untrack(configuration, e);
+            }
+        }
+        return tracked;
+    }
+
+    private ManagedConfiguration createManagedConfiguration(Node node) throws RepositoryException {
+        ResourceResolver resourceResolver;
+        try {
+            //wraps the session the node was read with, no need to log in again (and closing it leaves the session open)
+            resourceResolver = resourceResolverFactory.getResourceResolver(
+                    Collections.singletonMap(AUTHENTICATION_INFO_SESSION, node.getSession()));
+        } catch (LoginException e) {
+            throw new RepositoryException("Error getting resource resolver", e);
+        }
+        try {
+            Resource resource = resourceResolver.getResource(node.getPath());
+            if (resource == null) {
+                throw new RepositoryException(String.format("Could not find resource at '%s'", node.getPath()));
+            }
+            return new ManagedConfiguration(resource);
+        } finally {
+            resourceResolver.close();
+        }
+    }
+
     /**
      * Convenience method for {@link #untrack(ManagedConfiguration, Exception)} without an exception as a cause for untracking the node.
      *
@@ -109,12 +218,9 @@ public class ManagedConfigurationTracker {
     @SuppressWarnings("unused")
     public void untrack(String path) throws RepositoryException {
         Assert.notNull(path);
-        Set<ManagedConfiguration> configurations = getManagedConfigurations();
-        for (ManagedConfiguration configuration : configurations) {
-            if (configuration.isForNode(path)) {
-                untrack(configuration);
-                return;
-            }
+        ManagedConfiguration configuration = registry.get(path);
+        if (configuration != null) {
+            untrack(configuration);
         }
     }
 
@@ -131,6 +237,7 @@ public class ManagedConfigurationTracker {
         Assert.notNull(configuration);
         String message = String.format("Untracking node '%s' for managed configuration changes.", configuration.getNodePath());
         threadSafeWrite(configuration, true);
+        placeholderIndex.remove(configuration.getNodePath());
         if (cause == null) {
             logger.info(message);
         } else {
@@ -143,55 +250,248 @@ public class ManagedConfigurationTracker {
     }
 
     protected boolean threadSafeWrite(ManagedConfiguration configuration, boolean remove) {
-        try {
-            lock.writeLock().lock();
-            return remove ? managedConfigurations.remove(configuration) : managedConfigurations.add(configuration);
-        } finally {
-            lock.writeLock().unlock();
+        return remove ? registry.remove(configuration) : registry.add(configuration);
+    }
+
+    /**
+     * Resolves the placeholders in properties that were edited on a tracked node again, with the configuration the node
+     * is configured with, see {@link ManagedConfiguration#reconfigure(Session, Set)}. No configuration is fetched.
+     * <p>
+     * This method is thread-safe and can be called concurrently, the caller <strong>MUST</strong> save the session.
+     *
+     * @param session       the session to use, not null.
+     * @param path          the path of the managed node, not null.
+     * @param propertyNames the names of the edited properties, not null.
+     * @return <code>true</code> if any properties were updated and the session needs saving, <code>false</code> if
+     * nothing changed or the node isn't tracked (or configured) yet.
+     * @throws ConfigurationException when configuring the node failed.
+     * @throws IllegalStateException  when the node can not be accessed anymore.
+     */
+    public boolean reconfigure(Session session, String path, Set<String> propertyNames) throws ConfigurationException, IllegalStateException {
+        Assert.notNull(path);
+        ManagedConfiguration configuration = registry.get(path);
+        if (configuration == null) {
+            //tracking it configures all properties anyway
+            return false;
         }
+        boolean changed = configuration.reconfigure(session, propertyNames);
+        placeholderIndex.update(configuration);
+        return changed;
     }
 
     /**
      * Returns the set of managed configurations.
      * <p>
      * You can use this to programmatically (re-)configure managed nodes, or to pass them to {@link #untrack(ManagedConfiguration)} e.g..
-     * This method is thread safe and can be called concurrently.
+     * This method is thread safe and can be called concurrently. The returned set is a read-only live view, nothing is copied.
+     * It's weakly consistent, so it's safe to untrack configurations while iterating over it.
      *
      * @return the set of managed configurations.
      */
     public Set<ManagedConfiguration> getManagedConfigurations() {
-        try {
-            lock.readLock().lock();
-            return new HashSet<>(managedConfigurations);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return registry.getAll();
+    }
+
+    /**
+     * Returns the managed configurations using the given configuration name, see {@link #getManagedConfigurations()}.
+     *
+     * @param configurationName the configuration name, not null.
+     * @return read-only live view of the managed configurations for the configuration name, may be empty.
+     */
+    public Set<ManagedConfiguration> getManagedConfigurations(String configurationName) {
+        return registry.getByName(configurationName);
     }
 
     /**
      * Refreshes the managed configuration with the given configuration name.
      * If you specify {@link #REFRESH_ALL} all managed configuration will be refreshed.
+     * <p>
+     * Managed configurations using the same configuration (name and profiles) are grouped, all configurations are
+     * refreshed once with a single batch call. Then every managed node that wasn't configured with the current
+     * configuration yet is reconfigured, in parallel on the refresh worker pool. Every worker configures its nodes in
+     * a single session, and saves every {@value #DEFAULT_REFRESH_BATCH_SIZE} (configurable) changed nodes, instead of once per node.
+     * Note that this also picks up configuration that was revalidated in the background by the {@link ConfigurationService}.
+     * <p>
+     * Only the keys that changed since the previous configuration matter: on a node that doesn't reference any of them
+     * no property is resolved, only its persisted fingerprint is brought in line (usually it's already up to date),
+     * and on the other nodes only the properties referencing them are resolved again.
      *
      * @param configurationName the configuration to refresh.
+     * @return the outcome per managed node.
      */
-    public void refresh(String configurationName) {
+    public RefreshResult refresh(String configurationName) {
         Assert.notNull(configurationName);
+        long start = System.nanoTime();
         final boolean refreshAll = REFRESH_ALL.equals(configurationName);
-        getManagedConfigurations().forEach(new Consumer<ManagedConfiguration>() {
+        Map<ConfigurationKey, List<ManagedConfiguration>> groups = new LinkedHashMap<>();
+        //only the affected configurations, no need to go over everything that's tracked
+        for (ManagedConfiguration configuration : refreshAll ? getManagedConfigurations() : getManagedConfigurations(configurationName)) {
+            groups.computeIfAbsent(configuration.getConfigurationKey(), key -> new ArrayList<>()).add(configuration);
+        }
+        List<RefreshResult.NodeResult> results = new ArrayList<>();
+        List<Update> work = new ArrayList<>();
+        long fetchTime = 0;
+        if (!groups.isEmpty()) {
+            Map<ConfigurationKey, ConfigurationSnapshot> configurations = Collections.emptyMap();
+            ConfigurationException error = null;
+            try {
+                //one round trip to the config server for all configurations
+                configurationService.refresh(groups.keySet());
+                configurations = configurationService.getSnapshots(groups.keySet());
+            } catch (ConfigurationException e) {
+                logger.error("Error while refreshing " + groups.size() + " configuration(s), skipping refresh.", e);
+                error = e;
+            }
+            fetchTime = System.nanoTime() - start;
+            for (Map.Entry<ConfigurationKey, List<ManagedConfiguration>> group : groups.entrySet()) {
+                ConfigurationSnapshot current = configurations.get(group.getKey());
+                if (current == null) {
+                    if (error == null) {
+                        logger.error("Configuration {} could not be resolved, skipping refresh for {} managed node(s).", group.getKey(), group.getValue().size());
+                    }
+                    for (ManagedConfiguration configuration : group.getValue()) {
+                        results.add(new RefreshResult.NodeResult(configuration.getNodePath(), group.getKey(), RefreshResult.Status.SKIPPED, 0,
+                                error != null ? error : new ConfigurationException("Configuration %s could not be resolved", group.getKey())));
+                    }
+                    continue;
+                }
+                //per previously applied configuration (usually all nodes of a group have the same one), the changed keys
+                //and the nodes referencing them
+                Map<ConfigurationSnapshot, Set<String>> changedKeys = new IdentityHashMap<>();
+                Map<ConfigurationSnapshot, Set<String>> affectedNodes = new IdentityHashMap<>();
+                for (ManagedConfiguration configuration : group.getValue()) {
+                    if (configuration.isConfiguredWith(current)) {
+                        results.add(new RefreshResult.NodeResult(configuration.getNodePath(), group.getKey(), RefreshResult.Status.UNCHANGED, 0, null));
+                        continue;
+                    }
+                    ConfigurationSnapshot previous = configuration.getAppliedConfiguration();
+                    if (previous == null || !placeholderIndex.contains(configuration.getNodePath())) {
+                        //not configured before, nothing to compare with
+                        work.add(new Update(configuration, current, null));
+                        continue;
+                    }
+                    Set<String> changed = changedKeys.computeIfAbsent(previous,
+                            snapshot -> Placeholders.expandChangedKeys(current.changedKeys(snapshot), current, snapshot));
+                    Set<String> affected = affectedNodes.computeIfAbsent(previous, snapshot -> placeholderIndex.lookup(group.getKey(), changed));
+                    if (affected.contains(configuration.getNodePath())) {
+                        //only touch the properties that reference a changed key
+                        work.add(new Update(configuration, current, configuration.getReferencingProperties(changed)));
+                    } else {
+                        //none of its placeholders changed, only the fingerprint may need updating, so a restart
+                        //doesn't take the node for outdated
+                        work.add(new Update(configuration, current, Collections.<String>emptySet()));
+                    }
+                }
+            }
+        }
+        RefreshResult.NodeResult[] applied = new RefreshResult.NodeResult[work.size()];
+        int saves = apply(work, applied);
+        results.addAll(Arrays.asList(applied));
+        RefreshResult result = new RefreshResult(configurationName, groups.size(), fetchTime, System.nanoTime() - start, saves, results);
+        logger.info("Refresh done: {}", result);
+        return result;
+    }
+
+    /**
+     * Reconfigures the managed nodes on the refresh workers. Instead of a task per node, every worker takes the next
+     * node from the shared list until all are done, so the pool's queue never fills up.
+     * Every worker uses a single session for all its nodes and saves in batches, see {@link JcrSessionTemplate#executeInBatches}.
+     */
+    private int apply(List<Update> work, RefreshResult.NodeResult[] results) {
+        if (work.isEmpty()) {
+            return 0;
+        }
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger saves = new AtomicInteger();
+        long[] started = new long[results.length];
+        JcrSessionTemplate.BatchCallback<Integer> callback = new JcrSessionTemplate.BatchCallback<Integer>() {
+            @Override
+            public boolean execute(Session session, Integer index) throws Exception {
+                started[index] = System.nanoTime();
+                Update update = work.get(index);
+                return update.configuration.configure(session, update.snapshot, update.propertyNames);
+            }
+
             @Override
-            public void accept(ManagedConfiguration configuration) {
-                if (refreshAll || configuration.getConfigurationName().equals(configurationName)) {
-                    try {
-                        configuration.configure(configurationService, sessionTemplate, true);
-                    } catch (ConfigurationException e) {
-                        logger.error("Error while refreshing " + configuration.getNodePath() + ", skipping refresh for this managed node.", e);
-                    } catch (IllegalStateException e) {
-                        //should not happpen, unless node has been deleted in the mean time
-                        untrack(configuration, e);
+            public void onSuccess(Integer index, boolean changed) {
+                Update update = work.get(index);
+                ManagedConfiguration configuration = update.configuration;
+                configuration.setAppliedConfiguration(update.snapshot);
+                if (update.propertyNames == null) {
+                    placeholderIndex.update(configuration);
+                }
+                //a fingerprint update alone doesn't count as updated
+                boolean updated = changed && (update.propertyNames == null || !update.propertyNames.isEmpty());
+                results[index] = new RefreshResult.NodeResult(configuration.getNodePath(), configuration.getConfigurationKey(),
+                        updated ? RefreshResult.Status.UPDATED : RefreshResult.Status.UNCHANGED, System.nanoTime() - started[index], null);
+            }
+
+            @Override
+            public void onFailure(Integer index, Exception e) {
+                ManagedConfiguration configuration = work.get(index).configuration;
+                RefreshResult.Status status;
+                if (e instanceof IllegalStateException) {
+                    //should not happpen, unless node has been deleted in the mean time
+                    untrack(configuration, e);
+                    status = RefreshResult.Status.UNTRACKED;
+                } else {
+                    logger.error("Error while refreshing " + configuration.getNodePath() + ", skipping refresh for this managed node.", e);
+                    status = RefreshResult.Status.FAILED;
+                }
+                results[index] = new RefreshResult.NodeResult(configuration.getNodePath(), configuration.getConfigurationKey(),
+                        status, System.nanoTime() - started[index], e);
+            }
+        };
+        Runnable worker = () -> {
+            //claims the next node only when the worker is ready for it, a worker that can't log in doesn't claim anything
+            Iterator<Integer> indexes = new Iterator<Integer>() {
+                private int index = -1;
+
+                @Override
+                public boolean hasNext() {
+                    if (index < 0) {
+                        index = next.getAndIncrement();
+                    }
+                    return index < results.length;
+                }
+
+                @Override
+                public Integer next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
                     }
+                    int current = index;
+                    index = -1;
+                    return current;
                 }
+            };
+            try {
+                saves.addAndGet(sessionTemplate.executeInBatches(indexes, refreshBatchSize, refreshBatchTime, callback));
+            } catch (Exception e) {
+                logger.error("Error creating session for refresh worker, leaving managed nodes to the other workers.", e);
+            }
+        };
+        int parallelism = Math.min(refreshWorkers, results.length);
+        List<CompletableFuture<Void>> workers = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            try {
+                workers.add(CompletableFuture.runAsync(worker, refreshExecutor));
+            } catch (RejectedExecutionException e) {
+                //pool is busy with other refreshes, the caller's thread helps out below
+                break;
             }
-        });
+        }
+        worker.run();
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture[workers.size()])).join();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                //no worker could get a session
+                ManagedConfiguration configuration = work.get(i).configuration;
+                results[i] = new RefreshResult.NodeResult(configuration.getNodePath(), configuration.getConfigurationKey(), RefreshResult.Status.FAILED, 0,
+                        new ConfigurationException("Could not get a session to configure managed node %s", configuration.getNodePath()));
+            }
+        }
+        return saves.get();
     }
 
     /**
@@ -200,28 +500,64 @@ public class ManagedConfigurationTracker {
      * @see #refresh(String)
      */
     @SuppressWarnings("unused")
-    public void refreshAll() {
-        refresh(REFRESH_ALL);
+    public RefreshResult refreshAll() {
+        return refresh(REFRESH_ALL);
     }
 
     /**
-     * Convenience method for {@link #refresh(String)} with parameter {@link #REFRESH_ALL}.
+     * Schedules a refresh of the configuration the given node is named after, see {@link #scheduleRefresh(String)}.
      *
      * @see #refresh(String)
      */
     @SuppressWarnings("unused")
     public void refresh(Node node) {
         try {
-            refresh(node.getName());
+            scheduleRefresh(node.getName());
         } catch (RepositoryException e) {
             logger.error("Error refreshing managed configuration for node, skipping refresh...");
         }
     }
 
+    /**
+     * Schedules a refresh of the managed configuration with the given configuration name, instead of refreshing right away.
+     * <p>
+     * Requests are debounced per configuration name: a burst of requests for the same configuration results in a single
+     * refresh. Requests for a configuration are merged into a pending refresh of {@link #REFRESH_ALL everything}.
+     * See {@link RefreshScheduler} for details.
+     *
+     * @param configurationName the configuration to refresh, or {@link #REFRESH_ALL}.
+     * @return completes with the result of the refresh the request ended up in.
+     */
+    public CompletableFuture<RefreshResult> scheduleRefresh(String configurationName) {
+        Assert.notNull(configurationName);
+        RefreshScheduler scheduler = refreshScheduler;
+        if (scheduler == null) {
+            CompletableFuture<RefreshResult> future = new CompletableFuture<>();
+            future.completeExceptionally(new ConfigurationException("Tracker is not active, can not refresh '%s'", configurationName));
+            return future;
+        }
+        return scheduler.schedule(configurationName);
+    }
+
+    /**
+     * @return the statistics of the refresh scheduler, or <code>null</code> if the tracker is not active.
+     */
+    public RefreshScheduler.Stats getSchedulerStats() {
+        RefreshScheduler scheduler = refreshScheduler;
+        return scheduler != null ? scheduler.getStats() : null;
+    }
+
     @Activate
     public void activate(ComponentContext componentContext) {
         try {
-            this.sessionTemplate = new JcrSessionTemplate<>(repository);
+            this.refreshWorkers = Math.max(1, PropertyUtils.getPropertyAsInt(PROP_REFRESH_WORKERS, componentContext, DEFAULT_REFRESH_WORKERS));
+            this.refreshExecutor = new InstrumentedExecutor("config-refresh", refreshWorkers, refreshWorkers);
+            this.refreshBatchSize = Math.max(1, PropertyUtils.getPropertyAsInt(PROP_REFRESH_BATCH_SIZE, componentContext, DEFAULT_REFRESH_BATCH_SIZE));
+            this.refreshBatchTime = PropertyUtils.getPropertyAsLong(PROP_REFRESH_BATCH_TIME, componentContext, DEFAULT_REFRESH_BATCH_TIME);
+            this.sessionTemplate = new JcrSessionTemplate<>(sessionPool);
+            this.refreshScheduler = new RefreshScheduler("config-refresh-scheduler", this::refresh,
+                    PropertyUtils.getPropertyAsLong(PROP_REFRESH_DEBOUNCE, componentContext, DEFAULT_REFRESH_DEBOUNCE),
+                    PropertyUtils.getPropertyAsInt(PROP_REFRESH_CONCURRENCY, componentContext, DEFAULT_REFRESH_CONCURRENCY));
         } catch (Exception e) {
             logger.error("FATAL - Error activating " + this.getClass().getName() + " component.", e);
         }
@@ -230,13 +566,19 @@ public class ManagedConfigurationTracker {
     @Deactivate
     public void deactivate(ComponentContext componentContext) {
         try {
+            if (refreshScheduler != null) {
+                refreshScheduler.shutdown();
+                refreshScheduler = null;
+            }
+            if (refreshExecutor != null) {
+                refreshExecutor.shutdownNow();
+                refreshExecutor = null;
+            }
             sessionTemplate = null;
-            lock.writeLock().lock();
-            managedConfigurations = new HashSet<>();
+            registry.clear();
+            placeholderIndex.clear();
         } catch (Exception e) {
             //ignore, nothing we can do anymore...
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
@@ -251,13 +593,13 @@ public class ManagedConfigurationTracker {
     }
 
     @SuppressWarnings("unused")
-    public void bindSlingRepository(SlingRepository repository) {
-        this.repository = repository;
+    public void bindJcrSessionPool(JcrSessionPool sessionPool) {
+        this.sessionPool = sessionPool;
     }
 
     @SuppressWarnings("unused")
-    public void unbindSlingRepository(SlingRepository repository) {
-        this.repository = null;
+    public void unbindJcrSessionPool(JcrSessionPool sessionPool) {
+        this.sessionPool = null;
     }
 
     @SuppressWarnings("unused")
@@ -270,28 +612,17 @@ public class ManagedConfigurationTracker {
         this.resourceResolverFactory = null;
     }
 
-    //    private RefreshRemoteApplicationEvent read(byte[] payload) throws Exception {
-//        ObjectMapper mapper = new ObjectMapper();
-//        mapper.registerModule(new SubtypeModule());
-//        ObjectReader reader = mapper.readerFor(RefreshRemoteApplicationEvent.class);
-//        return reader.readValue(payload);
-//    }
-
-//                            try {
-//                                RefreshRemoteApplicationEvent event = read(body);
-//                            } catch (Exception e) {
-//                                logger.error("Error reading payload with jackson", e);
-//                            }
-//                            try {
-//                                Kryo kryo = new Kryo();
-//                                kryo.register(RefreshRemoteApplicationEvent.class);
-//                                Input input = new Input(new ByteArrayInputStream(body));
-//                                RefreshRemoteApplicationEvent refreshEvent = kryo.readObject(input, RefreshRemoteApplicationEvent.class);
-//                                input.close();
-//
-//                                // (process the message components here ...)
-//                                channel.basicAck(deliveryTag, false);
-//                            } catch (Exception e) {
-//                                logger.error("Error reading payload with kryo", e);
-//                            }
+    //a managed node to reconfigure during a refresh
+    private static final class Update {
+        private final ManagedConfiguration configuration;
+        private final ConfigurationSnapshot snapshot;
+        //null to resolve all properties, empty to only update the fingerprint
+        private final Set<String> propertyNames;
+
+        private Update(ManagedConfiguration configuration, ConfigurationSnapshot snapshot, Set<String> propertyNames) {
+            this.configuration = configuration;
+            this.snapshot = snapshot;
+            this.propertyNames = propertyNames;
+        }
+    }
 }
@@ -2,8 +2,6 @@ package com.bose.services.config.client.aem;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.CollectionUtils;
-import org.springframework.util.PropertyPlaceholderHelper;
 import org.springframework.util.StringUtils;
 
 import javax.jcr.*;
@@ -15,9 +13,13 @@ import java.util.*;
  */
 public class PlaceHolderAwareNode {
     private static final Logger logger = LoggerFactory.getLogger(PlaceHolderAwareNode.class);
-    private static final PropertyPlaceholderHelper placeholderHelper = new PropertyPlaceholderHelper("${", "}", ":", true);
     private Node node;
     private String nodePath;
+    private final PlaceholderTemplateCache templateCache;
+    //names of the properties with placeholders, collected while resolving
+    private final Set<String> compiled = new HashSet<>();
+    //placeholder key -> names of the properties referencing it, collected while resolving
+    private final Map<String, Set<String>> references = new HashMap<>();
 
     /**
      * Creates a new wrapper for the provided node that can be used to manage placeholders in the node's property values.
@@ -26,8 +28,20 @@ public class PlaceHolderAwareNode {
      * @throws RepositoryException when creating the wrapper fails.
      */
     public PlaceHolderAwareNode(Node node) throws RepositoryException {
+        this(node, new PlaceholderTemplateCache());
+    }
+
+    /**
+     * Creates a new wrapper that reuses the compiled templates of earlier runs on the same node.
+     *
+     * @param node          the JCR node to wrap.
+     * @param templateCache the compiled templates of the node's properties, not null.
+     * @throws RepositoryException when creating the wrapper fails.
+     */
+    PlaceHolderAwareNode(Node node, PlaceholderTemplateCache templateCache) throws RepositoryException {
         this.node = node;
         this.nodePath = node.getPath();
+        this.templateCache = templateCache;
     }
 
     private boolean hasMixin() throws RepositoryException {
@@ -40,29 +54,58 @@ public class PlaceHolderAwareNode {
         return false;
     }
 
-    protected void restorePlaceHolders() throws RepositoryException {
+    /**
+     * Reads the original values (with placeholders) of the managed properties, as stored in
+     * {@link ManagedConfigurationMixin#PROPERTY_MANAGED_PROPS}.
+     * Entries are formatted as <code>name=value</code>, with multiple values comma delimited. Commas and backslashes in
+     * the values are escaped with a backslash.
+     *
+     * @return the original values per property name, empty if no properties are managed yet.
+     * @throws RepositoryException when reading the node fails.
+     */
+    protected Map<String, String[]> readTemplates() throws RepositoryException {
+        Map<String, String[]> templates = new LinkedHashMap<>();
         if (node.hasProperty(ManagedConfigurationMixin.PROPERTY_MANAGED_PROPS)) {
             String[] value = PropertyUtils.getPropertyAsArray(node.getProperty(ManagedConfigurationMixin.PROPERTY_MANAGED_PROPS));
             if (value != null) {
                 for (String entry : value) {
-                    String[] parts = entry.split("=");
-                    if (parts.length == 2) {
-                        String key = parts[0];
-                        if (node.hasProperty(key)) {
-                            String[] placeHolders = parts[1].split(",");
-                            if (placeHolders.length == 1) {
-                                node.setProperty(key, placeHolders[0]);
-                            } else {
-                                node.setProperty(key, placeHolders);
-                            }
-                        } //else: property can have been deleted in the meanwhile, don't add it again..;
+                    //split on the first '=' only, defaults of placeholders can contain one as well
+                    int separator = entry.indexOf('=');
+                    if (separator > 0) {
+                        templates.put(entry.substring(0, separator), fromEntry(entry.substring(separator + 1)));
                     } else {
                         logger.error("Illegal format in property " + ManagedConfigurationMixin.PROPERTY_MANAGED_PROPS + ", cannot parse entry: " + entry);
                     }
                 }
             }
+        }
+        return templates;
+    }
+
+    /**
+     * Restores all managed properties to their original values (with placeholders), and resets the managed properties meta-data.
+     *
+     * @throws RepositoryException when updating the node fails.
+     */
+    protected void restorePlaceHolders() throws RepositoryException {
+        if (node.hasProperty(ManagedConfigurationMixin.PROPERTY_MANAGED_PROPS)) {
+            for (Map.Entry<String, String[]> template : readTemplates().entrySet()) {
+                String key = template.getKey();
+                if (node.hasProperty(key)) {
+                    Property property = node.getProperty(key);
+                    String[] placeHolders = getTemplate(property, template.getValue());
+                    if (property.isMultiple()) {
+                        node.setProperty(key, placeHolders);
+                    } else {
+                        node.setProperty(key, placeHolders[0]);
+                    }
+                } //else: property can have been deleted in the meanwhile, don't add it again..;
+            }
             //reset meta-data
             node.setProperty(ManagedConfigurationMixin.PROPERTY_MANAGED_PROPS, new String[0]);
+            if (node.hasProperty(ManagedConfigurationMixin.PROPERTY_FINGERPRINT)) {
+                node.getProperty(ManagedConfigurationMixin.PROPERTY_FINGERPRINT).remove();
+            }
         }
     }
 
@@ -70,73 +113,394 @@ public class PlaceHolderAwareNode {
      * Resolves all placeholders in the node properties, using the provided properties.
      *
      * @param properties the properties to use for placeholder resolution.
-     * @return <code>true</code> if any placeholders where resolved, <code>false</code> otherwise.
+     * @return <code>true</code> if any property of the node was changed, <code>false</code> otherwise.
      * @throws ConfigurationException When placeholder resolution fails.
+     * @deprecated use {@link #resolvePlaceholders(ConfigurationSnapshot)}.
      */
+    @Deprecated
     public boolean resolvePlaceholders(Properties properties) throws ConfigurationException {
+        return resolvePlaceholders(ConfigurationSnapshot.of(null, properties));
+    }
+
+    /**
+     * Resolves all placeholders in the node properties, using the provided configuration.
+     * <p>
+     * Placeholders are resolved against the original values of the properties (as stored in
+     * {@link ManagedConfigurationMixin#PROPERTY_MANAGED_PROPS}, or the current value for properties that aren't managed yet),
+     * in memory. Only properties whose resolved value differs from their current value are written. If nothing changed,
+     * the node is not touched at all, so e.g. OSGi configurations don't restart for nothing.
+     *
+     * @param properties the configuration to use for placeholder resolution.
+     * @return <code>true</code> if any property of the node was changed, <code>false</code> otherwise.
+     * @throws ConfigurationException When placeholder resolution fails.
+     */
+    public boolean resolvePlaceholders(ConfigurationSnapshot properties) throws ConfigurationException {
+        return resolvePlaceholders(properties, null);
+    }
+
+    /**
+     * Resolves the placeholders in the given node properties only, see {@link #resolvePlaceholders(ConfigurationSnapshot)}.
+     * The other properties are left alone, their meta-data is kept.
+     *
+     * @param properties    the configuration to use for placeholder resolution.
+     * @param propertyNames the names of the properties to resolve, null for all properties.
+     * @return <code>true</code> if any property of the node was changed, <code>false</code> otherwise.
+     * @throws ConfigurationException When placeholder resolution fails.
+     */
+    public boolean resolvePlaceholders(ConfigurationSnapshot properties, Set<String> propertyNames) throws ConfigurationException {
+        return resolvePlaceholders(properties, propertyNames, false);
+    }
+
+    /**
+     * Resolves the placeholders in the given node properties after they were edited, see
+     * {@link #resolvePlaceholders(ConfigurationSnapshot, Set)}. The current value of an edited property is its new
+     * template, unless it's still the value resolved from its stored template (e.g. it was written by this service).
+     *
+     * @param properties    the configuration to use for placeholder resolution, e.g. the configuration the node was last resolved with.
+     * @param propertyNames the names of the edited properties, not null.
+     * @return <code>true</code> if any property of the node was changed, <code>false</code> otherwise.
+     * @throws ConfigurationException When placeholder resolution fails.
+     */
+    boolean resolveEditedPlaceholders(ConfigurationSnapshot properties, Set<String> propertyNames) throws ConfigurationException {
+        return resolvePlaceholders(properties, propertyNames, true);
+    }
+
+    private boolean resolvePlaceholders(ConfigurationSnapshot properties, Set<String> propertyNames, boolean edited) throws ConfigurationException {
         try {
             if (!node.hasProperties()) return false;
-            logger.info("Checking node '{}' for configuration placeholders", node.getPath());
-
-            //TODO: this breaks  the optimization logic below to check for "new" values, because we reset to placeholders, any value is new...
-            //TODO: copy old properties first to map and use that to check for actual changes
-            this.restorePlaceHolders();
-            //and now run a placeholder resolution process again... note that we don't track the above as "changed" made, so they are
-            //reversed if we don't do anything else below that changes the nodes (because only that saves the session)
-            PropertyIterator nodeProperties = node.getProperties();
-            Set<String> changedProps = new HashSet<>();
-            while (nodeProperties.hasNext()) {
-                Property property = nodeProperties.nextProperty();
-                try {
-                    if (accept(property)) {
-                        if (property.isMultiple()) {
-                            Value[] values = property.getValues();
-                            String[] newValues = new String[values.length];
-                            String[] oldValues = new String[values.length];
-                            int i = 0;
-                            for (Value valueObj : values) {
-                                String value = valueObj.getString();
-                                oldValues[i] = value;
-                                String newValue = placeholderHelper.replacePlaceholders(value, properties);
-                                if (!value.equalsIgnoreCase(newValue)) {
-                                    property.setValue(newValue);
-                                }
-                                newValues[i++] = newValue;
-                            }
-                            property.setValue(newValues);
-                            changedProps.add(property.getName() + "=" + StringUtils.arrayToCommaDelimitedString(oldValues));
-                            logger.info("Replaced '{}' by '{}' for node property '{}'", new Object[]{oldValues, newValues, property.getPath()});
-                        } else {
-                            String value = property.getString();
-                            String newValue = placeholderHelper.replacePlaceholders(value, properties);
-                            if (!value.equalsIgnoreCase(newValue)) {
-                                property.setValue(newValue);
-                                changedProps.add(property.getName() + "=" + value);
-                                logger.info("Replaced '{}' by '{}' for node property '{}'", new Object[]{value, newValue, property.getPath()});
-                            }
+            logger.debug("Checking node '{}' for configuration placeholders", nodePath);
+            references.clear();
+            compiled.clear();
+            Map<String, String[]> templates = readTemplates();
+            Set<String> managedProps = new LinkedHashSet<>();
+            boolean changed = false;
+            if (propertyNames == null) {
+                PropertyIterator nodeProperties = node.getProperties();
+                while (nodeProperties.hasNext()) {
+                    changed |= resolve(nodeProperties.nextProperty(), templates, properties, managedProps);
+                }
+                //forget the templates of properties that no longer have placeholders (or no longer exist)
+                templateCache.retain(compiled);
+            } else {
+                for (Map.Entry<String, String[]> template : templates.entrySet()) {
+                    if (!propertyNames.contains(template.getKey())) {
+                        //not resolved now, keep it managed as it is
+                        managedProps.add(toEntry(template.getKey(), template.getValue()));
+                    }
+                }
+                for (String propertyName : propertyNames) {
+                    if (node.hasProperty(propertyName)) {
+                        Property property = node.getProperty(propertyName);
+                        String[] template = templates.get(propertyName);
+                        if (edited && template != null && !isResolvedFrom(property, template, properties)) {
+                            //the current value is the new template
+                            template = null;
                         }
+                        changed |= resolve(property, template, properties, managedProps);
                     }
-                } catch (Exception e) {
-                    throw new ConfigurationException("Error while trying to resolve placeholders in node '{}', property '{}'", e, nodePath, property.getName());
                 }
             }
-            boolean changed = !CollectionUtils.isEmpty(changedProps);
-            if (changed) {
+            if (!managedProps.equals(toEntries(templates))) {
+                //different properties are managed now, or with different templates
                 if (!hasMixin()) {
                     node.addMixin(ManagedConfigurationMixin.NODE_TYPE);
                 }
+                node.setProperty(ManagedConfigurationMixin.PROPERTY_MANAGED_PROPS, managedProps.toArray(new String[managedProps.size()]));
+                changed = true;
+            }
+            String fingerprint = fingerprint(properties, managedProps);
+            if (!fingerprint.equals(readFingerprint())) {
+                //only differs without other changes for nodes that don't have one yet, or when a referenced key changed
+                //without changing the outcome
+                if (!hasMixin()) {
+                    node.addMixin(ManagedConfigurationMixin.NODE_TYPE);
+                }
+                node.setProperty(ManagedConfigurationMixin.PROPERTY_FINGERPRINT, fingerprint);
+                changed = true;
+            }
+            if (changed) {
                 //we changed something, update metadata
-                node.setProperty(ManagedConfigurationMixin.PROPERTY_MANAGED_PROPS, changedProps.toArray(new String[changedProps.size()]));
                 Calendar cal = Calendar.getInstance();
                 cal.setTime(new Date());
                 node.setProperty(ManagedConfigurationMixin.PROPERTY_LAST_UPDATE, cal);
             }
             return changed;
+        } catch (ConfigurationException e) {
+            throw e;
         } catch (Exception e) {
             throw new ConfigurationException("Error while resolving placeholders in node '%s'", e, this.nodePath);
         }
     }
 
+    /**
+     * Checks if the node has been resolved with the given configuration before, using the fingerprint stored in
+     * {@link ManagedConfigurationMixin#PROPERTY_FINGERPRINT}. Only the fingerprint and the managed properties meta-data
+     * are read, none of the other properties.
+     * <p>
+     * The fingerprint covers the templates of the managed properties and the values of all keys they reference
+     * (directly or through other values), so changes to keys the node doesn't use don't matter.
+     * When this returns <code>true</code>, {@link #getReferences()} is complete as well.
+     *
+     * @param properties the configuration to check.
+     * @return <code>true</code> if resolving the placeholders with the configuration would not change anything.
+     * @throws ConfigurationException when reading the node fails.
+     */
+    public boolean isResolvedWith(ConfigurationSnapshot properties) throws ConfigurationException {
+        try {
+            String stored = readFingerprint();
+            if (stored == null) {
+                return false;
+            }
+            Map<String, String[]> templates = readTemplates();
+            if (!stored.equals(fingerprint(properties, toEntries(templates)))) {
+                return false;
+            }
+            references.clear();
+            compiled.clear();
+            for (Map.Entry<String, String[]> template : templates.entrySet()) {
+                String name = template.getKey();
+                compiled.add(name);
+                for (PlaceholderTemplate value : templateCache.get(name, template.getValue())) {
+                    for (String key : value.getKeys()) {
+                        references.computeIfAbsent(key, k -> new HashSet<>()).add(name);
+                    }
+                }
+            }
+            templateCache.retain(compiled);
+            return true;
+        } catch (RepositoryException e) {
+            throw new ConfigurationException("Error while reading the fingerprint of node '%s'", e, this.nodePath);
+        }
+    }
+
+    private String readFingerprint() throws RepositoryException {
+        return node.hasProperty(ManagedConfigurationMixin.PROPERTY_FINGERPRINT)
+                ? node.getProperty(ManagedConfigurationMixin.PROPERTY_FINGERPRINT).getString() : null;
+    }
+
+    /**
+     * @param properties   the configuration.
+     * @param managedProps the managed properties meta-data entries.
+     * @return hash of the entries and of the values of all keys they reference, order independent.
+     */
+    static String fingerprint(ConfigurationSnapshot properties, Collection<String> managedProps) {
+        long templateHash = 0;
+        Set<String> keys = new HashSet<>();
+        for (String entry : managedProps) {
+            templateHash += hash(entry, null);
+            Placeholders.collectKeys(entry, keys);
+        }
+        long configHash = 0;
+        Deque<String> pending = new ArrayDeque<>(keys);
+        while (!pending.isEmpty() && !keys.contains(Placeholders.ANY_KEY)) {
+            String key = pending.pop();
+            String value = properties.get(key);
+            configHash += hash(key, value);
+            if (value != null) {
+                //values can reference other keys
+                Set<String> nested = new HashSet<>();
+                Placeholders.collectKeys(value, nested);
+                for (String nestedKey : nested) {
+                    if (keys.add(nestedKey)) {
+                        pending.push(nestedKey);
+                    }
+                }
+            }
+        }
+        if (keys.contains(Placeholders.ANY_KEY)) {
+            //any key could be referenced, so all of them are relevant
+            configHash = 0;
+            for (Map.Entry<String, String> property : properties) {
+                configHash += hash(property.getKey(), property.getValue());
+            }
+        }
+        return Long.toHexString(templateHash) + "-" + Long.toHexString(configHash);
+    }
+
+    //64 bit FNV-1a, String.hashCode collides too easily to tell configurations apart
+    private static long hash(String key, String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        //missing is not the same as empty
+        hash = (hash ^ (value == null ? 0xffff : 0xfffe)) * 0x100000001b3L;
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        //murmur3 finalizer, the last characters only affect the low bits otherwise
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private boolean resolve(Property property, Map<String, String[]> templates, ConfigurationSnapshot properties, Set<String> managedProps) throws ConfigurationException {
+        return resolve(property, templates.get(getName(property)), properties, managedProps);
+    }
+
+    private boolean resolve(Property property, String[] template, ConfigurationSnapshot properties, Set<String> managedProps) throws ConfigurationException {
+        try {
+            return accept(property) && resolveProperty(property, template, properties, managedProps);
+        } catch (Exception e) {
+            throw new ConfigurationException("Error while trying to resolve placeholders in node '%s', property '%s'", e, nodePath, getName(property));
+        }
+    }
+
+    //true if the property still has the value resolved from the template, so it wasn't edited
+    private boolean isResolvedFrom(Property property, String[] template, ConfigurationSnapshot properties) throws RepositoryException {
+        String[] current = property.isMultiple() ? values(property) : new String[]{property.getString()};
+        template = getTemplate(property, template);
+        if (current.length != template.length) {
+            return false;
+        }
+        PlaceholderTemplate[] compiledTemplate = templateCache.get(property.getName(), template);
+        for (int i = 0; i < template.length; i++) {
+            if (!compiledTemplate[i].resolve(properties).equals(current[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getName(Property property) {
+        try {
+            return property.getName();
+        } catch (RepositoryException e) {
+            return "?";
+        }
+    }
+
+    /**
+     * @return the placeholder keys referenced by the resolved properties, with the names of the properties referencing
+     * them. Only complete after resolving all properties.
+     */
+    public Map<String, Set<String>> getReferences() {
+        Map<String, Set<String>> copy = new HashMap<>();
+        for (Map.Entry<String, Set<String>> reference : references.entrySet()) {
+            copy.put(reference.getKey(), Collections.unmodifiableSet(new HashSet<>(reference.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Resolves the placeholders in the template of a single property, and writes the property only if the resolved value
+     * differs from the current value. Properties that aren't managed yet and have no placeholders are skipped right away.
+     *
+     * @param property     the property, not null.
+     * @param template     the original values of the property, null if the property isn't managed yet (the current values are the template).
+     * @param properties   the configuration to use for placeholder resolution.
+     * @param managedProps collects the meta-data entry of the property, if it has placeholders.
+     * @return <code>true</code> if the property was written.
+     */
+    private boolean resolveProperty(Property property, String[] template, ConfigurationSnapshot properties, Set<String> managedProps) throws RepositoryException {
+        String[] current;
+        if (property.isMultiple()) {
+            current = values(property);
+            if (template == null && !PlaceholderTemplate.hasPlaceholders(current)) {
+                return false;
+            }
+        } else {
+            String value = property.getString();
+            if (template == null && !PlaceholderTemplate.hasPlaceholders(value)) {
+                return false;
+            }
+            current = new String[]{value};
+        }
+        template = template != null ? getTemplate(property, template) : current;
+        String name = property.getName();
+        PlaceholderTemplate[] compiledTemplate = templateCache.get(name, template);
+        compiled.add(name);
+        String[] resolved = new String[template.length];
+        boolean placeholders = false;
+        for (int i = 0; i < template.length; i++) {
+            resolved[i] = compiledTemplate[i].resolve(properties);
+            placeholders |= !resolved[i].equals(template[i]);
+            for (String key : compiledTemplate[i].getKeys()) {
+                references.computeIfAbsent(key, k -> new HashSet<>()).add(name);
+            }
+        }
+        if (placeholders) {
+            managedProps.add(toEntry(name, template));
+        }
+        if (Arrays.equals(current, resolved)) {
+            return false;
+        }
+        if (property.isMultiple()) {
+            property.setValue(resolved);
+        } else {
+            property.setValue(resolved[0]);
+        }
+        logger.info("Replaced '{}' by '{}' for node property '{}'", new Object[]{StringUtils.arrayToCommaDelimitedString(current),
+                StringUtils.arrayToCommaDelimitedString(resolved), property.getPath()});
+        return true;
+    }
+
+    private static String[] values(Property property) throws RepositoryException {
+        Value[] values = property.getValues();
+        String[] strings = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            strings[i] = values[i].getString();
+        }
+        return strings;
+    }
+
+    //a single valued property has a single template, entries written before commas were escaped may be split on them
+    private static String[] getTemplate(Property property, String[] template) throws RepositoryException {
+        return property.isMultiple() || template.length == 1 ? template : new String[]{StringUtils.arrayToCommaDelimitedString(template)};
+    }
+
+    private static String toEntry(String name, String[] template) {
+        StringBuilder entry = new StringBuilder(name).append('=');
+        for (int i = 0; i < template.length; i++) {
+            if (i > 0) {
+                entry.append(',');
+            }
+            for (int j = 0; j < template[i].length(); j++) {
+                char c = template[i].charAt(j);
+                if (c == ',' || c == '\\') {
+                    entry.append('\\');
+                }
+                entry.append(c);
+            }
+        }
+        return entry.toString();
+    }
+
+    //inverse of toEntry, a backslash that doesn't escape a comma or backslash is kept as is
+    private static String[] fromEntry(String value) {
+        if (value.isEmpty()) {
+            return new String[0];
+        }
+        List<String> values = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length() && (value.charAt(i + 1) == ',' || value.charAt(i + 1) == '\\')) {
+                current.append(value.charAt(++i));
+            } else if (c == ',') {
+                values.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        values.add(current.toString());
+        return values.toArray(new String[values.size()]);
+    }
+
+    private static Set<String> toEntries(Map<String, String[]> templates) {
+        Set<String> entries = new LinkedHashSet<>();
+        for (Map.Entry<String, String[]> template : templates.entrySet()) {
+            entries.add(toEntry(template.getKey(), template.getValue()));
+        }
+        return entries;
+    }
+
     /**
      * Filters out properties that are not supported for placeholder resolution.
      * <p>
@@ -148,7 +512,15 @@ public class PlaceHolderAwareNode {
      * @throws RepositoryException when an error occurs accessing the JCR property.
      */
     protected boolean accept(Property property) throws RepositoryException {
-        return !(property.getName().startsWith("jcr:") || property.getName().startsWith("cq:")
-                || property.getName().startsWith(ManagedConfigurationMixin.PREFIX));
+        return isResolvable(property.getName());
+    }
+
+    /**
+     * @param propertyName the name of a property.
+     * @return <code>false</code> if properties with this name are never resolved, see {@link #accept(Property)}.
+     */
+    static boolean isResolvable(String propertyName) {
+        return !(propertyName.startsWith("jcr:") || propertyName.startsWith("cq:")
+                || propertyName.startsWith(ManagedConfigurationMixin.PREFIX));
     }
 }
@@ -0,0 +1,172 @@
+package com.bose.services.config.client.aem;
+
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reverse index from placeholder keys to the managed nodes that reference them, per configuration.
+ * The properties of a node that reference a key are kept by the node itself, see {@link ManagedConfiguration#getReferencingProperties(Collection)}.
+ * <p>
+ * When a configuration changes, only the nodes that reference one of the changed keys need to be touched.
+ * Nodes that were never configured (in this JVM) are not indexed, they always need a full configure.
+ * Only nodes that are still tracked are indexed, so a configure that completes after its node was untracked can't
+ * leave the node behind in the index.
+ * Reads are lock-free, writes are serialized. This class is thread-safe.
+ */
+class PlaceholderIndex {
+    //configuration -> placeholder key -> node paths
+    private final ConcurrentMap<ConfigurationKey, ConcurrentMap<String, Set<String>>> nodesByKey = new ConcurrentHashMap<>();
+    //node path -> indexed configuration and keys, to remove a node again
+    private final ConcurrentMap<String, Indexed> indexed = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final ManagedConfigurationRegistry registry;
+
+    /**
+     * @param registry the registry of the tracked nodes, nodes are removed from it before they're removed from the index.
+     */
+    PlaceholderIndex(ManagedConfigurationRegistry registry) {
+        Assert.notNull(registry);
+        this.registry = registry;
+    }
+
+    /**
+     * (Re-)indexes the node with the placeholder keys it currently references, does nothing if they're not known yet
+     * or if the managed configuration isn't tracked (anymore).
+     *
+     * @param configuration the managed configuration, not null.
+     */
+    void update(ManagedConfiguration configuration) {
+        Assert.notNull(configuration);
+        Map<String, Set<String>> references = configuration.getPlaceholderReferences();
+        if (references == null) {
+            return;
+        }
+        Indexed entry = new Indexed(configuration.getConfigurationKey(), new HashSet<>(references.keySet()));
+        synchronized (writeLock) {
+            //checked under the lock: if it's still tracked now, the remove of an untrack can only come after us
+            if (registry.get(configuration.getNodePath()) != configuration) {
+                return;
+            }
+            Indexed previous = indexed.put(configuration.getNodePath(), entry);
+            if (previous != null && !previous.equals(entry)) {
+                unindex(configuration.getNodePath(), previous);
+            }
+            if (!entry.equals(previous)) {
+                ConcurrentMap<String, Set<String>> nodes = nodesByKey.computeIfAbsent(entry.configurationKey, key -> new ConcurrentHashMap<>());
+                for (String key : entry.keys) {
+                    nodes.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(configuration.getNodePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param nodePath the path of the managed node, not null.
+     */
+    void remove(String nodePath) {
+        synchronized (writeLock) {
+            Indexed previous = indexed.remove(nodePath);
+            if (previous != null) {
+                unindex(nodePath, previous);
+            }
+        }
+    }
+
+    //MUST be called holding the write lock
+    private void unindex(String nodePath, Indexed entry) {
+        Map<String, Set<String>> nodes = nodesByKey.get(entry.configurationKey);
+        if (nodes == null) {
+            return;
+        }
+        for (String key : entry.keys) {
+            Set<String> paths = nodes.get(key);
+            if (paths != null) {
+                paths.remove(nodePath);
+                if (paths.isEmpty()) {
+                    nodes.remove(key);
+                }
+            }
+        }
+        if (nodes.isEmpty()) {
+            nodesByKey.remove(entry.configurationKey);
+        }
+    }
+
+    /**
+     * @param nodePath the path of the managed node, not null.
+     * @return <code>true</code> if the placeholder keys referenced by the node are known.
+     */
+    boolean contains(String nodePath) {
+        return indexed.containsKey(nodePath);
+    }
+
+    /**
+     * @param configurationKey the configuration, not null.
+     * @param keys             the placeholder keys, e.g. the keys that changed.
+     * @return the paths of the indexed nodes of the configuration that reference any of the keys.
+     */
+    Set<String> lookup(ConfigurationKey configurationKey, Collection<String> keys) {
+        Map<String, Set<String>> nodes = nodesByKey.get(configurationKey);
+        if (nodes == null || keys.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> found = new HashSet<>();
+        for (String key : keys) {
+            Set<String> paths = nodes.get(key);
+            if (paths != null) {
+                found.addAll(paths);
+            }
+        }
+        //nodes with placeholders we can't know the key of, are affected by any change
+        Set<String> any = nodes.get(Placeholders.ANY_KEY);
+        if (any != null) {
+            found.addAll(any);
+        }
+        return found;
+    }
+
+    void clear() {
+        synchronized (writeLock) {
+            nodesByKey.clear();
+            indexed.clear();
+        }
+    }
+
+    /**
+     * @return the number of indexed nodes.
+     */
+    int size() {
+        return indexed.size();
+    }
+
+    private static final class Indexed {
+        private final ConfigurationKey configurationKey;
+        private final Set<String> keys;
+
+        private Indexed(ConfigurationKey configurationKey, Set<String> keys) {
+            this.configurationKey = configurationKey;
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Indexed)) {
+                return false;
+            }
+            Indexed other = (Indexed) o;
+            return configurationKey.equals(other.configurationKey) && keys.equals(other.keys);
+        }
+
+        @Override
+        public int hashCode() {
+            return configurationKey.hashCode() * 31 + keys.hashCode();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.bose.services.config.client.aem;
+
+import org.springframework.util.PropertyPlaceholderHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A value with <code>${key:default}</code> placeholders, parsed once so it can be resolved many times.
+ * <p>
+ * A template is a sequence of literal segments and placeholders, resolving it just looks up the keys and concatenates.
+ * Resolution behaves exactly like {@link PropertyPlaceholderHelper} with unresolvable placeholders ignored:
+ * placeholders can be nested (in the key or the default), values from the configuration are resolved recursively,
+ * and unresolvable placeholders are left as they are.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+final class PlaceholderTemplate {
+    //nested braces, like PropertyPlaceholderHelper does for '${' ... '}'
+    private static final String SIMPLE_PREFIX = "{";
+
+    private final String source;
+    //literals[0], placeholders[0], literals[1], ..., literals[n]
+    private final String[] literals;
+    private final Placeholder[] placeholders;
+    private final Set<String> keys;
+
+    private PlaceholderTemplate(String source, String[] literals, Placeholder[] placeholders, Set<String> keys) {
+        this.source = source;
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.keys = keys;
+    }
+
+    /**
+     * Checks for placeholders without allocating anything, use it to skip values before compiling them.
+     *
+     * @param value the value, may be null.
+     * @return <code>true</code> if the value has at least one (closed) placeholder.
+     */
+    static boolean hasPlaceholders(String value) {
+        if (value == null) {
+            return false;
+        }
+        int start = value.indexOf(Placeholders.PREFIX);
+        return start >= 0 && findEnd(value, start) >= 0;
+    }
+
+    /**
+     * @param values the values, may be null.
+     * @return <code>true</code> if any of the values has a placeholder, see {@link #hasPlaceholders(String)}.
+     */
+    static boolean hasPlaceholders(String[] values) {
+        if (values != null) {
+            for (String value : values) {
+                if (hasPlaceholders(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the value.
+     *
+     * @param value the value, not null.
+     * @return the compiled value, a literal template if the value has no placeholders.
+     */
+    static PlaceholderTemplate compile(String value) {
+        if (!hasPlaceholders(value)) {
+            return new PlaceholderTemplate(value, new String[]{value}, new Placeholder[0], Collections.<String>emptySet());
+        }
+        List<String> literals = new ArrayList<>();
+        List<Placeholder> placeholders = new ArrayList<>();
+        Set<String> keys = new LinkedHashSet<>();
+        int position = 0;
+        int start = value.indexOf(Placeholders.PREFIX);
+        while (start >= 0) {
+            int end = findEnd(value, start);
+            if (end < 0) {
+                //not closed, the rest is just text
+                break;
+            }
+            literals.add(value.substring(position, start));
+            Placeholder placeholder = new Placeholder(value.substring(start + Placeholders.PREFIX.length(), end));
+            placeholders.add(placeholder);
+            placeholder.collectKeys(keys);
+            position = end + Placeholders.SUFFIX.length();
+            start = value.indexOf(Placeholders.PREFIX, position);
+        }
+        literals.add(value.substring(position));
+        return new PlaceholderTemplate(value, literals.toArray(new String[literals.size()]),
+                placeholders.toArray(new Placeholder[placeholders.size()]), Collections.unmodifiableSet(keys));
+    }
+
+    /**
+     * @return the original value.
+     */
+    String getSource() {
+        return source;
+    }
+
+    /**
+     * @return <code>true</code> if the template has no placeholders, it always resolves to its source.
+     */
+    boolean isLiteral() {
+        return placeholders.length == 0;
+    }
+
+    /**
+     * @return the keys of all placeholders, including the ones nested in defaults. Contains {@link Placeholders#ANY_KEY}
+     * if a key is itself built from placeholders.
+     */
+    Set<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @param resolver resolves the placeholder keys, not null.
+     * @return the resolved value, the source itself for a literal template.
+     * @throws IllegalArgumentException on circular placeholder references.
+     */
+    String resolve(PropertyPlaceholderHelper.PlaceholderResolver resolver) {
+        return isLiteral() ? source : resolve(resolver, new HashSet<>());
+    }
+
+    private String resolve(PropertyPlaceholderHelper.PlaceholderResolver resolver, Set<String> visited) {
+        if (isLiteral()) {
+            return source;
+        }
+        StringBuilder result = new StringBuilder(source.length() + 16);
+        for (int i = 0; i < placeholders.length; i++) {
+            result.append(literals[i]);
+            placeholders[i].resolve(resolver, visited, result);
+        }
+        result.append(literals[placeholders.length]);
+        return result.toString();
+    }
+
+    //values from the configuration can have placeholders too, but usually don't
+    private static String resolveValue(String value, PropertyPlaceholderHelper.PlaceholderResolver resolver, Set<String> visited) {
+        return hasPlaceholders(value) ? compile(value).resolve(resolver, visited) : value;
+    }
+
+    //index of the suffix closing the placeholder at start, -1 if not closed
+    private static int findEnd(String value, int start) {
+        int index = start + Placeholders.PREFIX.length();
+        int nested = 0;
+        while (index < value.length()) {
+            if (value.startsWith(Placeholders.SUFFIX, index)) {
+                if (nested == 0) {
+                    return index;
+                }
+                nested--;
+                index += Placeholders.SUFFIX.length();
+            } else if (value.startsWith(SIMPLE_PREFIX, index)) {
+                nested++;
+                index += SIMPLE_PREFIX.length();
+            } else {
+                index++;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static final class Placeholder {
+        //as written between the braces, also what's left in the value when it can't be resolved
+        private final String content;
+        //null if the content has no placeholders itself
+        private final PlaceholderTemplate nested;
+        //only set when not nested, key is null if there's no default
+        private final String key;
+        private final String defaultValue;
+
+        private Placeholder(String content) {
+            this.content = content;
+            PlaceholderTemplate compiled = compile(content);
+            this.nested = compiled.isLiteral() ? null : compiled;
+            int separator = content.indexOf(Placeholders.SEPARATOR);
+            if (nested == null && separator >= 0) {
+                this.key = content.substring(0, separator);
+                this.defaultValue = content.substring(separator + Placeholders.SEPARATOR.length());
+            } else {
+                this.key = null;
+                this.defaultValue = null;
+            }
+        }
+
+        private void collectKeys(Set<String> keys) {
+            int separator = content.indexOf(Placeholders.SEPARATOR);
+            if (nested == null) {
+                //the whole content is looked up first, even with a default
+                keys.add(content);
+                if (separator >= 0) {
+                    keys.add(key);
+                }
+                return;
+            }
+            keys.addAll(nested.getKeys());
+            if (separator < 0 || separator > content.indexOf(Placeholders.PREFIX)) {
+                //the key itself is only known once resolved
+                keys.add(Placeholders.ANY_KEY);
+            } else {
+                keys.add(content.substring(0, separator));
+            }
+        }
+
+        private void resolve(PropertyPlaceholderHelper.PlaceholderResolver resolver, Set<String> visited, StringBuilder result) {
+            if (!visited.add(content)) {
+                throw new IllegalArgumentException("Circular placeholder reference '" + content + "' in property definitions");
+            }
+            String placeholder = nested == null ? content : nested.resolve(resolver, visited);
+            String value = resolver.resolvePlaceholder(placeholder);
+            if (value == null) {
+                if (nested == null) {
+                    if (key != null) {
+                        value = resolver.resolvePlaceholder(key);
+                        if (value == null) {
+                            value = defaultValue;
+                        }
+                    }
+                } else {
+                    //the separator is only known after resolving the nested placeholders
+                    int separator = placeholder.indexOf(Placeholders.SEPARATOR);
+                    if (separator >= 0) {
+                        value = resolver.resolvePlaceholder(placeholder.substring(0, separator));
+                        if (value == null) {
+                            value = placeholder.substring(separator + Placeholders.SEPARATOR.length());
+                        }
+                    }
+                }
+            }
+            if (value != null) {
+                result.append(resolveValue(value, resolver, visited));
+            } else {
+                //unresolvable, left as it is
+                result.append(Placeholders.PREFIX).append(content).append(Placeholders.SUFFIX);
+            }
+            visited.remove(content);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.bose.services.config.client.aem;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The compiled templates of the properties of a managed node, by property name.
+ * <p>
+ * A cached template is only used as long as the original values of the property are the same, when they change
+ * (e.g. the node was edited) the property is compiled again.
+ * This class is thread-safe.
+ */
+final class PlaceholderTemplateCache {
+    private final ConcurrentMap<String, Entry> templates = new ConcurrentHashMap<>();
+
+    /**
+     * @param propertyName the name of the property, not null.
+     * @param values       the original values of the property, not null.
+     * @return the compiled values, in the same order.
+     */
+    PlaceholderTemplate[] get(String propertyName, String[] values) {
+        Entry entry = templates.get(propertyName);
+        if (entry == null || !Arrays.equals(entry.source, values)) {
+            PlaceholderTemplate[] compiled = new PlaceholderTemplate[values.length];
+            for (int i = 0; i < values.length; i++) {
+                compiled[i] = PlaceholderTemplate.compile(values[i]);
+            }
+            entry = new Entry(values.clone(), compiled);
+            templates.put(propertyName, entry);
+        }
+        return entry.compiled;
+    }
+
+    /**
+     * Drops the templates of all other properties, e.g. properties that were removed from the node.
+     *
+     * @param propertyNames the properties to keep.
+     */
+    void retain(Collection<String> propertyNames) {
+        templates.keySet().retainAll(propertyNames);
+    }
+
+    void clear() {
+        templates.clear();
+    }
+
+    int size() {
+        return templates.size();
+    }
+
+    private static final class Entry {
+        private final String[] source;
+        private final PlaceholderTemplate[] compiled;
+
+        private Entry(String[] source, PlaceholderTemplate[] compiled) {
+            this.source = source;
+            this.compiled = compiled;
+        }
+    }
+}
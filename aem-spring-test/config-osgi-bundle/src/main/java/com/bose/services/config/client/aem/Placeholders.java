@@ -0,0 +1,75 @@
+package com.bose.services.config.client.aem;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Helper for finding the configuration keys referenced by <code>${key:default}</code> placeholders.
+ */
+final class Placeholders {
+    static final String PREFIX = "${";
+    static final String SUFFIX = "}";
+    static final String SEPARATOR = ":";
+    /**
+     * Stands for any key, used for placeholders whose key is itself built from placeholders (<code>${${env}.url}</code>).
+     */
+    static final String ANY_KEY = "*";
+
+    private Placeholders() {
+    }
+
+    /**
+     * Adds the keys of all placeholders in the value, including the ones nested in defaults.
+     *
+     * @param value the value, not null.
+     * @param keys  collects the referenced keys.
+     * @return <code>true</code> if the value has any placeholders.
+     */
+    static boolean collectKeys(String value, Collection<String> keys) {
+        if (!PlaceholderTemplate.hasPlaceholders(value)) {
+            return false;
+        }
+        keys.addAll(PlaceholderTemplate.compile(value).getKeys());
+        return true;
+    }
+
+    /**
+     * Placeholders are resolved recursively, a value in the configuration can reference other keys. So when a key changes,
+     * every key whose value references it (directly or indirectly) changes as well.
+     *
+     * @param changed       the changed keys.
+     * @param configuration the new configuration.
+     * @param previous      the previous configuration.
+     * @return the changed keys, including the keys that reference them.
+     */
+    static Set<String> expandChangedKeys(Set<String> changed, ConfigurationSnapshot configuration, ConfigurationSnapshot previous) {
+        if (changed.isEmpty()) {
+            return changed;
+        }
+        Set<String> expanded = new HashSet<>(changed);
+        boolean added = true;
+        Set<String> referenced = new HashSet<>();
+        while (added) {
+            added = false;
+            for (ConfigurationSnapshot snapshot : new ConfigurationSnapshot[]{configuration, previous}) {
+                for (Map.Entry<String, String> entry : snapshot) {
+                    if (expanded.contains(entry.getKey()) || !PlaceholderTemplate.hasPlaceholders(entry.getValue())) {
+                        continue;
+                    }
+                    referenced.clear();
+                    collectKeys(entry.getValue(), referenced);
+                    for (String key : referenced) {
+                        if (expanded.contains(key) || ANY_KEY.equals(key)) {
+                            expanded.add(entry.getKey());
+                            added = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return expanded;
+    }
+}
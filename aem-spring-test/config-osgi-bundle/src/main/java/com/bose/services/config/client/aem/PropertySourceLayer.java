@@ -0,0 +1,36 @@
+package com.bose.services.config.client.aem;
+
+import org.springframework.util.Assert;
+
+/**
+ * A single named property source of a configuration, e.g. the <code>myconfig-us.yml</code> file of the <code>us</code>
+ * profile. A configuration is composed of its layers in precedence order.
+ */
+public final class PropertySourceLayer {
+    private final String name;
+    private final ConfigurationSnapshot properties;
+
+    /**
+     * @param name       the name of the property source, as reported by the config server, optional. Layers without
+     *                   a name are never shared with other configurations.
+     * @param properties the properties of this property source only, not null.
+     */
+    public PropertySourceLayer(String name, ConfigurationSnapshot properties) {
+        Assert.notNull(properties);
+        this.name = name;
+        this.properties = properties;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ConfigurationSnapshot getProperties() {
+        return properties;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[Property source layer: '%s', %d properties]", name, properties.size());
+    }
+}
@@ -0,0 +1,140 @@
+package com.bose.services.config.client.aem;
+
+import java.util.*;
+
+/**
+ * Keeps every named property source layer once, and composes configuration views out of them.
+ * <p>
+ * Configurations requested with different additional profiles (e.g. <code>us</code>, <code>us,emea</code> and
+ * <code>emea,us</code>) mostly consist of the same property sources. Each layer is stored once and shared by all views
+ * that include it, a view is composed from its layers in precedence order (first one wins), so views share their keys
+ * and values instead of each holding a separate copy.
+ * <p>
+ * When a fetched layer has different content than the stored one, all other views including that layer are reported
+ * as invalidated, views that don't include the layer are not affected. Layers are removed as soon as no view
+ * references them anymore. Layers without a name (should not happen) are only used by their own view.
+ * <p>
+ * Updates are rare (only after fetching from the config server), so this class simply synchronizes all access.
+ */
+public class PropertySourceLayerCache {
+    private final Map<String, ConfigurationSnapshot> layers = new HashMap<>();
+    private final Map<String, Set<String>> viewsByLayer = new HashMap<>();
+    private final Map<String, List<String>> layersByView = new HashMap<>();
+
+    /**
+     * Stores the freshly fetched layers of a view and composes the view out of them.
+     *
+     * @param viewKey the key of the view (configuration name and profiles), not null.
+     * @param version the version of the configuration, optional.
+     * @param fetched the layers of the view in precedence order, most specific first, not null.
+     * @return the composed view, and the other views that include a layer that changed.
+     */
+    public synchronized Update update(String viewKey, String version, List<PropertySourceLayer> fetched) {
+        //drop the links of the previous version first, layers that are no longer used by any view are removed with
+        //them, layers that are still used by this view are stored again below
+        unlink(viewKey);
+        Set<String> invalidated = new LinkedHashSet<>();
+        ConfigurationSnapshot.Builder view = new ConfigurationSnapshot.Builder();
+        List<String> names = new ArrayList<>(fetched.size());
+        for (PropertySourceLayer layer : fetched) {
+            //qualified with the view key, unnamed layers of different views have nothing in common
+            String name = layer.getName() != null ? layer.getName() : viewKey + "#" + names.size();
+            ConfigurationSnapshot current = layers.get(name);
+            ConfigurationSnapshot properties = layer.getProperties();
+            if (current != null && current.equals(properties)) {
+                //share the layer we already have, the fetched copy can be garbage collected
+                properties = current;
+            } else {
+                if (current != null) {
+                    invalidated.addAll(viewsByLayer.getOrDefault(name, Collections.<String>emptySet()));
+                }
+                layers.put(name, properties);
+            }
+            names.add(name);
+            properties.forEach((key, value) -> {
+                if (!view.containsKey(key)) {
+                    view.put(key, value);
+                }
+            });
+        }
+        for (String name : names) {
+            viewsByLayer.computeIfAbsent(name, key -> new HashSet<>()).add(viewKey);
+        }
+        layersByView.put(viewKey, names);
+        invalidated.remove(viewKey);
+        return new Update(view.build(version), invalidated);
+    }
+
+    /**
+     * Removes the view, and all layers that are not included in any other view.
+     *
+     * @param viewKey the key of the view.
+     */
+    public synchronized void remove(String viewKey) {
+        unlink(viewKey);
+    }
+
+    public synchronized void clear() {
+        layers.clear();
+        viewsByLayer.clear();
+        layersByView.clear();
+    }
+
+    /**
+     * @return the number of distinct layers stored.
+     */
+    public synchronized int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * @return the number of views composed of the stored layers.
+     */
+    public synchronized int getViewCount() {
+        return layersByView.size();
+    }
+
+    private void unlink(String viewKey) {
+        List<String> names = layersByView.remove(viewKey);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            Set<String> views = viewsByLayer.get(name);
+            if (views != null) {
+                views.remove(viewKey);
+                if (views.isEmpty()) {
+                    viewsByLayer.remove(name);
+                    layers.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of {@link #update(String, String, List)}.
+     */
+    public static final class Update {
+        private final ConfigurationSnapshot view;
+        private final Set<String> invalidated;
+
+        Update(ConfigurationSnapshot view, Set<String> invalidated) {
+            this.view = view;
+            this.invalidated = invalidated;
+        }
+
+        /**
+         * @return the composed view.
+         */
+        public ConfigurationSnapshot getView() {
+            return view;
+        }
+
+        /**
+         * @return the keys of the other views that include a layer that changed.
+         */
+        public Set<String> getInvalidated() {
+            return invalidated;
+        }
+    }
+}
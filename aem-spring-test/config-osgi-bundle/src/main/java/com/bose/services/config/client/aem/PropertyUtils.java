@@ -20,6 +20,18 @@ public class PropertyUtils {
         return PropertiesUtil.toString(context.getProperties().get(name), defaultValue);
     }
 
+    public static int getPropertyAsInt(String name, ComponentContext context, int defaultValue) {
+        Assert.notNull(name);
+        Assert.notNull(context);
+        return PropertiesUtil.toInteger(context.getProperties().get(name), defaultValue);
+    }
+
+    public static long getPropertyAsLong(String name, ComponentContext context, long defaultValue) {
+        Assert.notNull(name);
+        Assert.notNull(context);
+        return PropertiesUtil.toLong(context.getProperties().get(name), defaultValue);
+    }
+
     public static String[] getPropertyAsArray(String name, ComponentContext context, String[] defaultValue) {
         Assert.notNull(name);
         Assert.notNull(context);
@@ -0,0 +1,166 @@
+package com.bose.services.config.client.aem;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of refreshing managed configurations, with the outcome and timing of every managed node.
+ */
+public final class RefreshResult {
+    /**
+     * What happened to a managed node during a refresh.
+     */
+    public enum Status {
+        /**
+         * The node was reconfigured and properties were changed.
+         */
+        UPDATED,
+        /**
+         * The node was already configured with the current configuration, or reconfiguring it changed nothing.
+         */
+        UNCHANGED,
+        /**
+         * The configuration of the node could not be fetched, the node was not touched.
+         */
+        SKIPPED,
+        /**
+         * Reconfiguring the node failed.
+         */
+        FAILED,
+        /**
+         * The node could not be accessed anymore (e.g. deleted) and is no longer tracked.
+         */
+        UNTRACKED
+    }
+
+    private final String configurationName;
+    private final int configurationCount;
+    private final long fetchTime;
+    private final long totalTime;
+    private final int saveCount;
+    private final List<NodeResult> nodes;
+    private final Map<Status, Integer> counts = new EnumMap<>(Status.class);
+
+    RefreshResult(String configurationName, int configurationCount, long fetchTime, long totalTime, int saveCount, List<NodeResult> nodes) {
+        this.configurationName = configurationName;
+        this.configurationCount = configurationCount;
+        this.fetchTime = fetchTime;
+        this.totalTime = totalTime;
+        this.saveCount = saveCount;
+        this.nodes = Collections.unmodifiableList(nodes);
+        for (Status status : Status.values()) {
+            counts.put(status, 0);
+        }
+        for (NodeResult node : nodes) {
+            counts.put(node.getStatus(), counts.get(node.getStatus()) + 1);
+        }
+    }
+
+    /**
+     * @return the refreshed configuration name, or {@link ManagedConfigurationTracker#REFRESH_ALL}.
+     */
+    public String getConfigurationName() {
+        return configurationName;
+    }
+
+    /**
+     * @return the number of distinct configurations (name and profiles) that were refreshed.
+     */
+    public int getConfigurationCount() {
+        return configurationCount;
+    }
+
+    /**
+     * @return the time it took to refresh the configurations from the config server, in nanoseconds.
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    /**
+     * @return the time the whole refresh took, in nanoseconds.
+     */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return the number of times changes were saved to the repository.
+     */
+    public int getSaveCount() {
+        return saveCount;
+    }
+
+    /**
+     * @return the outcome per managed node.
+     */
+    public List<NodeResult> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of managed nodes with the given outcome.
+     */
+    public int getCount(Status status) {
+        return counts.get(status);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[Refresh '%s': %d configurations, %d nodes %s, %d saves, fetch %dms, total %dms]",
+                configurationName, configurationCount, nodes.size(), counts, saveCount, fetchTime / 1000000, totalTime / 1000000);
+    }
+
+    /**
+     * Outcome of refreshing a single managed node.
+     */
+    public static final class NodeResult {
+        private final String nodePath;
+        private final ConfigurationKey configurationKey;
+        private final Status status;
+        private final long time;
+        private final Exception error;
+
+        NodeResult(String nodePath, ConfigurationKey configurationKey, Status status, long time, Exception error) {
+            this.nodePath = nodePath;
+            this.configurationKey = configurationKey;
+            this.status = status;
+            this.time = time;
+            this.error = error;
+        }
+
+        public String getNodePath() {
+            return nodePath;
+        }
+
+        public ConfigurationKey getConfigurationKey() {
+            return configurationKey;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the time it took to apply the configuration to the node, including waiting for its changes to be saved, in nanoseconds.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the error for a {@link Status#SKIPPED skipped}, {@link Status#FAILED failed} or
+         * {@link Status#UNTRACKED untracked} node, null otherwise.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s: %s in %dms]", nodePath, status, time / 1000000);
+        }
+    }
+}
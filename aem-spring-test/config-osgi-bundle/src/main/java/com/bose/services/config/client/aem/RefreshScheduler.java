@@ -0,0 +1,347 @@
+package com.bose.services.config.client.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Debounces and schedules refreshes of managed configuration.
+ * <p>
+ * A refresh request doesn't run right away, it waits for the debounce window. Requests for the same configuration name
+ * that arrive in the meantime are coalesced into the pending refresh, and restart the window (up to a maximum delay of
+ * {@value #MAX_DELAY_FACTOR} windows, so a steady stream of requests can't postpone a refresh forever).
+ * A refresh of {@link ManagedConfigurationTracker#REFRESH_ALL everything} absorbs all pending refreshes by name, and
+ * while it's pending, new requests by name are merged into it.
+ * <p>
+ * At most one refresh per configuration name runs at a time, a refresh of everything never runs together with any other
+ * refresh. A request for a name that's currently refreshing is queued, and runs once the running refresh is done.
+ * Refreshes by name go before refreshes of everything, they are small and usually the reason for the notification.
+ * <p>
+ * This class is thread-safe.
+ */
+public class RefreshScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+    private static final int MAX_DELAY_FACTOR = 10;
+
+    private final Function<String, RefreshResult> refresher;
+    private final long debounce;
+    private final int concurrency;
+    private final InstrumentedExecutor executor;
+
+    //all guarded by this
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final PriorityQueue<Pending> queue = new PriorityQueue<>();
+    private final Set<String> running = new HashSet<>();
+    private boolean stopped;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalDelay = new AtomicLong();
+
+    /**
+     * @param name        the name of the scheduler, used for thread names.
+     * @param refresher   runs the actual refresh for a configuration name, not null.
+     * @param debounce    the debounce window in milliseconds, 0 to only coalesce requests that are still queued.
+     * @param concurrency the maximum number of refreshes running at the same time.
+     */
+    public RefreshScheduler(String name, Function<String, RefreshResult> refresher, long debounce, int concurrency) {
+        Assert.notNull(refresher);
+        this.refresher = refresher;
+        this.debounce = Math.max(0, debounce);
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = new InstrumentedExecutor(name, this.concurrency, this.concurrency);
+        Thread dispatcher = new Thread(this::dispatch, name + "-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Schedules a refresh of the given configuration name.
+     *
+     * @param configurationName the configuration to refresh, or {@link ManagedConfigurationTracker#REFRESH_ALL}, not null.
+     * @return completes with the result of the refresh this request ended up in. When merged into a refresh of
+     * everything, that's the result of refreshing everything.
+     */
+    public CompletableFuture<RefreshResult> schedule(String configurationName) {
+        Assert.notNull(configurationName);
+        requested.incrementAndGet();
+        boolean refreshAll = ManagedConfigurationTracker.REFRESH_ALL.equals(configurationName);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (stopped) {
+                CompletableFuture<RefreshResult> future = new CompletableFuture<>();
+                future.completeExceptionally(new ConfigurationException("Refresh scheduler has been shut down"));
+                return future;
+            }
+            Pending all = pending.get(ManagedConfigurationTracker.REFRESH_ALL);
+            if (!refreshAll && all != null) {
+                //refreshed anyway
+                merged.incrementAndGet();
+                return all.future;
+            }
+            Pending existing = pending.get(configurationName);
+            if (existing != null) {
+                coalesced.incrementAndGet();
+                queue.remove(existing);
+                existing.dueAt = Math.min(now + debounce, existing.requestedAt + debounce * MAX_DELAY_FACTOR);
+                queue.add(existing);
+                notifyAll();
+                return existing.future;
+            }
+            Pending added = new Pending(configurationName, now, now + debounce);
+            if (refreshAll) {
+                for (Iterator<Pending> absorbed = pending.values().iterator(); absorbed.hasNext(); ) {
+                    Pending named = absorbed.next();
+                    absorbed.remove();
+                    queue.remove(named);
+                    merged.incrementAndGet();
+                    //the earliest request determines how long we may wait
+                    added.requestedAt = Math.min(added.requestedAt, named.requestedAt);
+                    added.future.whenComplete((result, error) -> {
+                        if (error != null) {
+                            named.future.completeExceptionally(error);
+                        } else {
+                            named.future.complete(result);
+                        }
+                    });
+                }
+            }
+            pending.put(configurationName, added);
+            queue.add(added);
+            notifyAll();
+            return added.future;
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            Pending next;
+            synchronized (this) {
+                next = null;
+                while (!stopped && (next = poll()) == null) {
+                    try {
+                        wait(nextWait());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                pending.remove(next.configurationName);
+                running.add(next.configurationName);
+            }
+            start(next);
+        }
+    }
+
+    //MUST be called holding the lock, returns the refresh to run now, if any
+    private Pending poll() {
+        if (running.size() >= concurrency || running.contains(ManagedConfigurationTracker.REFRESH_ALL)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        List<Pending> skipped = new ArrayList<>();
+        Pending next = null;
+        Pending candidate;
+        while ((candidate = queue.poll()) != null) {
+            skipped.add(candidate);
+            boolean refreshAll = ManagedConfigurationTracker.REFRESH_ALL.equals(candidate.configurationName);
+            if (candidate.dueAt <= now && !running.contains(candidate.configurationName) && (!refreshAll || running.isEmpty())) {
+                next = candidate;
+                skipped.remove(skipped.size() - 1);
+                break;
+            }
+        }
+        queue.addAll(skipped);
+        return next;
+    }
+
+    //MUST be called holding the lock, time to wait for the next due refresh, 0 to wait for a notify
+    private long nextWait() {
+        long now = System.currentTimeMillis();
+        long wait = 0;
+        for (Pending candidate : queue) {
+            if (candidate.dueAt > now) {
+                wait = wait == 0 ? candidate.dueAt - now : Math.min(wait, candidate.dueAt - now);
+            }
+        }
+        return wait;
+    }
+
+    private void start(Pending next) {
+        totalDelay.addAndGet(System.currentTimeMillis() - next.requestedAt);
+        try {
+            executor.execute(() -> {
+                try {
+                    RefreshResult result = refresher.apply(next.configurationName);
+                    //counted before completing, so whoever waits for the result sees it in the statistics
+                    executed.incrementAndGet();
+                    next.future.complete(result);
+                } catch (Throwable e) {
+                    logger.error("Error refreshing '" + next.configurationName + "'", e);
+                    failed.incrementAndGet();
+                    next.future.completeExceptionally(e);
+                } finally {
+                    done(next);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //only when shut down, we never run more refreshes than there are threads
+            failed.incrementAndGet();
+            next.future.completeExceptionally(new ConfigurationException("Refresh scheduler has been shut down", e));
+            done(next);
+        }
+    }
+
+    private synchronized void done(Pending refresh) {
+        running.remove(refresh.configurationName);
+        notifyAll();
+    }
+
+    /**
+     * Stops the scheduler, pending refreshes are cancelled, running refreshes are interrupted.
+     */
+    public void shutdown() {
+        List<Pending> cancelled;
+        synchronized (this) {
+            stopped = true;
+            cancelled = new ArrayList<>(pending.values());
+            pending.clear();
+            queue.clear();
+            notifyAll();
+        }
+        for (Pending refresh : cancelled) {
+            refresh.future.completeExceptionally(new ConfigurationException("Refresh scheduler has been shut down"));
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the current statistics of this scheduler.
+     */
+    public Stats getStats() {
+        int queued;
+        int active;
+        synchronized (this) {
+            queued = pending.size();
+            active = running.size();
+        }
+        return new Stats(queued, active, requested.get(), coalesced.get(), merged.get(), executed.get(), failed.get(),
+                totalDelay.get());
+    }
+
+    private static final class Pending implements Comparable<Pending> {
+        private final String configurationName;
+        private final boolean bulk;
+        private final CompletableFuture<RefreshResult> future = new CompletableFuture<>();
+        private long requestedAt;
+        private long dueAt;
+
+        private Pending(String configurationName, long requestedAt, long dueAt) {
+            this.configurationName = configurationName;
+            this.bulk = ManagedConfigurationTracker.REFRESH_ALL.equals(configurationName);
+            this.requestedAt = requestedAt;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            //targeted refreshes first, then the one that's due first
+            if (bulk != other.bulk) {
+                return bulk ? 1 : -1;
+            }
+            return Long.compare(dueAt, other.dueAt);
+        }
+    }
+
+    /**
+     * Point in time statistics of a {@link RefreshScheduler}.
+     */
+    public static final class Stats {
+        private final int queueDepth;
+        private final int running;
+        private final long requestCount;
+        private final long coalescedCount;
+        private final long mergedCount;
+        private final long executedCount;
+        private final long failedCount;
+        private final long totalDelay;
+
+        Stats(int queueDepth, int running, long requestCount, long coalescedCount, long mergedCount, long executedCount,
+              long failedCount, long totalDelay) {
+            this.queueDepth = queueDepth;
+            this.running = running;
+            this.requestCount = requestCount;
+            this.coalescedCount = coalescedCount;
+            this.mergedCount = mergedCount;
+            this.executedCount = executedCount;
+            this.failedCount = failedCount;
+            this.totalDelay = totalDelay;
+        }
+
+        /**
+         * @return the number of refreshes waiting to run.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return the number of refreshes running right now.
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * @return the number of requests coalesced into a pending refresh of the same configuration name.
+         */
+        public long getCoalescedCount() {
+            return coalescedCount;
+        }
+
+        /**
+         * @return the number of requests merged into a pending refresh of everything.
+         */
+        public long getMergedCount() {
+            return mergedCount;
+        }
+
+        public long getExecutedCount() {
+            return executedCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return the average time between the first request and the start of a refresh, in milliseconds.
+         */
+        public double getAverageDelay() {
+            long started = executedCount + failedCount;
+            return started == 0 ? 0.0 : (double) totalDelay / started;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[queued=%d, running=%d, requests=%d, coalesced=%d, merged=%d, executed=%d, failed=%d, avgDelay=%.1fms]",
+                    queueDepth, running, requestCount, coalescedCount, mergedCount, executedCount, failedCount, getAverageDelay());
+        }
+    }
+}
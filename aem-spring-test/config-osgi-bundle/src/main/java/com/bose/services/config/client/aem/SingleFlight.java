@@ -0,0 +1,188 @@
+package com.bose.services.config.client.aem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution.
+ * <p>
+ * The first caller for a key (the leader) runs the call, any caller arriving for the same key while that call is
+ * still in flight waits for it and gets the same result (or exception). As soon as the call completes, the key is
+ * released, so the next call for that key will execute again.
+ * <p>
+ * A {@link #executeAll(Collection, BatchCall) batch call} takes the lead for every key that isn't in flight yet and
+ * executes a single call for all of them, keys already in flight are waited for. Single and batch calls for the same
+ * key are coalesced with each other.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <V> the type of the result of the calls.
+ */
+public class SingleFlight<V> {
+    private final ConcurrentMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Executes the call for the given key, or waits for the call already in flight for that key.
+     *
+     * @param key  the key identifying the call, not null.
+     * @param call the call to execute if no call is in flight for the key, not null.
+     * @return the result of the (shared) call.
+     * @throws ConfigurationException when the (shared) call failed, runtime exceptions and errors are propagated as is.
+     */
+    public V execute(String key, Callable<V> call) throws ConfigurationException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return await(key, existing);
+        }
+        executed.incrementAndGet();
+        try {
+            V result = call.call();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            //waiting callers must never be left blocked, whatever went wrong
+            future.completeExceptionally(e);
+            throw e;
+        } catch (Exception e) {
+            ConfigurationException wrapped = new ConfigurationException("Error executing call for '%s'", e, key);
+            future.completeExceptionally(wrapped);
+            throw wrapped;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Executes a single call for all given keys that have no call in flight, and waits for the calls already in flight
+     * for the other keys. Keys are identified by their {@link Object#toString() string representation}.
+     *
+     * @param keys the keys to get the results for, not null.
+     * @param call the call to execute for the keys that have no call in flight, not null. Keys missing from the result
+     *             of the call have no result, neither for this caller nor for the callers waiting for it.
+     * @return the results by key, keys without result are missing.
+     * @throws ConfigurationException when a (shared) call failed, runtime exceptions and errors are propagated as is.
+     */
+    public <K> Map<K, V> executeAll(Collection<K> keys, BatchCall<K, V> call) throws ConfigurationException {
+        Map<K, CompletableFuture<V>> leading = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> waiting = new LinkedHashMap<>();
+        for (K key : keys) {
+            if (leading.containsKey(key) || waiting.containsKey(key)) {
+                continue;
+            }
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight.putIfAbsent(key.toString(), future);
+            if (existing != null) {
+                coalesced.incrementAndGet();
+                waiting.put(key, existing);
+            } else {
+                leading.put(key, future);
+            }
+        }
+        Map<K, V> result = new LinkedHashMap<>();
+        if (!leading.isEmpty()) {
+            //our own call first, before waiting for anybody else's, so callers never wait for each other in a cycle
+            executed.addAndGet(leading.size());
+            List<K> led = new ArrayList<>(leading.keySet());
+            try {
+                Map<K, V> values = call.call(led);
+                for (Map.Entry<K, CompletableFuture<V>> entry : leading.entrySet()) {
+                    V value = values.get(entry.getKey());
+                    entry.getValue().complete(value);
+                    if (value != null) {
+                        result.put(entry.getKey(), value);
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                completeExceptionally(leading, e);
+                throw e;
+            } catch (Exception e) {
+                ConfigurationException wrapped = new ConfigurationException("Error executing call for '%s'", e, led);
+                completeExceptionally(leading, wrapped);
+                throw wrapped;
+            } finally {
+                for (Map.Entry<K, CompletableFuture<V>> entry : leading.entrySet()) {
+                    inFlight.remove(entry.getKey().toString(), entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<K, CompletableFuture<V>> entry : waiting.entrySet()) {
+            V value = await(entry.getKey().toString(), entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    private static <K, V> void completeExceptionally(Map<K, CompletableFuture<V>> futures, Throwable e) {
+        for (CompletableFuture<V> future : futures.values()) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private V await(String key, CompletableFuture<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConfigurationException("Interrupted while waiting for in-flight call for '%s'", e, key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new ConfigurationException("Error in in-flight call for '%s'", e.getCause(), key);
+        }
+    }
+
+    /**
+     * @return the number of calls that were actually executed, a batch call counts once for every key it executed for.
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return the number of calls that were coalesced into a call already in flight.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of calls currently in flight.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * A call for many keys at once.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the type of the results.
+     */
+    public interface BatchCall<K, V> {
+        /**
+         * @param keys the keys to execute the call for.
+         * @return the results by key.
+         * @throws Exception when the call fails.
+         */
+        Map<K, V> call(List<K> keys) throws Exception;
+    }
+}
@@ -0,0 +1,98 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BusEventDecoderTest {
+    private static final String REFRESH = "{\"type\":\"RefreshRemoteApplicationEvent\",\"timestamp\":1480000000000,"
+            + "\"originService\":\"config-server:8888\",\"destinationService\":\"aem:**\",\"id\":\"4a7b\"}";
+    private static final String ENVIRONMENT_CHANGE = "{\"type\":\"EnvironmentChangeRemoteApplicationEvent\","
+            + "\"values\":{\"greeting\":\"hello\"},\"destinationService\":\"**\",\"unknown\":true}";
+
+    //like Spring Cloud Stream 1.x embeds the headers
+    private static byte[] embed(String payload, String... headers) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(0xff);
+        out.writeByte(headers.length / 2);
+        for (int i = 0; i < headers.length; i += 2) {
+            byte[] name = headers[i].getBytes(StandardCharsets.UTF_8);
+            byte[] value = headers[i + 1].getBytes(StandardCharsets.UTF_8);
+            out.writeByte(name.length);
+            out.write(name);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.write(payload.getBytes(StandardCharsets.UTF_8));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void plainJson() throws IOException {
+        BusEvent event = BusEventDecoder.decode(REFRESH.getBytes(StandardCharsets.UTF_8));
+        assertEquals(BusEvent.TYPE_REFRESH, event.getType());
+        assertEquals("4a7b", event.getId());
+        assertEquals(1480000000000L, event.getTimestamp());
+        assertEquals("config-server:8888", event.getOriginService());
+        assertEquals("aem:**", event.getDestinationService());
+    }
+
+    @Test
+    public void embeddedHeaders() throws IOException {
+        BusEvent event = BusEventDecoder.decode(embed(ENVIRONMENT_CHANGE, "contentType", "\"application/json\"", "id", "\"4a7b\""));
+        assertEquals(BusEvent.TYPE_ENVIRONMENT_CHANGE, event.getType());
+        assertEquals("hello", event.getValues().get("greeting"));
+        assertTrue(event.isForAll());
+    }
+
+    @Test
+    public void embeddedHeadersWithoutContentType() throws IOException {
+        assertEquals(BusEvent.TYPE_REFRESH, BusEventDecoder.decode(embed(REFRESH)).getType());
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedContentType() throws IOException {
+        BusEventDecoder.decode(embed(REFRESH, "contentType", "\"application/x-java-object\""));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedHeaders() throws IOException {
+        byte[] body = embed(REFRESH, "contentType", "\"application/json\"");
+        BusEventDecoder.decode(Arrays.copyOf(body, 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void headerLongerThanTheBody() throws IOException {
+        byte[] body = embed("", "contentType", "\"application/json\"");
+        //the value claims more bytes than are left
+        BusEventDecoder.decode(Arrays.copyOf(body, body.length - 2));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPayload() throws IOException {
+        byte[] body = embed(REFRESH, "contentType", "\"application/json\"");
+        BusEventDecoder.decode(Arrays.copyOf(body, body.length - 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void onlyTheMarker() throws IOException {
+        BusEventDecoder.decode(new byte[]{(byte) 0xff});
+    }
+
+    @Test(expected = IOException.class)
+    public void empty() throws IOException {
+        BusEventDecoder.decode(new byte[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void notABusEvent() throws IOException {
+        BusEventDecoder.decode("{\"name\":\"value\"}".getBytes(StandardCharsets.UTF_8));
+    }
+}
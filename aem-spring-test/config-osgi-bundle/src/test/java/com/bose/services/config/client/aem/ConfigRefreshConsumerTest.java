@@ -0,0 +1,244 @@
+package com.bose.services.config.client.aem;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import org.apache.qpid.server.SystemLauncher;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the consumer against an embedded AMQP 0-9-1 broker, and checks how deliveries are acknowledged.
+ * <p>
+ * A message is acknowledged once no delivery of it is left when the consumer's channel is closed: closing a channel
+ * requeues all of its unacknowledged messages.
+ * <p>
+ * The broker is configured with a maximum of 1 delivery attempt, otherwise Qpid keeps messages rejected without
+ * requeue for other consumers instead of discarding them like RabbitMQ does.
+ */
+public class ConfigRefreshConsumerTest {
+    private static final String REFRESH_ALL_EVENT = "{\"type\":\"RefreshRemoteApplicationEvent\",\"destinationService\":\"**\"}";
+    private static final long TIMEOUT = 5000;
+    private static SystemLauncher broker;
+    private static int port;
+    private static File workDir;
+
+    private final BlockingQueue<CompletableFuture<RefreshResult>> refreshes = new LinkedBlockingQueue<>();
+    private Connection connection;
+    private Channel channel;
+    private Channel consumerChannel;
+    private InstrumentedExecutor executor;
+    private String queue;
+
+    @BeforeClass
+    public static void startBroker() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        workDir = Files.createTempDirectory("qpid").toFile();
+        Map<String, String> context = new HashMap<>();
+        context.put("qpid.amqp_port", String.valueOf(port));
+        context.put("qpid.work_dir", workDir.getAbsolutePath());
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("type", "Memory");
+        attributes.put("initialConfigurationLocation", ConfigRefreshConsumerTest.class.getResource("/config-refresh-broker.json").toExternalForm());
+        attributes.put("startupLoggedToSystemOut", false);
+        attributes.put("context", context);
+        broker = new SystemLauncher();
+        broker.startup(attributes);
+    }
+
+    @AfterClass
+    public static void stopBroker() {
+        if (broker != null) {
+            broker.shutdown();
+        }
+        File[] files = workDir.listFiles();
+        if (files == null || files.length == 0) {
+            workDir.delete();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("localhost");
+        factory.setPort(port);
+        factory.setUsername("guest");
+        factory.setPassword("guest");
+        connection = factory.newConnection();
+        channel = connection.createChannel();
+        //not deleted when the consumer's channel is closed
+        queue = channel.queueDeclare("config-refresh-" + UUID.randomUUID(), false, false, false, null).getQueue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (connection != null && connection.isOpen()) {
+            channel.queueDelete(queue);
+            connection.close();
+        }
+    }
+
+    //like the activator does
+    private void consume(int prefetch) throws Exception {
+        executor = new InstrumentedExecutor("test-bus", 2, prefetch);
+        consumerChannel = connection.createChannel();
+        consumerChannel.basicQos(prefetch);
+        ConfigRefreshConsumer consumer = new ConfigRefreshConsumer(consumerChannel, timeout -> new RecordingTracker(), executor);
+        consumerChannel.basicConsume(queue, false, consumer);
+    }
+
+    private void publish(String body) throws Exception {
+        publish(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void publish(byte[] body) throws Exception {
+        channel.basicPublish("", queue, null, body);
+    }
+
+    private CompletableFuture<RefreshResult> nextRefresh() throws InterruptedException {
+        CompletableFuture<RefreshResult> refresh = refreshes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("no refresh scheduled", refresh);
+        return refresh;
+    }
+
+    private void assertNoRefresh() throws InterruptedException {
+        assertNull("unexpected refresh", refreshes.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    private static void succeed(CompletableFuture<RefreshResult> refresh) {
+        refresh.complete(new RefreshResult(ManagedConfigurationTracker.REFRESH_ALL, 1, 0, 0, 0,
+                Collections.<RefreshResult.NodeResult>emptyList()));
+    }
+
+    private static void fail(CompletableFuture<RefreshResult> refresh) {
+        refresh.completeExceptionally(new ConfigurationException("Refresh failed"));
+    }
+
+    //closing the channel requeues what it didn't acknowledge
+    private int closeAndCountLeft(int deliveries) throws Exception {
+        //a refresh that's completed before the consumer waits for it is acknowledged by the consumer's thread
+        long timeout = System.currentTimeMillis() + TIMEOUT;
+        while (executor.getCompletedTaskCount() < deliveries) {
+            assertTrue("deliveries not handled", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        consumerChannel.close();
+        return channel.queueDeclarePassive(queue).getMessageCount();
+    }
+
+    @Test(timeout = 30000)
+    public void acknowledgedAfterSuccessfulRefresh() throws Exception {
+        consume(1);
+        publish(REFRESH_ALL_EVENT);
+        succeed(nextRefresh());
+
+        assertEquals(0, closeAndCountLeft(1));
+        assertNoRefresh();
+    }
+
+    @Test(timeout = 30000)
+    public void notAcknowledgedWhileRefreshing() throws Exception {
+        consume(1);
+        publish(REFRESH_ALL_EVENT);
+        nextRefresh();
+
+        assertEquals(1, closeAndCountLeft(1));
+    }
+
+    @Test(timeout = 30000)
+    public void requeuedOnFirstFailure() throws Exception {
+        consume(1);
+        publish(REFRESH_ALL_EVENT);
+        fail(nextRefresh());
+        //delivered again
+        succeed(nextRefresh());
+
+        assertEquals(0, closeAndCountLeft(2));
+        assertNoRefresh();
+    }
+
+    @Test(timeout = 30000)
+    public void rejectedWhenRedeliveryFails() throws Exception {
+        consume(1);
+        publish(REFRESH_ALL_EVENT);
+        fail(nextRefresh());
+        fail(nextRefresh());
+
+        //not delivered a third time
+        assertNoRefresh();
+        assertEquals(0, closeAndCountLeft(2));
+    }
+
+    @Test(timeout = 30000)
+    public void malformedMessagesAreAcknowledgedAndIgnored() throws Exception {
+        consume(1);
+        publish(new byte[]{(byte) 0xff, 1, 3, 'a'});
+        publish("not json");
+        publish("{\"type\":\"AckRemoteApplicationEvent\",\"destinationService\":\"**\"}");
+        publish(REFRESH_ALL_EVENT);
+        //with a prefetch count of 1, the last message is only delivered when the ones before are acknowledged
+        succeed(nextRefresh());
+
+        assertEquals(0, closeAndCountLeft(4));
+        assertNoRefresh();
+    }
+
+    @Test(timeout = 30000)
+    public void prefetchCountIsHonored() throws Exception {
+        consume(2);
+        for (int i = 0; i < 5; i++) {
+            publish(REFRESH_ALL_EVENT);
+        }
+        List<CompletableFuture<RefreshResult>> running = new ArrayList<>();
+        running.add(nextRefresh());
+        running.add(nextRefresh());
+        //the others wait in the broker until one is acknowledged
+        assertNoRefresh();
+
+        //every acknowledgement lets the next message in
+        for (int handled = 0; handled < 5; handled++) {
+            succeed(running.remove(0));
+            if (handled < 3) {
+                running.add(nextRefresh());
+            }
+            assertNoRefresh();
+        }
+
+        assertEquals(0, closeAndCountLeft(5));
+    }
+
+    private class RecordingTracker extends ManagedConfigurationTracker {
+        @Override
+        public CompletableFuture<RefreshResult> scheduleRefresh(String configurationName) {
+            assertEquals(REFRESH_ALL, configurationName);
+            CompletableFuture<RefreshResult> refresh = new CompletableFuture<>();
+            refreshes.add(refresh);
+            return refresh;
+        }
+    }
+}
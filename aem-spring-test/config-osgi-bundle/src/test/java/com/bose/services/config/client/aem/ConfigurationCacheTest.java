@@ -0,0 +1,137 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConfigurationCacheTest {
+    private static final long TTL = 60000;
+
+    @Test
+    public void freshEntryIsAHit() {
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 0, TTL, String::length);
+        cache.put("a", "value", "etag", System.currentTimeMillis(), 0);
+
+        ConfigurationCache.Entry<String> entry = cache.get("a");
+        assertEquals("value", entry.getValue());
+        assertEquals("etag", entry.getETag());
+        assertFalse(entry.isExpired());
+        assertNull(cache.get("b"));
+        ConfigurationCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(0, stats.getStaleHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(5, stats.getWeight());
+    }
+
+    @Test
+    public void expiredEntryIsStillServed() {
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 0, TTL, String::length);
+        cache.put("a", "value", "etag", System.currentTimeMillis() - TTL - 1, 0);
+
+        ConfigurationCache.Entry<String> entry = cache.get("a");
+        assertNotNull(entry);
+        assertTrue(entry.isExpired());
+        assertEquals("value", entry.getValue());
+        assertEquals(1, cache.getStats().getStaleHitCount());
+        assertEquals(0, cache.getStats().getHitCount());
+        assertEquals(1.0, cache.getStats().getHitRate(), 0.0);
+    }
+
+    @Test
+    public void renewMakesAnExpiredEntryFreshAgain() {
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 0, TTL, String::length);
+        cache.put("a", "value", "etag", System.currentTimeMillis() - TTL - 1, 0);
+
+        cache.renew("a");
+        ConfigurationCache.Entry<String> entry = cache.get("a");
+        assertFalse(entry.isExpired());
+        assertEquals("value", entry.getValue());
+        assertEquals("etag", entry.getETag());
+        assertEquals(1, cache.getStats().getHitCount());
+    }
+
+    @Test
+    public void expireKeepsServingTheValue() {
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 0, TTL, String::length);
+        cache.put("a", "value", null, System.currentTimeMillis(), 0);
+
+        cache.expire("a");
+        ConfigurationCache.Entry<String> entry = cache.peek("a");
+        assertTrue(entry.isExpired());
+        assertEquals("value", entry.getValue());
+        //peek doesn't record statistics
+        assertEquals(0, cache.getStats().getStaleHitCount());
+    }
+
+    @Test
+    public void entriesNeverExpireWithoutTtl() {
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 0, 0, String::length);
+        cache.put("a", "value", null, 0, 0);
+        assertFalse(cache.get("a").isExpired());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws InterruptedException {
+        List<String> evicted = new ArrayList<>();
+        ConfigurationCache<String> cache = new ConfigurationCache<>(2, 0, TTL, String::length, evicted::add);
+        long now = System.currentTimeMillis();
+        cache.put("a", "a", null, now, 0);
+        Thread.sleep(2);
+        cache.put("b", "b", null, now, 0);
+        Thread.sleep(2);
+        //a is now more recently used than b
+        cache.get("a");
+        Thread.sleep(2);
+        cache.put("c", "c", null, now, 0);
+
+        assertEquals(Arrays.asList("b"), evicted);
+        assertNotNull(cache.peek("a"));
+        assertNull(cache.peek("b"));
+        assertNotNull(cache.peek("c"));
+        assertEquals(1, cache.getStats().getEvictionCount());
+        assertEquals(2, cache.getStats().getSize());
+    }
+
+    @Test
+    public void entriesAreEvictedWhenTooHeavy() throws InterruptedException {
+        List<String> evicted = new ArrayList<>();
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 10, TTL, String::length, evicted::add);
+        long now = System.currentTimeMillis();
+        cache.put("a", "aaaa", null, now, 0);
+        Thread.sleep(2);
+        cache.put("b", "bbbb", null, now, 0);
+        Thread.sleep(2);
+        cache.put("c", "ccccccc", null, now, 0);
+
+        assertEquals(Arrays.asList("a", "b"), evicted);
+        assertEquals(7, cache.getStats().getWeight());
+        assertEquals(1, cache.getStats().getSize());
+    }
+
+    @Test
+    public void newEntryIsKeptEvenIfTooHeavy() {
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 2, TTL, String::length);
+        cache.put("a", "aaaa", null, System.currentTimeMillis(), 0);
+        assertEquals("aaaa", cache.peek("a").getValue());
+        assertEquals(0, cache.getStats().getEvictionCount());
+    }
+
+    @Test
+    public void replacingAnEntryUpdatesTheWeight() {
+        ConfigurationCache<String> cache = new ConfigurationCache<>(0, 0, TTL, String::length);
+        cache.put("a", "aaaa", null, System.currentTimeMillis(), 0);
+        cache.put("a", "aa", null, System.currentTimeMillis(), 1000000);
+        assertEquals(2, cache.getStats().getWeight());
+        assertEquals(1, cache.getStats().getLoadCount());
+        assertEquals(1.0, cache.getStats().getAverageLoadTime(), 0.0001);
+
+        cache.clear();
+        assertEquals(0, cache.getStats().getWeight());
+        assertEquals(0, cache.getStats().getSize());
+    }
+}
@@ -0,0 +1,229 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.service.component.ComponentContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConfigurationServiceImplTest {
+    private static final ConfigurationKey APP = new ConfigurationKey("app");
+    private static final ConfigurationKey OTHER = new ConfigurationKey("other");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File directory;
+    private FakeConfigurationService service;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("snapshots");
+        service = activate(new FakeConfigurationService());
+    }
+
+    @After
+    public void tearDown() {
+        deactivate(service);
+    }
+
+    @Test
+    public void configServerIsPreferredOverTheSnapshot() {
+        service.version = "v1";
+        assertEquals("v1", service.getSnapshot("app").getVersion());
+        deactivate(service);
+
+        //restart, the config server has a newer version than the snapshot
+        service = activate(new FakeConfigurationService());
+        service.version = "v2";
+        assertEquals("v2", service.getSnapshot("app").getVersion());
+        assertEquals(1, service.getFetchCount());
+    }
+
+    @Test
+    public void snapshotIsUsedWhenTheConfigServerFails() throws InterruptedException {
+        service.version = "v1";
+        service.getSnapshot("app");
+        deactivate(service);
+
+        service = activate(new FakeConfigurationService());
+        service.failing = true;
+        assertEquals("v1", service.getSnapshot("app").getVersion());
+        service.fetched.clear();
+
+        //served from the snapshot, so revalidated (in the background) on the next access
+        service.failing = false;
+        service.version = "v2";
+        assertEquals("v1", service.getSnapshot("app").getVersion());
+        assertEquals("app", service.fetched.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void failureWithoutSnapshotIsPropagated() {
+        service.failing = true;
+        service.getSnapshot("app");
+    }
+
+    @Test
+    public void batchFallsBackToSnapshotsWhenTheConfigServerFails() {
+        service.version = "v1";
+        service.getSnapshots(Arrays.asList(APP, OTHER));
+        deactivate(service);
+
+        service = activate(new FakeConfigurationService());
+        service.failing = true;
+        Map<ConfigurationKey, ConfigurationSnapshot> result = service.getSnapshots(Arrays.asList(APP, OTHER));
+        assertEquals(2, result.size());
+        assertEquals("v1", result.get(APP).getVersion());
+        assertEquals("v1", result.get(OTHER).getVersion());
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void batchFailsWhenAConfigurationHasNoSnapshot() {
+        service.version = "v1";
+        service.getSnapshot("app");
+        deactivate(service);
+
+        service = activate(new FakeConfigurationService());
+        service.failing = true;
+        service.getSnapshots(Arrays.asList(APP, OTHER));
+    }
+
+    @Test
+    public void concurrentBatchesShareTheFetchOfAConfiguration() throws Exception {
+        service.version = "v1";
+        service.blockFetches();
+        CompletableFuture<Map<ConfigurationKey, ConfigurationSnapshot>> first =
+                CompletableFuture.supplyAsync(() -> service.getSnapshots(Collections.singletonList(APP)));
+        assertTrue(service.entered.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Map<ConfigurationKey, ConfigurationSnapshot>> second =
+                CompletableFuture.supplyAsync(() -> service.getSnapshots(Arrays.asList(APP, OTHER)));
+        while (service.getCoalescedCount() == 0) {
+            assertFalse(second.isDone());
+            Thread.sleep(1);
+        }
+        service.release.countDown();
+
+        assertEquals("v1", first.get(5, TimeUnit.SECONDS).get(APP).getVersion());
+        Map<ConfigurationKey, ConfigurationSnapshot> result = second.get(5, TimeUnit.SECONDS);
+        assertEquals(2, result.size());
+        assertSame(first.get().get(APP), result.get(APP));
+        //app was fetched once, by the first caller, other isn't in flight, so the second caller fetched that one itself
+        assertEquals(Arrays.asList("app", "other"), service.fetchedNames);
+        assertEquals(1, service.getCoalescedCount());
+    }
+
+    @Test
+    public void singleFetchWaitsForABatchInFlight() throws Exception {
+        service.version = "v1";
+        service.blockFetches();
+        CompletableFuture<Map<ConfigurationKey, ConfigurationSnapshot>> batch =
+                CompletableFuture.supplyAsync(() -> service.getSnapshots(Collections.singletonList(APP)));
+        assertTrue(service.entered.await(5, TimeUnit.SECONDS));
+        CompletableFuture<ConfigurationSnapshot> single = CompletableFuture.supplyAsync(() -> service.getSnapshot("app"));
+        while (service.getCoalescedCount() == 0) {
+            assertFalse(single.isDone());
+            Thread.sleep(1);
+        }
+        service.release.countDown();
+
+        assertSame(batch.get(5, TimeUnit.SECONDS).get(APP), single.get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("app"), service.fetchedNames);
+    }
+
+    private FakeConfigurationService activate(FakeConfigurationService service) {
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("snapshot.directory", directory.getAbsolutePath());
+        service.activate((ComponentContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ComponentContext.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getProperties")) {
+                        return properties;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+        return service;
+    }
+
+    private static void deactivate(FakeConfigurationService service) {
+        service.deactivate(null);
+    }
+
+    /**
+     * Serves every configuration at the current version, instead of calling a config server.
+     */
+    private static class FakeConfigurationService extends ConfigurationServiceImpl {
+        final BlockingQueue<String> fetched = new LinkedBlockingQueue<>();
+        final List<String> fetchedNames = new CopyOnWriteArrayList<>();
+        volatile String version;
+        volatile boolean failing;
+        //set to hold the first call to the config server until released
+        volatile CountDownLatch entered;
+        volatile CountDownLatch release;
+
+        void blockFetches() {
+            entered = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        private void record(String name) {
+            fetched.add(name);
+            fetchedNames.add(name);
+            if (release != null && entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    assertTrue(release.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new ConfigurationException("Interrupted", e);
+                }
+            }
+        }
+
+        @Override
+        protected FetchResult getConfiguration(String name, String eTag, String... additionalProfiles) {
+            record(name);
+            if (failing) {
+                throw new ConfigurationException("Config server down");
+            }
+            return result(name);
+        }
+
+        @Override
+        protected Map<ConfigurationKey, FetchResult> getConfigurations(Collection<ConfigurationKey> keys, Map<ConfigurationKey, String> eTags) {
+            Map<ConfigurationKey, FetchResult> result = new LinkedHashMap<>();
+            for (ConfigurationKey key : keys) {
+                record(key.getName());
+            }
+            if (failing) {
+                throw new ConfigurationException("Config server down");
+            }
+            for (ConfigurationKey key : keys) {
+                result.put(key, result(key.getName()));
+            }
+            return result;
+        }
+
+        private FetchResult result(String name) {
+            ConfigurationSnapshot configuration = ConfigurationSnapshot.of(version, Collections.singletonMap("name", name));
+            return new FetchResult(configuration, "\"" + version + "\"", System.currentTimeMillis(), 0);
+        }
+    }
+}
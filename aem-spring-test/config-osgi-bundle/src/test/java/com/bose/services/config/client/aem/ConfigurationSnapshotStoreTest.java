@@ -0,0 +1,154 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConfigurationSnapshotStoreTest {
+    private static final String KEY = "app[dev,author]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File directory;
+    private ConfigurationSnapshotStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("snapshots");
+        store = new ConfigurationSnapshotStore(directory);
+    }
+
+    @Test
+    public void writtenSnapshotIsReadBack() {
+        ConfigurationSnapshot configuration = configuration("v1", "a", "1", "b", "2");
+        store.write(KEY, "\"v1\"", configuration);
+
+        ConfigurationSnapshotStore.Snapshot snapshot = store.read(KEY);
+        assertNotNull(snapshot);
+        assertEquals("\"v1\"", snapshot.getVersion());
+        assertTrue(snapshot.getTimestamp() > 0);
+        assertEquals(configuration, snapshot.getConfiguration());
+        assertEquals("v1", snapshot.getConfiguration().getVersion());
+        assertEquals("2", snapshot.getConfiguration().get("b"));
+        assertEquals(1, snapshotFiles().length);
+    }
+
+    @Test
+    public void writeReplacesTheStoredSnapshot() {
+        store.write(KEY, "\"v1\"", configuration("v1", "a", "1"));
+        store.write(KEY, "\"v2\"", configuration("v2", "a", "2"));
+
+        ConfigurationSnapshotStore.Snapshot snapshot = store.read(KEY);
+        assertEquals("\"v2\"", snapshot.getVersion());
+        assertEquals("2", snapshot.getConfiguration().get("a"));
+        assertEquals(1, snapshotFiles().length);
+    }
+
+    @Test
+    public void missingSnapshotIsNull() {
+        assertNull(store.read(KEY));
+    }
+
+    @Test
+    public void truncatedSnapshotIsIgnoredAndRemoved() throws IOException {
+        store.write(KEY, "\"v1\"", configuration("v1", "a", "1", "b", "2"));
+        File file = snapshotFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        assertNull(store.read(KEY));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void snapshotWithWrongChecksumIsIgnoredAndRemoved() throws IOException {
+        store.write(KEY, "\"v1\"", configuration("v1", "a", "1"));
+        File file = snapshotFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //flip a byte of the last value
+            raf.seek(raf.length() - 9);
+            int value = raf.read();
+            raf.seek(raf.length() - 9);
+            raf.write(value ^ 0xFF);
+        }
+
+        assertNull(store.read(KEY));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void corruptLengthNeverAllocatesBeyondTheFile() throws IOException {
+        store.write(KEY, "\"v1\"", configuration("v1", "a", "1"));
+        File file = snapshotFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //length of the key, right after the magic and format version
+            raf.seek(8);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        assertNull(store.read(KEY));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void snapshotOfUnknownFormatVersionIsIgnoredAndRemoved() throws IOException {
+        store.write(KEY, "\"v1\"", configuration("v1", "a", "1"));
+        File file = snapshotFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //format version, right after the magic
+            raf.seek(4);
+            raf.writeInt(2);
+        }
+
+        assertNull(store.read(KEY));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void snapshotOfAnotherKeyIsIgnored() throws IOException {
+        String other = "other[dev]";
+        store.write(KEY, "\"v1\"", configuration("v1", "a", "1"));
+        store.write(other, "\"v2\"", configuration("v2", "a", "2"));
+        File[] files = snapshotFiles();
+        File file = files[0].getName().startsWith("app") ? files[0] : files[1];
+        File otherFile = file == files[0] ? files[1] : files[0];
+        //a file that ended up under the name of another key must not be served for that key
+        assertTrue(otherFile.delete());
+        assertTrue(file.renameTo(otherFile));
+
+        assertNull(store.read(other));
+        assertFalse(otherFile.exists());
+        assertNull(store.read(KEY));
+    }
+
+    @Test
+    public void leftoverTemporaryFilesAreRemoved() throws IOException {
+        File tmp = new File(directory, "app.snapshot1234.tmp");
+        assertTrue(tmp.createNewFile());
+
+        new ConfigurationSnapshotStore(directory);
+        assertFalse(tmp.exists());
+    }
+
+    private File[] snapshotFiles() {
+        return directory.listFiles((dir, name) -> name.endsWith(".snapshot"));
+    }
+
+    private static ConfigurationSnapshot configuration(String version, String... keyValues) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.put(keyValues[i], keyValues[i + 1]);
+        }
+        return ConfigurationSnapshot.of(version, properties);
+    }
+}
@@ -0,0 +1,157 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ConfigurationSnapshotTest {
+    //all have the same String hash code, so they probe the same slots
+    private static final String[] COLLIDING = {"AaAa", "AaBB", "BBAa", "BBBB"};
+
+    @Test
+    public void equalContentIsEqualRegardlessOfOrderAndVersion() {
+        Map<String, String> first = new LinkedHashMap<>();
+        first.put("a", "1");
+        first.put("b", "2");
+        first.put("c", "3");
+        Map<String, String> second = new LinkedHashMap<>();
+        second.put("c", "3");
+        second.put("a", "1");
+        second.put("b", "2");
+
+        ConfigurationSnapshot one = ConfigurationSnapshot.of("v1", first);
+        ConfigurationSnapshot other = ConfigurationSnapshot.of("v2", second);
+        assertEquals(one, other);
+        assertEquals(one.hashCode(), other.hashCode());
+        assertEquals(one.getContentHash(), other.getContentHash());
+        assertTrue(one.changedKeys(other).isEmpty());
+    }
+
+    @Test
+    public void differentContentIsNotEqual() {
+        ConfigurationSnapshot one = ConfigurationSnapshot.of(null, Collections.singletonMap("a", "1"));
+        assertFalse(one.equals(ConfigurationSnapshot.of(null, Collections.singletonMap("a", "2"))));
+        assertFalse(one.equals(ConfigurationSnapshot.of(null, Collections.singletonMap("b", "1"))));
+        assertFalse(one.equals(ConfigurationSnapshot.EMPTY));
+        assertFalse(one.equals(null));
+        //swapping keys and values changes the content hash
+        Map<String, String> swapped = new HashMap<>();
+        swapped.put("a", "b");
+        swapped.put("b", "a");
+        Map<String, String> same = new HashMap<>();
+        same.put("a", "a");
+        same.put("b", "b");
+        assertFalse(ConfigurationSnapshot.of(null, swapped).equals(ConfigurationSnapshot.of(null, same)));
+    }
+
+    @Test
+    public void changedKeysContainsAddedRemovedAndChangedKeys() {
+        Map<String, String> previous = new HashMap<>();
+        previous.put("same", "1");
+        previous.put("changed", "1");
+        previous.put("removed", "1");
+        Map<String, String> current = new HashMap<>();
+        current.put("same", "1");
+        current.put("changed", "2");
+        current.put("added", "1");
+
+        assertEquals(new HashSet<>(Arrays.asList("changed", "removed", "added")),
+                ConfigurationSnapshot.of(null, current).changedKeys(ConfigurationSnapshot.of(null, previous)));
+    }
+
+    @Test
+    public void collidingKeysAreProbed() {
+        ConfigurationSnapshot.Builder builder = new ConfigurationSnapshot.Builder();
+        for (String key : COLLIDING) {
+            builder.put(key, "value of " + key);
+        }
+        ConfigurationSnapshot snapshot = builder.build(null);
+
+        assertEquals(COLLIDING.length, snapshot.size());
+        for (String key : COLLIDING) {
+            assertEquals("value of " + key, snapshot.get(key));
+        }
+        //same hash code as the others, but not present
+        assertEquals("AaAa".hashCode(), "AaC#".hashCode());
+        assertNull(snapshot.get("AaC#"));
+        assertFalse(snapshot.containsKey("C#C#"));
+    }
+
+    @Test
+    public void putReplacesCollidingKey() {
+        ConfigurationSnapshot.Builder builder = new ConfigurationSnapshot.Builder();
+        for (String key : COLLIDING) {
+            builder.put(key, "old");
+        }
+        builder.put(COLLIDING[2], "new");
+        ConfigurationSnapshot snapshot = builder.build(null);
+
+        assertEquals(COLLIDING.length, snapshot.size());
+        assertEquals("new", snapshot.get(COLLIDING[2]));
+        assertEquals("old", snapshot.get(COLLIDING[3]));
+    }
+
+    @Test
+    public void builderGrowsBeyondItsInitialCapacity() {
+        ConfigurationSnapshot.Builder builder = new ConfigurationSnapshot.Builder(1);
+        Properties expected = new Properties();
+        for (int i = 0; i < 1000; i++) {
+            builder.put("key" + i, "value" + i);
+            expected.setProperty("key" + i, "value" + i);
+        }
+        ConfigurationSnapshot snapshot = builder.build("1");
+
+        assertEquals(1000, snapshot.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value" + i, snapshot.get("key" + i));
+        }
+        assertEquals(expected, snapshot.toProperties());
+        int iterated = 0;
+        for (Map.Entry<String, String> entry : snapshot) {
+            assertEquals(expected.getProperty(entry.getKey()), entry.getValue());
+            iterated++;
+        }
+        assertEquals(1000, iterated);
+    }
+
+    @Test
+    public void builderCanBeReused() {
+        ConfigurationSnapshot.Builder builder = new ConfigurationSnapshot.Builder();
+        ConfigurationSnapshot first = builder.put("a", "1").build("1");
+        ConfigurationSnapshot second = builder.put("b", "2").build("2");
+
+        assertEquals("1", first.get("a"));
+        assertNull(first.get("b"));
+        assertNull(second.get("a"));
+        assertEquals(1, second.size());
+    }
+
+    @Test
+    public void nullValuesAreIgnored() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("a", null);
+        properties.put("b", 2);
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.of("1", properties);
+
+        assertEquals(1, snapshot.size());
+        assertEquals("2", snapshot.get("b"));
+        assertEquals("default", snapshot.get("a", "default"));
+        assertEquals("1", snapshot.getVersion());
+    }
+
+    @Test
+    public void emptySnapshot() {
+        assertTrue(ConfigurationSnapshot.EMPTY.isEmpty());
+        assertNull(ConfigurationSnapshot.EMPTY.get("a"));
+        assertFalse(ConfigurationSnapshot.EMPTY.iterator().hasNext());
+        assertEquals(ConfigurationSnapshot.EMPTY, ConfigurationSnapshot.of(null, Collections.emptyMap()));
+    }
+}
@@ -0,0 +1,165 @@
+package com.bose.services.config.client.aem;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JcrSessionTemplateTest {
+    private FakeSession session;
+    private JcrSessionTemplate<Void> template;
+    private RecordingCallback callback;
+
+    @Before
+    public void setUp() {
+        session = new FakeSession();
+        SlingRepository repository = (SlingRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{SlingRepository.class}, (proxy, method, args) -> {
+            if (method.getName().equals("loginAdministrative")) {
+                return session.proxy;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        template = new JcrSessionTemplate<>(repository);
+        callback = new RecordingCallback();
+    }
+
+    @Test
+    public void itemsAreSavedInBatches() throws Exception {
+        int saves = template.executeInBatches(Arrays.asList("a", "b", "c", "d", "e").iterator(), 2, 0, callback);
+
+        assertEquals(3, saves);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), session.saved);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), callback.changed);
+        assertTrue(callback.failed.isEmpty());
+        assertTrue(session.loggedOut);
+    }
+
+    @Test
+    public void unchangedItemsAreNotSaved() throws Exception {
+        int saves = template.executeInBatches(Arrays.asList("same-a", "b", "same-c").iterator(), 10, 0, callback);
+
+        assertEquals(1, saves);
+        assertEquals(Arrays.asList("b"), session.saved);
+        assertEquals(Arrays.asList("same-a", "same-c"), callback.unchanged);
+        assertEquals(Arrays.asList("b"), callback.changed);
+    }
+
+    @Test
+    public void failedBatchIsRetriedItemByItem() throws Exception {
+        int saves = template.executeInBatches(Arrays.asList("a", "conflict", "c", "d").iterator(), 3, 0, callback);
+
+        //the first batch failed and was retried as 2 saves (the conflicting item can't be saved), then the last batch
+        assertEquals(3, saves);
+        assertEquals(Arrays.asList("a", "c", "d"), session.saved);
+        assertEquals(Arrays.asList("a", "c", "d"), callback.changed);
+        assertEquals(Arrays.asList("conflict"), callback.failed);
+        assertTrue(session.pending.isEmpty());
+    }
+
+    @Test
+    public void failingItemRollsBackItsBatch() throws Exception {
+        int saves = template.executeInBatches(Arrays.asList("a", "b", "broken", "c").iterator(), 10, 0, callback);
+
+        assertEquals(3, saves);
+        assertEquals(Arrays.asList("a", "b", "c"), session.saved);
+        assertEquals(Arrays.asList("a", "b", "c"), callback.changed);
+        assertEquals(Arrays.asList("broken"), callback.failed);
+        //the half applied changes of the broken item were discarded with the batch
+        assertFalse(session.saved.contains("broken"));
+    }
+
+    @Test
+    public void everyItemIsReportedOnceWhenTheSessionIsBroken() throws Exception {
+        session.refreshFails = true;
+        int saves = template.executeInBatches(Arrays.asList("a", "conflict", "c").iterator(), 3, 0, callback);
+
+        assertEquals(0, saves);
+        assertTrue(session.saved.isEmpty());
+        assertTrue(callback.changed.isEmpty());
+        assertEquals(Arrays.asList("a", "conflict", "c"), callback.failed);
+        assertTrue(session.loggedOut);
+    }
+
+    @Test
+    public void noItems() throws Exception {
+        assertEquals(0, template.executeInBatches(Collections.<String>emptyIterator(), 10, 0, callback));
+        assertTrue(session.loggedOut);
+    }
+
+    /**
+     * Applies an item by adding it to the pending changes. Items starting with <code>same</code> change nothing,
+     * <code>broken</code> fails halfway.
+     */
+    private static class RecordingCallback implements JcrSessionTemplate.BatchCallback<String> {
+        private final List<String> changed = new ArrayList<>();
+        private final List<String> unchanged = new ArrayList<>();
+        private final List<String> failed = new ArrayList<>();
+
+        @Override
+        public boolean execute(Session session, String item) throws Exception {
+            if (item.startsWith("same")) {
+                return false;
+            }
+            session.getNode("/" + item);
+            if (item.equals("broken")) {
+                throw new RepositoryException("broken");
+            }
+            return true;
+        }
+
+        @Override
+        public void onSuccess(String item, boolean changed) {
+            (changed ? this.changed : unchanged).add(item);
+        }
+
+        @Override
+        public void onFailure(String item, Exception e) {
+            failed.add(item);
+        }
+    }
+
+    /**
+     * Session recording the items "changed" through {@link Session#getNode(String)}. Saving fails when a pending item is
+     * named <code>conflict</code>.
+     */
+    private static class FakeSession {
+        private final List<String> pending = new ArrayList<>();
+        private final List<String> saved = new ArrayList<>();
+        private boolean refreshFails;
+        private boolean loggedOut;
+        private final Session proxy = (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Session.class}, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getNode":
+                    pending.add(((String) args[0]).substring(1));
+                    return null;
+                case "save":
+                    if (pending.contains("conflict")) {
+                        throw new InvalidItemStateException("conflict");
+                    }
+                    saved.addAll(pending);
+                    pending.clear();
+                    return null;
+                case "refresh":
+                    if (refreshFails) {
+                        throw new RepositoryException("session is broken");
+                    }
+                    pending.clear();
+                    return null;
+                case "logout":
+                    loggedOut = true;
+                    return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+}
@@ -0,0 +1,302 @@
+package com.bose.services.config.client.aem;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ManagedConfigurationEventPipelineTest {
+    private static final String BLOCKER = "/blocker";
+    private static final String[] SEARCH_PATHS = {"/apps", "/conf"};
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> sessionCalls = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private JcrSessionPool sessionPool;
+    private ManagedConfigurationEventPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        sessionPool = new JcrSessionPool();
+        sessionPool.bindSlingRepository((SlingRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{SlingRepository.class},
+                (proxy, method, args) -> method.getName().equals("loginAdministrative") ? session() : null));
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    //one worker, busy with the blocker until released, so the events offered meanwhile stay pending
+    private void start(int queueSize) throws InterruptedException {
+        pipeline = new ManagedConfigurationEventPipeline(new RecordingTracker(), sessionPool, SEARCH_PATHS, 1, 10, queueSize);
+        pipeline.added(BLOCKER);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    }
+
+    private void finish() throws InterruptedException {
+        release.countDown();
+        long timeout = System.currentTimeMillis() + 5000;
+        ManagedConfigurationEventPipeline.Stats stats;
+        while ((stats = pipeline.getStats()).getQueueDepth() + stats.getInFlight() + stats.getPendingRescans() > 0) {
+            assertTrue("pipeline did not finish", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        calls.remove("track [" + BLOCKER + "]");
+    }
+
+    @Test(timeout = 10000)
+    public void addedNodesAreTrackedTogether() throws Exception {
+        start(10);
+        pipeline.added("/apps/a");
+        pipeline.added("/apps/b");
+        finish();
+
+        assertEquals(Collections.singletonList("track [/apps/a, /apps/b]"), calls);
+        assertEquals(3, pipeline.getStats().getProcessedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void addedAndRemovedCancelsOut() throws Exception {
+        start(10);
+        pipeline.added("/apps/a");
+        pipeline.removed("/apps/a");
+        pipeline.added("/apps/b");
+        finish();
+
+        assertEquals(Collections.singletonList("track [/apps/b]"), calls);
+        assertEquals(1, pipeline.getStats().getCancelledCount());
+    }
+
+    @Test(timeout = 10000)
+    public void removedAndAddedIsRetracked() throws Exception {
+        start(10);
+        pipeline.removed("/apps/a");
+        pipeline.added("/apps/a");
+        finish();
+
+        assertEquals(Arrays.asList("untrack /apps/a", "track [/apps/a]"), calls);
+        assertEquals(1, pipeline.getStats().getCoalescedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void propertyChangesAreCollected() throws Exception {
+        start(10);
+        pipeline.propertyChanged("/apps/a", "one");
+        pipeline.propertyChanged("/apps/a", "two");
+        pipeline.propertyChanged("/apps/a", "one");
+        finish();
+
+        assertEquals(Collections.singletonList("reconfigure /apps/a [one, two]"), calls);
+        assertEquals(2, pipeline.getStats().getCoalescedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void failingEditIsRolledBackWithoutTheOtherEdits() throws Exception {
+        start(10);
+        pipeline.propertyChanged("/apps/a", "one");
+        pipeline.propertyChanged("/apps/failing", "one");
+        pipeline.propertyChanged("/apps/c", "one");
+        finish();
+
+        //the unsaved edit of a is discarded with the failing one, and redone on its own
+        assertEquals(Arrays.asList("reconfigure /apps/a [one]", "reconfigure /apps/failing [one]",
+                "reconfigure /apps/a [one]", "reconfigure /apps/c [one]"), calls);
+        //the pool refreshes every session it gets back, the one of the blocker first and the one of the edits last
+        assertEquals(Arrays.asList("refresh false", "refresh false", "save", "save", "refresh false"), sessionCalls);
+        ManagedConfigurationEventPipeline.Stats stats = pipeline.getStats();
+        assertEquals(1, stats.getFailedCount());
+        //the blocker and the two edits
+        assertEquals(3, stats.getProcessedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void addingTheNodeCoversItsPropertyChanges() throws Exception {
+        start(10);
+        pipeline.propertyChanged("/apps/a", "one");
+        pipeline.added("/apps/a");
+        pipeline.propertyChanged("/apps/a", "two");
+        finish();
+
+        assertEquals(Arrays.asList("untrack /apps/a", "track [/apps/a]"), calls);
+    }
+
+    @Test(timeout = 10000)
+    public void overflowIsRescanned() throws Exception {
+        start(2);
+        pipeline.added("/apps/a");
+        pipeline.added("/apps/b");
+        //queue is full
+        pipeline.added("/apps/c/d");
+        pipeline.removed("/apps/c");
+        pipeline.propertyChanged("/apps/e", "one");
+        //still coalesced with the pending event, tracking resolves all properties
+        pipeline.propertyChanged("/apps/a", "one");
+
+        ManagedConfigurationEventPipeline.Stats stats = pipeline.getStats();
+        assertEquals(2, stats.getOverflowCount());
+        assertEquals(1, stats.getDroppedCount());
+        //the rescan of /apps/c covers /apps/c/d
+        assertEquals(1, stats.getPendingRescans());
+        finish();
+
+        //events first, then the rescan
+        assertEquals(Arrays.asList("track [/apps/a, /apps/b]", "track [/apps/c]"), calls);
+        assertEquals(1, pipeline.getStats().getRescanCount());
+    }
+
+    @Test(timeout = 10000)
+    public void tooManyRescansRescanTheSearchPaths() throws Exception {
+        start(1);
+        pipeline.added("/apps/a");
+        for (int i = 0; i < 17; i++) {
+            pipeline.added("/apps/overflow/" + i);
+        }
+
+        assertEquals(SEARCH_PATHS.length, pipeline.getStats().getPendingRescans());
+        finish();
+
+        assertEquals(Arrays.asList("track [/apps/a]", "track [/apps]", "track [/conf]"), calls);
+        assertEquals(2, pipeline.getStats().getRescanCount());
+    }
+
+    @Test(timeout = 10000)
+    public void explicitRescansAreMerged() throws Exception {
+        start(10);
+        pipeline.rescan("/apps/x/y");
+        pipeline.rescan("/apps/x");
+        pipeline.rescan("/apps/x/z");
+        assertEquals(1, pipeline.getStats().getPendingRescans());
+        finish();
+
+        assertEquals(Collections.singletonList("track [/apps/x]"), calls);
+    }
+
+    @Test(timeout = 10000)
+    public void eventsAfterShutdownAreIgnored() throws Exception {
+        start(10);
+        pipeline.shutdown();
+        pipeline.added("/apps/a");
+        assertEquals(0, pipeline.getStats().getQueueDepth());
+    }
+
+    //every node exists and is managed, queries find nothing
+    private Session session() {
+        return stub(Session.class, (method, args) -> {
+            switch (method) {
+                case "nodeExists":
+                case "isLive":
+                    return true;
+                case "getNode":
+                    return node((String) args[0]);
+                case "save":
+                    sessionCalls.add(method);
+                    break;
+                case "refresh":
+                    sessionCalls.add(method + " " + args[0]);
+                    break;
+            }
+            return null;
+        });
+    }
+
+    private Node node(String path) {
+        return stub(Node.class, (method, args) -> {
+            switch (method) {
+                case "getPath":
+                    return path;
+                case "isNodeType":
+                    return true;
+            }
+            return null;
+        });
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    //answers what's given, other interface types with stubs as well, primitives with false or 0
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(ManagedConfigurationEventPipelineTest.class.getClassLoader(), new Class[]{type}, (proxy, method, args) -> {
+            Object result = answer.answer(method.getName(), args);
+            if (result != null) {
+                return result;
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == long.class) {
+                return 0L;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType.isInterface()) {
+                return stub(returnType, (name, arguments) -> null);
+            }
+            return null;
+        });
+    }
+
+    private class RecordingTracker extends ManagedConfigurationTracker {
+        @Override
+        public int track(Collection<Node> nodes) {
+            List<String> paths = new ArrayList<>();
+            for (Node node : nodes) {
+                try {
+                    paths.add(node.getPath());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (paths.contains(BLOCKER)) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            calls.add("track " + paths);
+            return paths.size();
+        }
+
+        @Override
+        public void untrack(String path) {
+            calls.add("untrack " + path);
+        }
+
+        @Override
+        public boolean reconfigure(Session session, String path, Set<String> propertyNames) {
+            calls.add("reconfigure " + path + " " + new TreeSet<>(propertyNames));
+            if (path.endsWith("failing")) {
+                throw new ConfigurationException("Error configuring managed node: %s", path);
+            }
+            return true;
+        }
+
+        @Override
+        public Set<ManagedConfiguration> getManagedConfigurations() {
+            return Collections.emptySet();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.Test;
+import org.springframework.util.PropertyPlaceholderHelper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PlaceholderTemplateTest {
+    private static final PropertyPlaceholderHelper helper = new PropertyPlaceholderHelper(Placeholders.PREFIX,
+            Placeholders.SUFFIX, Placeholders.SEPARATOR, true);
+
+    private static final String[] VALUES = {
+            "",
+            "plain text",
+            "${host}",
+            "http://${host}:${port}/path",
+            "${missing}",
+            "before ${missing} after",
+            "${missing:default}",
+            "${missing:}",
+            "${host:default}",
+            "${missing:${host}}",
+            "${missing:${other:fallback}}",
+            "${${name}}",
+            "${${name}:default}",
+            "${${missing}}",
+            "${prefix.${name}}",
+            "${url}",
+            "${indirect}",
+            "${with:colon}",
+            "${with}",
+            "${weird",
+            "${host} and ${weird",
+            "}${host}{",
+            "${a{b}c}",
+            "$${host}}",
+            "${}",
+            "${:only default}",
+            "${empty}",
+            "${empty:default}",
+            "${unresolved.nested}",
+            "${host}${host}${port}",
+    };
+
+    private static Map<String, String> properties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("host", "example.com");
+        properties.put("port", "8080");
+        properties.put("name", "host");
+        properties.put("prefix.host", "prefixed");
+        properties.put("url", "http://${host}:${port}");
+        properties.put("indirect", "${url}/${missing:x}");
+        properties.put("with:colon", "whole key");
+        properties.put("with", "key only");
+        properties.put("a{b}c", "braces");
+        properties.put("empty", "");
+        properties.put("unresolved.nested", "${nope}");
+        return properties;
+    }
+
+    @Test
+    public void resolvesLikePropertyPlaceholderHelper() {
+        Map<String, String> properties = properties();
+        PropertyPlaceholderHelper.PlaceholderResolver resolver = properties::get;
+        for (String value : VALUES) {
+            assertEquals("'" + value + "'", helper.replacePlaceholders(value, resolver), PlaceholderTemplate.compile(value).resolve(resolver));
+        }
+    }
+
+    @Test
+    public void resolvesLikePropertyPlaceholderHelperWithoutProperties() {
+        PropertyPlaceholderHelper.PlaceholderResolver resolver = key -> null;
+        for (String value : VALUES) {
+            assertEquals("'" + value + "'", helper.replacePlaceholders(value, resolver), PlaceholderTemplate.compile(value).resolve(resolver));
+        }
+    }
+
+    @Test
+    public void circularReferencesFailLikePropertyPlaceholderHelper() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("a", "${b}");
+        properties.put("b", "${a}");
+        PropertyPlaceholderHelper.PlaceholderResolver resolver = properties::get;
+        try {
+            helper.replacePlaceholders("${a}", resolver);
+            fail("helper should fail");
+        } catch (IllegalArgumentException expected) {
+            //the template must fail the same way
+        }
+        try {
+            PlaceholderTemplate.compile("${a}").resolve(resolver);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Circular placeholder reference"));
+        }
+    }
+
+    @Test
+    public void sameKeyTwiceIsNotCircular() {
+        Map<String, String> properties = properties();
+        assertEquals("example.com/example.com", PlaceholderTemplate.compile("${host}/${host}").resolve(properties::get));
+    }
+
+    @Test
+    public void literalTemplate() {
+        PlaceholderTemplate template = PlaceholderTemplate.compile("no ${placeholders");
+        assertTrue(template.isLiteral());
+        assertTrue(template.getKeys().isEmpty());
+        assertSame(template.getSource(), template.resolve(key -> "x"));
+    }
+
+    @Test
+    public void hasPlaceholders() {
+        assertTrue(PlaceholderTemplate.hasPlaceholders("a ${b} c"));
+        assertFalse(PlaceholderTemplate.hasPlaceholders("a ${b c"));
+        assertFalse(PlaceholderTemplate.hasPlaceholders((String) null));
+        assertTrue(PlaceholderTemplate.hasPlaceholders(new String[]{"a", "${b}"}));
+        assertFalse(PlaceholderTemplate.hasPlaceholders(new String[]{"a", "b"}));
+        assertFalse(PlaceholderTemplate.hasPlaceholders((String[]) null));
+    }
+
+    @Test
+    public void keys() {
+        assertEquals(new HashSet<>(Arrays.asList("host", "port")), PlaceholderTemplate.compile("${host}:${port}").getKeys());
+        //the whole content is looked up before the key
+        assertEquals(new HashSet<>(Arrays.asList("host:default", "host")), PlaceholderTemplate.compile("${host:default}").getKeys());
+        assertEquals(new HashSet<>(Arrays.asList("missing", "host")), PlaceholderTemplate.compile("${missing:${host}}").getKeys());
+        assertEquals(new HashSet<>(Arrays.asList("name", Placeholders.ANY_KEY)), PlaceholderTemplate.compile("${${name}}").getKeys());
+    }
+}
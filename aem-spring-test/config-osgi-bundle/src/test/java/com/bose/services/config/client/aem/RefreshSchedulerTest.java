@@ -0,0 +1,201 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.bose.services.config.client.aem.ManagedConfigurationTracker.REFRESH_ALL;
+import static org.junit.Assert.*;
+
+public class RefreshSchedulerTest {
+    private final List<String> refreshed = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, CountDownLatch> blocked = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> started = new ConcurrentHashMap<>();
+    private final List<String> running = new ArrayList<>();
+    private final List<String> overlaps = Collections.synchronizedList(new ArrayList<String>());
+    private RefreshScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        for (CountDownLatch latch : blocked.values()) {
+            latch.countDown();
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    //records the refreshes, and which refreshes ran at the same time
+    private RefreshResult refresh(String configurationName) {
+        synchronized (running) {
+            for (String other : running) {
+                overlaps.add(other + "+" + configurationName);
+            }
+            running.add(configurationName);
+        }
+        try {
+            refreshed.add(configurationName);
+            CountDownLatch start = started.get(configurationName);
+            if (start != null) {
+                start.countDown();
+            }
+            CountDownLatch latch = blocked.get(configurationName);
+            if (latch != null) {
+                latch.await();
+            }
+            return new RefreshResult(configurationName, 1, 0, 0, 0, Collections.<RefreshResult.NodeResult>emptyList());
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            synchronized (running) {
+                running.remove(configurationName);
+            }
+        }
+    }
+
+    private CountDownLatch block(String configurationName) {
+        CountDownLatch start = new CountDownLatch(1);
+        started.put(configurationName, start);
+        blocked.put(configurationName, new CountDownLatch(1));
+        return start;
+    }
+
+    private void release(String configurationName) {
+        blocked.remove(configurationName).countDown();
+    }
+
+    private static RefreshResult get(CompletableFuture<RefreshResult> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 10000)
+    public void requestsWithinTheWindowAreDebounced() throws Exception {
+        scheduler = new RefreshScheduler("test", this::refresh, 200, 2);
+        CompletableFuture<RefreshResult> first = scheduler.schedule("a");
+        CompletableFuture<RefreshResult> second = scheduler.schedule("a");
+        CompletableFuture<RefreshResult> third = scheduler.schedule("a");
+
+        assertSame(first, second);
+        assertSame(first, third);
+        assertEquals("a", get(first).getConfigurationName());
+        assertEquals(Collections.singletonList("a"), refreshed);
+        assertEquals(2, scheduler.getStats().getCoalescedCount());
+        assertEquals(1, scheduler.getStats().getExecutedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void refreshWaitsForTheDebounceWindow() throws Exception {
+        scheduler = new RefreshScheduler("test", this::refresh, 300, 2);
+        long start = System.currentTimeMillis();
+        get(scheduler.schedule("a"));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test(timeout = 10000)
+    public void refreshAllAbsorbsPendingRequests() throws Exception {
+        scheduler = new RefreshScheduler("test", this::refresh, 200, 2);
+        CompletableFuture<RefreshResult> a = scheduler.schedule("a");
+        CompletableFuture<RefreshResult> b = scheduler.schedule("b");
+        CompletableFuture<RefreshResult> all = scheduler.schedule(REFRESH_ALL);
+
+        assertEquals(REFRESH_ALL, get(all).getConfigurationName());
+        assertSame(get(all), get(a));
+        assertSame(get(all), get(b));
+        assertEquals(Collections.singletonList(REFRESH_ALL), refreshed);
+        assertEquals(2, scheduler.getStats().getMergedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void requestsAreMergedIntoAPendingRefreshAll() throws Exception {
+        scheduler = new RefreshScheduler("test", this::refresh, 200, 2);
+        CompletableFuture<RefreshResult> all = scheduler.schedule(REFRESH_ALL);
+        CompletableFuture<RefreshResult> a = scheduler.schedule("a");
+
+        assertSame(all, a);
+        get(all);
+        assertEquals(Collections.singletonList(REFRESH_ALL), refreshed);
+        assertEquals(1, scheduler.getStats().getMergedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void refreshAllNeverRunsWithOtherRefreshes() throws Exception {
+        scheduler = new RefreshScheduler("test", this::refresh, 0, 4);
+        CountDownLatch aStarted = block("a");
+        CompletableFuture<RefreshResult> a = scheduler.schedule("a");
+        aStarted.await();
+
+        CountDownLatch allStarted = block(REFRESH_ALL);
+        CompletableFuture<RefreshResult> all = scheduler.schedule(REFRESH_ALL);
+        //waits for the running refresh of a
+        assertFalse(allStarted.await(200, TimeUnit.MILLISECONDS));
+        release("a");
+        get(a);
+        allStarted.await();
+
+        //nothing else starts while everything is refreshed
+        CompletableFuture<RefreshResult> b = scheduler.schedule("b");
+        Thread.sleep(200);
+        assertFalse(refreshed.contains("b"));
+        release(REFRESH_ALL);
+        get(all);
+        get(b);
+
+        assertEquals(3, refreshed.size());
+        assertTrue(overlaps.toString(), overlaps.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void sameNameNeverRunsConcurrently() throws Exception {
+        scheduler = new RefreshScheduler("test", this::refresh, 0, 4);
+        CountDownLatch aStarted = block("a");
+        CompletableFuture<RefreshResult> first = scheduler.schedule("a");
+        aStarted.await();
+
+        CompletableFuture<RefreshResult> second = scheduler.schedule("a");
+        assertNotSame(first, second);
+        CompletableFuture<RefreshResult> other = scheduler.schedule("b");
+        //other names are not held up
+        get(other);
+        assertEquals(2, refreshed.size());
+        release("a");
+        get(first);
+        get(second);
+
+        assertEquals(3, refreshed.size());
+        assertFalse(overlaps.toString(), overlaps.contains("a+a"));
+    }
+
+    @Test(timeout = 10000)
+    public void failedRefreshCompletesExceptionally() throws Exception {
+        scheduler = new RefreshScheduler("test", name -> {
+            throw new ConfigurationException("failed");
+        }, 0, 1);
+        try {
+            get(scheduler.schedule("a"));
+            fail("exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConfigurationException);
+        }
+        assertEquals(1, scheduler.getStats().getFailedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownCancelsPendingRefreshes() throws Exception {
+        scheduler = new RefreshScheduler("test", this::refresh, 60000, 1);
+        CompletableFuture<RefreshResult> pending = scheduler.schedule("a");
+        scheduler.shutdown();
+
+        assertTrue(pending.isCompletedExceptionally());
+        assertTrue(scheduler.schedule("b").isCompletedExceptionally());
+        assertTrue(refreshed.isEmpty());
+    }
+}
@@ -0,0 +1,231 @@
+package com.bose.services.config.client.aem;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentCallsForTheSameKeyShareOneExecution() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            release.await();
+            return "value";
+        }));
+        started.await();
+        List<Future<String>> followers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            followers.add(executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                return "other";
+            })));
+        }
+        while (singleFlight.getCoalescedCount() < followers.size()) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        assertEquals("value", leader.get());
+        for (Future<String> follower : followers) {
+            assertEquals("value", follower.get());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1, singleFlight.getExecutedCount());
+        assertEquals(4, singleFlight.getCoalescedCount());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    public void keyIsReleasedOnceTheCallCompletes() {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        assertEquals("first", singleFlight.execute("key", () -> "first"));
+        assertEquals("second", singleFlight.execute("key", () -> "second"));
+        assertEquals(2, singleFlight.getExecutedCount());
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void differentKeysAreNotCoalesced() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> singleFlight.execute("a", () -> {
+            started.countDown();
+            release.await();
+            return "a";
+        }));
+        started.await();
+        assertEquals("b", singleFlight.execute("b", () -> "b"));
+        release.countDown();
+        assertEquals("a", first.get());
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void checkedExceptionIsWrapped() {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        IOException cause = new IOException("down");
+        try {
+            singleFlight.execute("key", () -> {
+                throw cause;
+            });
+            fail("exception expected");
+        } catch (ConfigurationException e) {
+            assertSame(cause, e.getCause());
+        }
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test(timeout = 10000)
+    public void exceptionIsPropagatedToAllWaitingCallers() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("failed");
+        Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+            started.countDown();
+            release.await();
+            throw failure;
+        }));
+        started.await();
+        Future<String> follower = executor.submit(() -> singleFlight.execute("key", () -> "other"));
+        while (singleFlight.getCoalescedCount() < 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        assertSame(failure, getFailure(leader));
+        //runtime exceptions are propagated as is, also to the callers that waited
+        assertSame(failure, getFailure(follower));
+        assertEquals(1, singleFlight.getExecutedCount());
+        //the next call executes again
+        assertEquals("retry", singleFlight.execute("key", () -> "retry"));
+    }
+
+    @Test(timeout = 10000)
+    public void errorIsPropagatedToAllWaitingCallers() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        NoClassDefFoundError failure = new NoClassDefFoundError("missing");
+        Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+            started.countDown();
+            release.await();
+            throw failure;
+        }));
+        started.await();
+        Future<String> follower = executor.submit(() -> singleFlight.execute("key", () -> "other"));
+        while (singleFlight.getCoalescedCount() < 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        assertSame(failure, getFailure(leader));
+        //the waiting caller is not left blocked
+        assertSame(failure, getFailure(follower));
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test(timeout = 10000)
+    public void batchWaitsForTheKeysInFlightAndExecutesTheOthers() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> single = executor.submit(() -> singleFlight.execute("a", () -> {
+            started.countDown();
+            release.await();
+            return "a";
+        }));
+        started.await();
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        Future<Map<String, String>> batch = executor.submit(() -> singleFlight.executeAll(Arrays.asList("a", "b", "c"), keys -> {
+            batches.add(keys);
+            Map<String, String> result = new HashMap<>();
+            for (String key : keys) {
+                result.put(key, key + "!");
+            }
+            return result;
+        }));
+        while (singleFlight.getCoalescedCount() < 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        Map<String, String> result = batch.get();
+        assertEquals("a", result.get("a"));
+        assertEquals("b!", result.get("b"));
+        assertEquals("c!", result.get("c"));
+        assertEquals(Collections.singletonList(Arrays.asList("b", "c")), batches);
+        assertEquals("a", single.get());
+        assertEquals(3, singleFlight.getExecutedCount());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test(timeout = 10000)
+    public void batchResultsAndFailuresAreSharedWithWaitingCallers() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("failed");
+        Future<Map<String, String>> batch = executor.submit(() -> singleFlight.executeAll(Arrays.asList("a", "b"), keys -> {
+            started.countDown();
+            release.await();
+            throw failure;
+        }));
+        started.await();
+        Future<String> single = executor.submit(() -> singleFlight.execute("b", () -> "other"));
+        Future<Map<String, String>> other = executor.submit(() -> singleFlight.executeAll(Collections.singletonList("a"),
+                keys -> Collections.singletonMap("a", "other")));
+        while (singleFlight.getCoalescedCount() < 2) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        assertSame(failure, getFailure(batch));
+        assertSame(failure, getFailure(single));
+        assertSame(failure, getFailure(other));
+        assertEquals(0, singleFlight.getInFlightCount());
+
+        //keys missing from the result have no result for the waiting callers either
+        assertTrue(singleFlight.executeAll(Collections.singletonList("a"), keys -> new HashMap<>()).isEmpty());
+    }
+
+    private static Throwable getFailure(Future<?> future) throws InterruptedException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (java.util.concurrent.ExecutionException e) {
+            return e.getCause();
+        } catch (java.util.concurrent.TimeoutException e) {
+            fail("call did not complete");
+        }
+        fail("exception expected");
+        return null;
+    }
+}